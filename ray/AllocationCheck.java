@@ -0,0 +1,129 @@
+package ray;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Checks that rendering allocates (next to) nothing per pixel.  Every scene is
+ * rendered through a TileRenderer, first a few times to warm up the JIT and
+ * the pool threads, then once more while the bytes allocated by every thread
+ * of the JVM are counted through com.sun.management.ThreadMXBean.  What the
+ * render allocates per tile (its tasks and a RenderContext, about a kilobyte)
+ * is spread over the pixels of the tile, which comes to a little over one
+ * byte per pixel with 32x32 tiles.  A single object allocated per pixel or
+ * per ray adds tens of bytes.
+ *
+ * Usage: java ray.AllocationCheck [options] [scene files]
+ *   -res WxH       override the image resolution of the scenes
+ *   -threads N     render threads (default: number of processors)
+ *   -tile N        edge length of a render tile in pixels (default: 32)
+ *   -warmup N      renders before the measured one (default: 3)
+ *   -limit B       bytes per pixel allowed (default: 4)
+ *
+ * Without scene files every XML file in the scenes directory is used.  The
+ * exit status is 1 if a scene allocates more than the limit, or if the JVM
+ * cannot count allocated bytes.
+ */
+public class AllocationCheck {
+
+	public static void main(String[] args) throws Exception {
+
+		int resWidth = 0;
+		int resHeight = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int warmup = 3;
+		int tileSize = TileRenderer.DEFAULT_TILE_SIZE;
+		double limit = 4;
+		ArrayList<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-res")) {
+				String[] size = args[++i].split("x");
+				resWidth = Integer.parseInt(size[0]);
+				resHeight = Integer.parseInt(size[1]);
+			}
+			else if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-tile"))
+				tileSize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-warmup"))
+				warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-limit"))
+				limit = Double.parseDouble(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			File[] scenes = new File("scenes").listFiles();
+			if (scenes == null) {
+				System.out.println("No scene files given and no scenes directory found");
+				System.exit(1);
+			}
+			Arrays.sort(scenes);
+			for (File scene : scenes)
+				if (scene.getName().endsWith(".xml"))
+					files.add(scene.getPath());
+		}
+
+		if (allocatedBytes() < 0) {
+			System.out.println("This JVM cannot count the bytes allocated by threads");
+			System.exit(1);
+		}
+
+		TileRenderer renderer = new TileRenderer(tileSize, threads);
+		int failures = 0;
+		try {
+			for (String file : files) {
+				Scene scene = (Scene) new Parser().parse(file, Scene.class);
+				if (scene == null) {
+					failures++;
+					continue;
+				}
+				if (resWidth > 0)
+					scene.setImage(new Image(resWidth, resHeight));
+
+				// The first render also builds the BVH
+				for (int i = 0; i < warmup; i++)
+					renderer.renderTiles(scene);
+
+				long start = allocatedBytes();
+				renderer.renderTiles(scene);
+				long bytes = allocatedBytes() - start;
+
+				Camera camera = scene.getCamera();
+				long pixels = (long) camera.getRenderWidth() * camera.getRenderHeight();
+				double perPixel = pixels > 0 ? bytes / (double) pixels : 0;
+				boolean ok = perPixel <= limit;
+				if (!ok)
+					failures++;
+				System.out.println(String.format(Locale.ROOT, "%-32s %10d bytes for %9d pixels: %7.3f bytes per pixel  %s",
+						file, bytes, pixels, perPixel, ok ? "ok" : "over the limit of " + limit));
+			}
+		} finally {
+			renderer.shutdown();
+		}
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Returns the number of bytes allocated so far by all live threads, or -1
+	 * if the JVM cannot tell.  Threads that end in between are not counted,
+	 * but the render threads of a TileRenderer live as long as it does.
+	 */
+	static long allocatedBytes() {
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long total = 0;
+		for (long bytes : sunBean.getThreadAllocatedBytes(sunBean.getAllThreadIds()))
+			if (bytes > 0)
+				total += bytes;
+		return total;
+	}
+}
@@ -0,0 +1,59 @@
+package ray;
+
+import java.util.Arrays;
+
+import ray.math.Color;
+
+/**
+ * A band of consecutive rows of a larger image.  Pixels are addressed with the
+ * coordinates of the full image, so the renderer can trace into a band exactly
+ * as it traces into a whole image.  Used to stream images to disk that are too
+ * large to hold in memory.
+ */
+public class BandImage extends Image {
+	
+	/** Height of the full image. */
+	protected final int fullHeight;
+	
+	/** Row of the full image stored at row 0 (the bottom) of the band. */
+	protected int offsetY;
+	
+	/**
+	 * Create a band.
+	 * @param width width of the full image
+	 * @param fullHeight height of the full image
+	 * @param rows number of rows held by the band
+	 */
+	public BandImage(int width, int fullHeight, int rows) {
+		
+		super(width, rows);
+		this.fullHeight = fullHeight;
+	}
+	
+	/**
+	 * Move the band and clear it.  Rows are counted from the top of the full
+	 * image, as in image files; the band starts at row first and the rows of
+	 * the band beyond the bottom of the full image are unused.
+	 * @param first the first row held by the band
+	 */
+	public void moveTo(int first) {
+		
+		offsetY = fullHeight - first - height;
+		Arrays.fill(data(), 0);
+	}
+	
+	public void getPixelColor(Color outPixel, int inX, int inY) {
+		
+		super.getPixelColor(outPixel, inX, inY - offsetY);
+	}
+	
+	public void setPixelColor(Color inPixel, int inX, int inY) {
+		
+		super.setPixelColor(inPixel, inX, inY - offsetY);
+	}
+	
+	public void setPixelRGB(double inR, double inG, double inB, int inX, int inY) {
+		
+		super.setPixelRGB(inR, inG, inB, inX, inY - offsetY);
+	}
+}
@@ -0,0 +1,487 @@
+package ray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ray.accel.GeometryStore;
+
+/**
+ * Renders many scene files as a pipeline of three stages, each on its own
+ * thread: loading (parsing and building the hierarchies), rendering on the
+ * tile renderer's pool, and writing the PNG file.  While scene N renders,
+ * scene N+1 is loaded and scene N-1 written, so the cores left idle by the
+ * single threaded stages are used.
+ *
+ * The stages hand scenes over through bounded queues.  A stage that is ahead
+ * blocks until the next one takes a scene, so no more than depth scenes wait
+ * between two stages however many files are given.
+ *
+ * Afterwards a report gives the time of every stage for every scene, and for
+ * every stage the time spent working, waiting for a scene to come in and
+ * waiting for room to pass a scene on, with the share of the total time it
+ * was busy.
+ */
+public class BatchRenderer {
+
+	/** Scenes allowed to wait between two stages when none is given. */
+	public static final int DEFAULT_DEPTH = 1;
+
+	protected static final String[] STAGE_NAMES = { "load", "render", "write" };
+
+	protected final TileRenderer renderer;
+	protected final int depth;
+
+	/** Whether to read scene files with the StreamParser. */
+	protected boolean streamingParser;
+	public void setStreamingParser(boolean streamingParser) { this.streamingParser = streamingParser; }
+
+	/** Cache of parsed scenes, or null. */
+	protected SceneCache cache;
+	public void setCache(SceneCache cache) { this.cache = cache; }
+
+	/**
+	 * A scene file on its way through the stages.
+	 */
+	protected static class Item {
+
+		protected final String input;
+		protected Scene scene;
+		protected String error;
+		protected boolean cached;
+		protected final long[] nanos = new long[3];
+
+		protected Item(String input) {
+
+			this.input = input;
+		}
+	}
+
+	/** Marks the end of the files. */
+	protected static final Item END = new Item(null);
+
+	/**
+	 * Time accounts of one stage.
+	 */
+	protected static class Stage {
+
+		protected long busy;
+		protected long waitIn;
+		protected long waitOut;
+		protected int count;
+	}
+
+	/**
+	 * @param renderer renders the scenes
+	 * @param depth number of scenes allowed to wait between two stages
+	 */
+	public BatchRenderer(TileRenderer renderer, int depth) {
+
+		if (depth < 1)
+			throw new IllegalArgumentException("Queue depth must be positive: " + depth);
+		this.renderer = renderer;
+		this.depth = depth;
+	}
+
+	/**
+	 * List the scene files given on the command line.  Directories stand for
+	 * the XML and binary scene files they contain, in name order.
+	 * @param paths files and directories
+	 * @return the scene files
+	 */
+	public static List<String> listScenes(List<String> paths) {
+
+		List<String> result = new ArrayList<String>();
+		for (String path : paths) {
+			File file = new File(path);
+			File[] children = file.listFiles();
+			if (children == null) {
+				result.add(path);
+				continue;
+			}
+			Arrays.sort(children);
+			for (File child : children) {
+				if (child.isFile() && (child.getName().endsWith(".xml") || BinaryScene.isBinary(child)))
+					result.add(child.getPath());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Render every scene file to <file>.png, then print the report.
+	 * @param inputs the scene files
+	 * @return the number of scenes that could not be rendered
+	 */
+	public int run(List<String> inputs) throws InterruptedException {
+
+		final BlockingQueue<Item> loaded = new ArrayBlockingQueue<Item>(depth);
+		final BlockingQueue<Item> rendered = new ArrayBlockingQueue<Item>(depth);
+		final Stage[] stages = { new Stage(), new Stage(), new Stage() };
+		final List<String> files = inputs;
+
+		long startTime = System.nanoTime();
+		Thread loader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (String input : files) {
+						Item item = new Item(input);
+						long start = System.nanoTime();
+						load(item);
+						account(stages[0], item, 0, start, System.nanoTime());
+						put(loaded, item, stages[0]);
+					}
+					put(loaded, END, stages[0]);
+				} catch (InterruptedException e) {
+					// Stopped by the main thread
+				}
+			}
+		}, "batch-load");
+		Thread renderThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Item item;
+					while ((item = take(loaded, stages[1])) != END) {
+						long start = System.nanoTime();
+						render(item);
+						account(stages[1], item, 1, start, System.nanoTime());
+						put(rendered, item, stages[1]);
+					}
+					put(rendered, END, stages[1]);
+				} catch (InterruptedException e) {
+					// Stopped by the main thread
+				}
+			}
+		}, "batch-render");
+		loader.setDaemon(true);
+		renderThread.setDaemon(true);
+		loader.start();
+		renderThread.start();
+
+		List<Item> done = new ArrayList<Item>();
+		try {
+			Item item;
+			while ((item = take(rendered, stages[2])) != END) {
+				long start = System.nanoTime();
+				write(item);
+				account(stages[2], item, 2, start, System.nanoTime());
+				done.add(item);
+				System.out.println(item.error == null
+						? String.format(Locale.ROOT, "%s: load %.3f s%s, render %.3f s, write %.3f s", item.input,
+								item.nanos[0] / 1e9, item.cached ? " (cached)" : "", item.nanos[1] / 1e9,
+								item.nanos[2] / 1e9)
+						: item.input + ": " + item.error);
+			}
+		} finally {
+			loader.interrupt();
+			renderThread.interrupt();
+		}
+		long wall = System.nanoTime() - startTime;
+
+		int failed = 0;
+		for (Item item : done)
+			if (item.error != null)
+				failed++;
+		report(stages, done.size() - failed, failed, wall);
+		return failed;
+	}
+
+	/**
+	 * Load stage: parse or read the scene, and build its geometry store.
+	 */
+	protected void load(Item item) {
+
+		try {
+			File file = new File(item.input);
+			if (!file.isFile()) {
+				item.error = "No such file";
+				return;
+			}
+			String key = null;
+			if (cache != null) {
+				key = cache.key(file);
+				item.scene = cache.load(key);
+				item.cached = item.scene != null;
+			}
+			if (item.scene == null) {
+				if (BinaryScene.isBinary(file))
+					item.scene = BinaryScene.read(file);
+				else if (streamingParser)
+					item.scene = (Scene) new StreamParser().parse(item.input, Scene.class);
+				else
+					item.scene = (Scene) new Parser().parse(item.input, Scene.class);
+				if (item.scene == null) {
+					item.error = "Could not parse the scene";
+					return;
+				}
+				item.scene.setAcceleration(new GeometryStore(item.scene.getSurfaces()));
+				if (key != null)
+					cache.store(key, item.scene);
+			}
+		} catch (IOException e) {
+			item.error = String.valueOf(e.getMessage());
+			item.scene = null;
+		} catch (RuntimeException e) {
+			item.error = String.valueOf(e);
+			item.scene = null;
+		} catch (Error e) {
+			// The parser reports invalid scenes as Errors
+			item.error = String.valueOf(e.getMessage());
+			item.scene = null;
+		}
+	}
+
+	/**
+	 * Render stage.  A scene that fails to render is passed on with its error,
+	 * so that the stages after it carry on with the next scene.
+	 */
+	protected void render(Item item) {
+
+		if (item.scene == null)
+			return;
+		try {
+			renderer.renderTiles(item.scene);
+		} catch (RuntimeException e) {
+			item.error = String.valueOf(e);
+			item.scene = null;
+		} catch (Error e) {
+			// Such as running out of memory for the image
+			item.error = String.valueOf(e);
+			item.scene = null;
+		}
+	}
+
+	/**
+	 * Write stage: encode the image, then let go of the scene.
+	 */
+	protected void write(Item item) {
+
+		if (item.scene == null)
+			return;
+		item.error = writeImage(item.scene, item.input);
+		item.scene = null;
+	}
+
+	/**
+	 * Write the image of a scene to <input>.png.
+	 * @return why it could not be written, or null
+	 */
+	protected static String writeImage(Scene scene, String input) {
+
+		// Image.write reports failures only by not writing the file
+		String output = input + ".png";
+		File file = new File(output);
+		file.delete();
+		scene.getImage().write(output);
+		return file.isFile() ? null : "Could not write " + output;
+	}
+
+	/**
+	 * Render every scene file to <file>.png with all scenes sharing the render
+	 * threads through a FairScheduler, then print the timings of every job.
+	 * Files are loaded on their own thread while earlier ones render, and
+	 * images are written as their jobs complete.  Loading pauses while depth
+	 * loaded scenes wait for framebuffer memory.
+	 * @param inputs the scene files
+	 * @param priorities the priority of each file
+	 * @param maxBytes memory budget for the framebuffers being rendered
+	 * @return the number of scenes that could not be rendered
+	 */
+	public int runFair(List<String> inputs, final List<Integer> priorities, long maxBytes)
+			throws InterruptedException {
+
+		final BlockingQueue<FairScheduler.Job> finished = new LinkedBlockingQueue<FairScheduler.Job>();
+		final FairScheduler scheduler = new FairScheduler(renderer, maxBytes, new FairScheduler.Listener() {
+			public void finished(FairScheduler.Job job) {
+				finished.add(job);
+			}
+		});
+		final List<String> files = inputs;
+		final List<FairScheduler.Job> jobs = new ArrayList<FairScheduler.Job>();
+		final int[] loadFailures = new int[1];
+
+		long startTime = System.nanoTime();
+		Thread loader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < files.size(); i++) {
+						scheduler.awaitWaiting(depth);
+						Item item = new Item(files.get(i));
+						load(item);
+						if (item.error != null) {
+							System.out.println(item.input + ": " + item.error);
+							loadFailures[0]++;
+							continue;
+						}
+						FairScheduler.Job job = scheduler.submit(item.scene, item.input, priorities.get(i), null);
+						synchronized (jobs) {
+							jobs.add(job);
+						}
+					}
+				} catch (InterruptedException e) {
+					// Stopped by the main thread
+				} catch (RuntimeException e) {
+					System.out.println("Error occured while loading the batch: " + e);
+				}
+			}
+		}, "batch-load");
+		loader.setDaemon(true);
+		loader.start();
+
+		int written = 0;
+		int failed = 0;
+		try {
+			while (true) {
+				FairScheduler.Job job = finished.poll(100, TimeUnit.MILLISECONDS);
+				if (job == null) {
+					synchronized (jobs) {
+						if (!loader.isAlive() && written == jobs.size())
+							break;
+					}
+					continue;
+				}
+				String error = job.getError();
+				if (error == null && !job.isComplete())
+					error = "Stopped";
+				if (error == null)
+					error = writeImage(job.getScene(), job.getName());
+				job.release();
+				written++;
+				if (error != null)
+					failed++;
+				System.out.println(error == null
+						? String.format(Locale.ROOT, "%s: waited %.3f s, rendered in %.3f s", job.getName(),
+								job.getQueueWait() / 1e9, job.getServiceTime() / 1e9)
+						: job.getName() + ": " + error);
+			}
+		} finally {
+			loader.interrupt();
+		}
+		loader.join();
+		long wall = System.nanoTime() - startTime;
+
+		FairScheduler.printReport(jobs);
+		failed += loadFailures[0];
+		System.out.println(String.format(Locale.ROOT,
+				"Fair batch done.  %d scenes rendered, %d failed in %.3f seconds (%d threads, %d MB framebuffer budget)",
+				written - (failed - loadFailures[0]), failed, wall / 1e9, renderer.getThreads(), maxBytes >> 20));
+		return failed;
+	}
+
+	/**
+	 * Render one scene file from every camera of a list to the numbered frames
+	 * <file>.0000.png, <file>.0001.png and so on.  The scene is loaded and its
+	 * hierarchies built once.  Every view shares them, with its own copy of a
+	 * camera and its own image of the scene's size, and all views are rendered
+	 * at once through a FairScheduler.  Frames are written as they complete.
+	 * @param input the scene file
+	 * @param cameras the camera of each frame
+	 * @param maxBytes memory budget for the framebuffers being rendered
+	 * @return the number of frames that could not be rendered
+	 */
+	public int runViews(String input, List<Camera> cameras, long maxBytes) throws InterruptedException {
+
+		long startTime = System.nanoTime();
+		Item item = new Item(input);
+		load(item);
+		if (item.error != null) {
+			System.out.println(input + ": " + item.error);
+			return cameras.size();
+		}
+		long loadTime = System.nanoTime() - startTime;
+
+		final BlockingQueue<FairScheduler.Job> finished = new LinkedBlockingQueue<FairScheduler.Job>();
+		FairScheduler scheduler = new FairScheduler(renderer, maxBytes, new FairScheduler.Listener() {
+			public void finished(FairScheduler.Job job) {
+				finished.add(job);
+			}
+		});
+
+		// Images allocate their pixels when first written, so only the views
+		// being rendered take memory
+		Scene scene = item.scene;
+		Image image = scene.getImage();
+		List<FairScheduler.Job> jobs = new ArrayList<FairScheduler.Job>();
+		for (int i = 0; i < cameras.size(); i++) {
+			Scene view = scene.newView(new Image(image.getWidth(), image.getHeight()));
+			view.getCamera().set(cameras.get(i));
+			jobs.add(scheduler.submit(view, String.format(Locale.ROOT, "%s.%04d", input, i), 1, null));
+		}
+
+		int failed = 0;
+		for (int written = 0; written < jobs.size(); written++) {
+			FairScheduler.Job job = finished.take();
+			String error = job.getError();
+			if (error == null && !job.isComplete())
+				error = "Stopped";
+			if (error == null)
+				error = writeImage(job.getScene(), job.getName());
+			job.release();
+			if (error != null) {
+				failed++;
+				System.out.println(job.getName() + ": " + error);
+			}
+		}
+		long wall = System.nanoTime() - startTime;
+
+		FairScheduler.printReport(jobs);
+		System.out.println(String.format(Locale.ROOT,
+				"Views done.  %d frames rendered, %d failed in %.3f seconds (scene %s once in %.3f seconds, "
+						+ "%.3f seconds per view, %d threads)",
+				jobs.size() - failed, failed, wall / 1e9, item.cached ? "loaded from the cache" : "loaded and built",
+				loadTime / 1e9, jobs.isEmpty() ? 0 : (wall - loadTime) / 1e9 / jobs.size(), renderer.getThreads()));
+		return failed;
+	}
+
+	protected static Item take(BlockingQueue<Item> queue, Stage stage) throws InterruptedException {
+
+		long start = System.nanoTime();
+		Item item = queue.take();
+		stage.waitIn += System.nanoTime() - start;
+		return item;
+	}
+
+	protected static void put(BlockingQueue<Item> queue, Item item, Stage stage) throws InterruptedException {
+
+		long start = System.nanoTime();
+		queue.put(item);
+		stage.waitOut += System.nanoTime() - start;
+	}
+
+	protected static void account(Stage stage, Item item, int index, long start, long end) {
+
+		item.nanos[index] = end - start;
+		stage.busy += end - start;
+		stage.count++;
+	}
+
+	/**
+	 * Print the time accounts of the stages.
+	 */
+	protected void report(Stage[] stages, int rendered, int failed, long wall) {
+
+		long sequential = 0;
+		for (Stage stage : stages)
+			sequential += stage.busy;
+		System.out.println(String.format(Locale.ROOT,
+				"Batch done.  %d scenes rendered, %d failed in %.3f seconds (%.3f seconds of stage work, %.2fx overlap, "
+						+ "%d threads, depth %d)",
+				rendered, failed, wall / 1e9, sequential / 1e9, wall > 0 ? sequential / (double) wall : 0,
+				renderer.getThreads(), depth));
+		System.out.println(String.format(Locale.ROOT, "%-8s %6s %9s %6s %10s %10s", "stage", "scenes", "busy_s",
+				"util", "wait_in_s", "wait_out_s"));
+		for (int i = 0; i < stages.length; i++) {
+			Stage stage = stages[i];
+			System.out.println(String.format(Locale.ROOT, "%-8s %6d %9.3f %5.1f%% %10.3f %10.3f", STAGE_NAMES[i],
+					stage.count, stage.busy / 1e9, wall > 0 ? 100.0 * stage.busy / wall : 0, stage.waitIn / 1e9,
+					stage.waitOut / 1e9));
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package ray;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import ray.accel.GeometryStore;
+import ray.math.Color;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.shader.Lambertian;
+import ray.shader.Phong;
+import ray.shader.Shader;
+import ray.surface.Box;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * Self-contained benchmark harness for the renderer.  Every benchmark runs a
+ * number of warmup iterations followed by measured iterations of fixed
+ * duration, and reports its throughput as the mean and standard deviation over
+ * the measured iterations.
+ *
+ * Usage: java ray.Benchmark [options] [scene files]
+ *   -res WxH          override the image resolution of the scenes
+ *   -threads N        render threads for full-scene renders
+ *   -warmup N         warmup iterations (default: 3)
+ *   -iterations N     measured iterations (default: 5)
+ *   -time MS          duration of one iteration in milliseconds (default: 1000)
+ *   -only NAME        run only benchmarks whose name contains NAME
+ *   -simd on|off      use the vector intersection kernels if available
+ *   -scale N,N,...    instead of the benchmarks above, render generated scenes
+ *                     of each number of surfaces (half spheres, half boxes)
+ *   -lights K,K,...   light counts of the generated scenes (default: 1)
+ *   -layout NAME      layout of the generated scenes (default: uniform)
+ *   -seed N           seed of the generated scenes (default: 1)
+ *
+ * Without scene files every file in the scenes directory is used.
+ */
+public class Benchmark {
+
+	/** Number of rays used by the kernel benchmarks. */
+	protected static final int KERNEL_RAYS = 1 << 16;
+
+	/** Edge length of the camera ray grid used by the shading benchmarks. */
+	protected static final int SHADING_GRID = 256;
+
+	/** Results are summed here so that the JIT cannot discard the work. */
+	public static volatile double sink;
+
+	protected int warmup = 3;
+	protected int iterations = 5;
+	protected long iterationTime = 1000;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	protected int resWidth = 0;
+	protected int resHeight = 0;
+	protected String only = null;
+	protected int[] scaleSurfaces = null;
+	protected int[] scaleLights = { 1 };
+	protected String layout = "uniform";
+	protected long seed = 1;
+
+	/**
+	 * One unit of benchmarked work.
+	 */
+	protected interface Operation {
+
+		/**
+		 * Perform the work once.
+		 * @return the number of units (rays, pixels) processed
+		 */
+		long run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		Benchmark benchmark = new Benchmark();
+		ArrayList<String> scenes = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-res")) {
+				String[] size = args[++i].split("x");
+				benchmark.resWidth = Integer.parseInt(size[0]);
+				benchmark.resHeight = Integer.parseInt(size[1]);
+			} else if (args[i].equals("-threads")) {
+				benchmark.threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-warmup")) {
+				benchmark.warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-iterations")) {
+				benchmark.iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-time")) {
+				benchmark.iterationTime = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-only")) {
+				benchmark.only = args[++i];
+			} else if (args[i].equals("-simd")) {
+				GeometryStore.setVectorKernels(args[++i].equals("on"));
+			} else if (args[i].equals("-scale")) {
+				benchmark.scaleSurfaces = parseList(args[++i]);
+			} else if (args[i].equals("-lights")) {
+				benchmark.scaleLights = parseList(args[++i]);
+			} else if (args[i].equals("-layout")) {
+				benchmark.layout = args[++i];
+			} else if (args[i].equals("-seed")) {
+				benchmark.seed = Long.parseLong(args[++i]);
+			} else {
+				scenes.add(args[i]);
+			}
+		}
+
+		if (scenes.isEmpty()) {
+			String[] files = new File("scenes").list();
+			if (files != null) {
+				java.util.Arrays.sort(files);
+				for (String file : files)
+					if (file.endsWith(".xml"))
+						scenes.add("scenes" + File.separator + file);
+			}
+		}
+
+		if (benchmark.scaleSurfaces != null)
+			benchmark.runScaling();
+		else
+			benchmark.run(scenes);
+	}
+
+	protected static int[] parseList(String list) {
+
+		String[] items = list.split(",");
+		int[] result = new int[items.length];
+		for (int i = 0; i < items.length; i++)
+			result[i] = Integer.parseInt(items[i].trim());
+		return result;
+	}
+
+	/**
+	 * Run all benchmarks.
+	 * @param scenes the scene files used for the shadow, write and render benchmarks
+	 */
+	public void run(ArrayList<String> scenes) throws Exception {
+
+		System.out.println(String.format("%-24s %-28s %16s %12s  %s", "Benchmark", "Param", "Score", "Error", "Units"));
+
+		benchmarkSphereIntersect();
+		benchmarkBoxIntersect();
+		benchmarkShading("shade.lambertian", new Lambertian());
+		Phong phong = new Phong();
+		phong.setExponent(50);
+		benchmarkShading("shade.phong", phong);
+
+		Parser parser = new Parser();
+		TileRenderer renderer = new TileRenderer(TileRenderer.DEFAULT_TILE_SIZE, threads);
+		for (String filename : scenes) {
+			Scene scene = loadScene(parser, filename);
+			String name = new File(filename).getName();
+			benchmarkShadow(name, scene);
+			benchmarkRender(name, scene, renderer);
+			benchmarkWrite(name, scene);
+		}
+		renderer.shutdown();
+	}
+
+	/**
+	 * Render generated scenes of every combination of surface and light
+	 * count, and print the time to build the acceleration structure, the time
+	 * of a render and the camera rays traced per second.
+	 */
+	public void runScaling() throws Exception {
+
+		System.out.println(String.format("%-10s %10s %7s %10s %11s %14s %12s", "Layout", "Surfaces", "Lights",
+				"Build (s)", "Render (s)", "Rays/s", "Error"));
+
+		TileRenderer renderer = new TileRenderer(TileRenderer.DEFAULT_TILE_SIZE, threads);
+		for (int surfaces : scaleSurfaces) {
+			for (int lights : scaleLights) {
+				SceneGenerator generator = new SceneGenerator();
+				generator.setLayout(layout);
+				generator.setSeed(seed);
+				generator.setSpheres(surfaces - surfaces / 2);
+				generator.setBoxes(surfaces / 2);
+				generator.setLights(lights);
+				if (resWidth > 0)
+					generator.setResolution(resWidth, resHeight);
+				final Scene scene = generator.generate();
+
+				long startTime = System.nanoTime();
+				scene.setAcceleration(new GeometryStore(scene.getSurfaces()));
+				double buildTime = (System.nanoTime() - startTime) / 1e9;
+
+				final TileRenderer r = renderer;
+				double[] score = score(new Operation() {
+					public long run() {
+						r.renderTiles(scene);
+						Camera camera = scene.getCamera();
+						return (long) camera.getRenderWidth() * camera.getRenderHeight();
+					}
+				});
+				Camera camera = scene.getCamera();
+				double renderTime = (double) camera.getRenderWidth() * camera.getRenderHeight() / score[0];
+				System.out.println(String.format("%-10s %10d %7d %10.3f %11.3f %14.1f %12.1f", layout, surfaces,
+						lights, buildTime, renderTime, score[0], score[1]));
+			}
+		}
+		renderer.shutdown();
+	}
+
+	/**
+	 * Parse a scene and apply the resolution override.
+	 */
+	protected Scene loadScene(Parser parser, String filename) {
+
+		Scene scene = (Scene) parser.parse(filename, Scene.class);
+		if (resWidth > 0)
+			scene.setImage(new Image(resWidth, resHeight));
+		return scene;
+	}
+
+	/**
+	 * Rays through random points near the origin, about half of which hit a
+	 * unit sphere or box centered there.
+	 */
+	protected static void makeRays(double[] origins, double[] directions) {
+
+		Random random = new Random(42);
+		for (int i = 0; i < origins.length; i += 3) {
+			Vector3 o = new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			o.normalize();
+			o.scale(5);
+			Vector3 d = new Vector3(2 * random.nextDouble() - 1 - o.x, 2 * random.nextDouble() - 1 - o.y,
+					2 * random.nextDouble() - 1 - o.z);
+			d.normalize();
+			origins[i] = o.x; origins[i + 1] = o.y; origins[i + 2] = o.z;
+			directions[i] = d.x; directions[i + 1] = d.y; directions[i + 2] = d.z;
+		}
+	}
+
+	/**
+	 * Measures an intersection kernel on a fixed set of rays.
+	 */
+	protected void benchmarkIntersect(String name, final Surface surface) throws Exception {
+
+		final double[] origins = new double[3 * KERNEL_RAYS];
+		final double[] directions = new double[3 * KERNEL_RAYS];
+		makeRays(origins, directions);
+		final IntersectionRecord record = new IntersectionRecord();
+		final Point3 origin = new Point3();
+		final Vector3 direction = new Vector3();
+
+		measure(name, "", "rays/s", new Operation() {
+			public long run() {
+				double sum = 0;
+				for (int i = 0; i < origins.length; i += 3) {
+					origin.set(origins[i], origins[i + 1], origins[i + 2]);
+					direction.set(directions[i], directions[i + 1], directions[i + 2]);
+					if (surface.intersect(record, origin, direction, 0, Double.POSITIVE_INFINITY))
+						sum += record.t;
+				}
+				sink += sum;
+				return KERNEL_RAYS;
+			}
+		});
+	}
+
+	protected void benchmarkSphereIntersect() throws Exception {
+
+		benchmarkIntersect("intersect.sphere", new Sphere());
+	}
+
+	protected void benchmarkBoxIntersect() throws Exception {
+
+		Box box = new Box();
+		box.setMinPt(new Point3(-1, -1, -1));
+		box.setMaxPt(new Point3(1, 1, 1));
+		benchmarkIntersect("intersect.box", box);
+	}
+
+	/**
+	 * Measures calculateColor for camera rays that all hit a sphere with the
+	 * given shader, lit by two lights.
+	 */
+	protected void benchmarkShading(String name, Shader shader) throws Exception {
+
+		Scene scene = new Scene();
+		Camera camera = new Camera();
+		camera.setViewPoint(new Point3(0, 0, 5));
+		camera.setprojDistance(5);
+		camera.setViewWidth(0.5);
+		camera.setViewHeight(0.5);
+		scene.setCamera(camera);
+		scene.setImage(new Image(SHADING_GRID, SHADING_GRID));
+		Sphere sphere = new Sphere();
+		sphere.setShader(shader);
+		scene.addSurface(sphere);
+		for (int i = 0; i < 2; i++) {
+			Light light = new Light();
+			light.setPosition(new Point3(3 - 6 * i, 4, 5));
+			light.setIntensity(new Color(0.6, 0.6, 0.6));
+			scene.addLight(light);
+		}
+		camera.initView(SHADING_GRID, SHADING_GRID);
+
+		final RenderContext ctx = new RenderContext(scene);
+		final Camera cam = camera;
+		final Vector3 direction = new Vector3();
+		measure(name, "", "rays/s", new Operation() {
+			public long run() {
+				double sum = 0;
+				for (int y = 0; y < SHADING_GRID; y++) {
+					for (int x = 0; x < SHADING_GRID; x++) {
+						cam.getRayDirection(direction, x, y);
+						sum += RayTracer.calculateColor(ctx, cam.viewPoint, direction).g;
+					}
+				}
+				sink += sum;
+				return SHADING_GRID * SHADING_GRID;
+			}
+		});
+	}
+
+	/**
+	 * Measures shadow rays from the points seen by a grid of camera rays
+	 * towards every light of the scene.
+	 */
+	protected void benchmarkShadow(String name, Scene scene) throws Exception {
+
+		Camera camera = scene.getCamera();
+		camera.initView(SHADING_GRID, SHADING_GRID);
+		final RenderContext ctx = new RenderContext(scene);
+
+		// Collect the visible points
+		ArrayList<Point3> points = new ArrayList<Point3>();
+		Vector3 direction = new Vector3();
+		for (int y = 0; y < camera.getRenderHeight(); y++) {
+			for (int x = 0; x < camera.getRenderWidth(); x++) {
+				camera.getRayDirection(direction, x, y);
+				if (ctx.query.closestHit(ctx.hit, camera.viewPoint, direction, 0, Double.POSITIVE_INFINITY))
+					points.add(new Point3(ctx.hit.location));
+			}
+		}
+
+		final Point3[] hits = points.toArray(new Point3[points.size()]);
+		final ArrayList<Light> lights = scene.getLights();
+		if (hits.length == 0 || lights.isEmpty())
+			return;
+
+		measure("shadow", name, "rays/s", new Operation() {
+			public long run() {
+				int shadowed = 0;
+				for (int i = 0; i < hits.length; i++)
+					for (int l = 0; l < lights.size(); l++)
+						if (RayTracer.isShadowed(ctx, l, hits[i], lights.get(l).position))
+							shadowed++;
+				sink += shadowed;
+				return (long) hits.length * lights.size();
+			}
+		});
+	}
+
+	/**
+	 * Measures Image.write on the scene's image.
+	 */
+	protected void benchmarkWrite(String name, Scene scene) throws Exception {
+
+		final Image image = scene.getImage();
+		final File file = File.createTempFile("benchmark", ".png");
+		file.deleteOnExit();
+		measure("image.write", name + param(image), "pixels/s", new Operation() {
+			public long run() {
+				image.write(file.getPath());
+				return (long) image.getWidth() * image.getHeight();
+			}
+		});
+		file.delete();
+	}
+
+	/**
+	 * Measures a complete render of the scene.  The score counts camera rays.
+	 */
+	protected void benchmarkRender(String name, final Scene scene, final TileRenderer renderer) throws Exception {
+
+		final Image image = scene.getImage();
+		measure("render", name + param(image), "rays/s", new Operation() {
+			public long run() {
+				renderer.renderTiles(scene);
+				Camera camera = scene.getCamera();
+				return (long) camera.getRenderWidth() * camera.getRenderHeight();
+			}
+		});
+	}
+
+	protected static String param(Image image) {
+
+		return "@" + image.getWidth() + "x" + image.getHeight();
+	}
+
+	/**
+	 * Run the warmup and measured iterations of one benchmark and print the score.
+	 * @param name the benchmark name
+	 * @param param the benchmark parameters
+	 * @param units the name of the units returned by the operation, per second
+	 * @param op the work to measure
+	 */
+	protected void measure(String name, String param, String units, Operation op) throws Exception {
+
+		if (only != null && !(name + " " + param).contains(only))
+			return;
+
+		double[] score = score(op);
+		System.out.println(String.format("%-24s %-28s %16.1f %12.1f  %s", name, param, score[0], score[1], units));
+	}
+
+	/**
+	 * Run the warmup and measured iterations of one benchmark.
+	 * @param op the work to measure
+	 * @return the mean and standard deviation of the units processed per second
+	 */
+	protected double[] score(Operation op) throws Exception {
+
+		for (int i = 0; i < warmup; i++)
+			iteration(op);
+
+		double[] scores = new double[iterations];
+		double mean = 0;
+		for (int i = 0; i < iterations; i++) {
+			scores[i] = iteration(op);
+			mean += scores[i] / iterations;
+		}
+		double variance = 0;
+		for (int i = 0; i < iterations; i++)
+			variance += (scores[i] - mean) * (scores[i] - mean) / Math.max(1, iterations - 1);
+
+		return new double[] { mean, Math.sqrt(variance) };
+	}
+
+	/**
+	 * Run the operation repeatedly for one iteration.
+	 * @return the number of units processed per second
+	 */
+	protected double iteration(Operation op) throws Exception {
+
+		long units = 0;
+		long start = System.nanoTime();
+		long end = start + iterationTime * 1000000L;
+		long now;
+		do {
+			units += op.run();
+			now = System.nanoTime();
+		} while (now < end);
+		return units / ((now - start) / 1e9);
+	}
+}
@@ -0,0 +1,432 @@
+package ray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import ray.math.Color;
+import ray.math.Tuple3;
+import ray.shader.Lambertian;
+import ray.shader.Phong;
+import ray.shader.Shader;
+import ray.surface.Box;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * Compact binary scene format.  Everything is little-endian, and every array
+ * of doubles starts at a multiple of 8 bytes so it can be read in bulk from a
+ * memory-mapped file:
+ *
+ *   int      magic "RTSC", version
+ *   double   camera view point, view direction, view up, projection normal
+ *            (3 each), view width, view height, projection distance
+ *   int      image width, image height
+ *   int      shader count, then per shader its kind and whether it was
+ *            declared in the scene; padded to 8 bytes
+ *   double   per shader: diffuse color, specular color, exponent
+ *   int      light count; padded to 8 bytes
+ *   double   per light: position, intensity
+ *   int      surface count, sphere count, box count; padded to 8 bytes
+ *   int      per surface: kind; then per surface: shader index
+ *            (in scene order); padded to 8 bytes
+ *   double   sphere columns: center x, y, z, radius
+ *   double   box columns: min x, y, z, max x, y, z
+ *
+ * Only the shader and surface types of this renderer can be stored.
+ *
+ * Usage: java ray.BinaryScene scene.xml [scene.rtb]
+ */
+public class BinaryScene {
+
+	/** "RTSC" as read little-endian. */
+	public static final int MAGIC = 0x43535452;
+	public static final int VERSION = 1;
+
+	/* Shader kinds. */
+	protected static final int DEFAULT_SHADER = 0;
+	protected static final int LAMBERTIAN = 1;
+	protected static final int PHONG = 2;
+
+	/* Surface kinds. */
+	protected static final int SPHERE = 0;
+	protected static final int BOX = 1;
+
+	/**
+	 * Convert an XML scene to the binary format.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.out.println("Usage: java ray.BinaryScene scene.xml [scene.rtb]");
+			return;
+		}
+		String output = args.length > 1 ? args[1] : args[0].replaceFirst("\\.xml$", "") + ".rtb";
+
+		long startTime = System.currentTimeMillis();
+		Scene scene = (Scene) new StreamParser().parse(args[0], Scene.class);
+		if (scene == null)
+			return;
+		long size = write(scene, new File(output));
+		System.out.println("Wrote " + output + ": " + scene.getSurfaces().size() + " surfaces, " + size
+				+ " bytes in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+	}
+
+	/**
+	 * Check whether a file is a binary scene.
+	 * @param file the file to check
+	 * @return true if it starts with the binary scene magic number
+	 */
+	public static boolean isBinary(File file) {
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return raf.length() >= 4 && Integer.reverseBytes(raf.readInt()) == MAGIC;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Check whether a scene can be written in the binary format, which holds
+	 * only the shader and surface types of this renderer.
+	 * @param scene the scene to check
+	 * @return true if write would accept the scene
+	 */
+	public static boolean canWrite(Scene scene) {
+
+		for (Shader shader : scene.getShaders())
+			if (shader.getClass() != Lambertian.class && shader.getClass() != Phong.class)
+				return false;
+		for (Surface surface : scene.getSurfaces()) {
+			if (surface.getClass() != Sphere.class && surface.getClass() != Box.class)
+				return false;
+			Class<?> shaderClass = surface.getShader().getClass();
+			if (shaderClass != Lambertian.class && shaderClass != Phong.class)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write a scene in the binary format.  The file is left alone if the scene
+	 * cannot be written, and deleted if writing it fails.
+	 * @param scene the scene to write
+	 * @param file the output file
+	 * @return the size of the file in bytes
+	 * @throws IllegalArgumentException if canWrite rejects the scene
+	 */
+	public static long write(Scene scene, File file) throws IOException {
+
+		if (!canWrite(scene))
+			throw new IllegalArgumentException("The scene holds surfaces or shaders that cannot be stored in a binary scene");
+		boolean written = false;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			long size = write(scene, raf.getChannel(), 0);
+			written = true;
+			return size;
+		} finally {
+			raf.close();
+			if (!written)
+				file.delete();
+		}
+	}
+
+	/**
+	 * Write a scene in the binary format into part of a file.
+	 * @param scene the scene to write
+	 * @param channel the output file
+	 * @param position offset in the file at which the scene starts
+	 * @return the number of bytes written
+	 */
+	public static long write(Scene scene, FileChannel channel, long position) throws IOException {
+
+		// The shader table holds the declared shaders and then any others in use
+		ArrayList<Shader> shaders = new ArrayList<Shader>();
+		IdentityHashMap<Shader, Integer> shaderIndex = new IdentityHashMap<Shader, Integer>();
+		for (Shader shader : scene.getShaders())
+			if (!shaderIndex.containsKey(shader)) {
+				shaderIndex.put(shader, shaders.size());
+				shaders.add(shader);
+			}
+		int declared = shaders.size();
+		ArrayList<Surface> surfaces = scene.getSurfaces();
+		int spheres = 0;
+		for (Surface surface : surfaces) {
+			if (!shaderIndex.containsKey(surface.getShader())) {
+				shaderIndex.put(surface.getShader(), shaders.size());
+				shaders.add(surface.getShader());
+			}
+			if (surface.getClass() == Sphere.class)
+				spheres++;
+			else if (surface.getClass() != Box.class)
+				throw new IllegalArgumentException("Surfaces of type " + surface.getClass().getName()
+						+ " cannot be stored in a binary scene");
+		}
+		int boxes = surfaces.size() - spheres;
+		ArrayList<Light> lights = scene.getLights();
+
+		long size = 8 + 15 * 8 + 8
+				+ pad(4 + 8L * shaders.size()) + 7 * 8L * shaders.size()
+				+ 8 + 6 * 8L * lights.size()
+				+ pad(12 + 8L * surfaces.size())
+				+ 4 * 8L * spheres + 6 * 8L * boxes;
+
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size)
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(MAGIC).putInt(VERSION);
+
+		Camera camera = scene.getCamera();
+		putTuple(buffer, camera.viewPoint);
+		putTuple(buffer, camera.viewDir);
+		putTuple(buffer, camera.viewUp);
+		putTuple(buffer, camera.projNormal);
+		buffer.putDouble(camera.viewWidth).putDouble(camera.viewHeight).putDouble(camera.projDistance);
+
+		Image image = scene.getImage();
+		buffer.putInt(image.getWidth()).putInt(image.getHeight());
+
+		buffer.putInt(shaders.size());
+		for (int i = 0; i < shaders.size(); i++) {
+			Shader shader = shaders.get(i);
+			int kind;
+			if (shader == Shader.DEFAULT_MATERIAL)
+				kind = DEFAULT_SHADER;
+			else if (shader.getClass() == Lambertian.class)
+				kind = LAMBERTIAN;
+			else if (shader.getClass() == Phong.class)
+				kind = PHONG;
+			else
+				throw new IllegalArgumentException("Shaders of type " + shader.getClass().getName()
+						+ " cannot be stored in a binary scene");
+			buffer.putInt(kind).putInt(i < declared ? 1 : 0);
+		}
+		align(buffer);
+		for (Shader shader : shaders) {
+			if (shader.getClass() == Phong.class) {
+				Phong phong = (Phong) shader;
+				putColor(buffer, phong.diffuseColor);
+				putColor(buffer, phong.specularColor);
+				buffer.putDouble(phong.exponent);
+			} else {
+				putColor(buffer, ((Lambertian) shader).diffuseColor);
+				buffer.putDouble(0).putDouble(0).putDouble(0).putDouble(0);
+			}
+		}
+
+		buffer.putInt(lights.size());
+		align(buffer);
+		for (Light light : lights) {
+			putTuple(buffer, light.position);
+			putColor(buffer, light.intensity);
+		}
+
+		buffer.putInt(surfaces.size()).putInt(spheres).putInt(boxes);
+		for (Surface surface : surfaces)
+			buffer.putInt(surface.getClass() == Sphere.class ? SPHERE : BOX);
+		for (Surface surface : surfaces)
+			buffer.putInt(shaderIndex.get(surface.getShader()));
+		align(buffer);
+
+		DoubleBuffer columns = buffer.asDoubleBuffer();
+		int start = buffer.position();
+		for (int k = 0; k < 4; k++)
+			for (Surface surface : surfaces)
+				if (surface.getClass() == Sphere.class) {
+					Sphere sphere = (Sphere) surface;
+					columns.put(k == 0 ? sphere.center.x : k == 1 ? sphere.center.y
+							: k == 2 ? sphere.center.z : sphere.radius);
+				}
+		for (int k = 0; k < 6; k++)
+			for (Surface surface : surfaces)
+				if (surface.getClass() == Box.class) {
+					Box box = (Box) surface;
+					Tuple3 corner = k < 3 ? box.minPt : box.maxPt;
+					columns.put(k % 3 == 0 ? corner.x : k % 3 == 1 ? corner.y : corner.z);
+				}
+		buffer.position(start + 8 * columns.position());
+		if (buffer.hasRemaining())
+			throw new IllegalStateException("Binary scene size mismatch");
+		return size;
+	}
+
+	/**
+	 * Load a scene in the binary format.  The file is memory mapped and the
+	 * primitive columns are read in bulk, so no numbers are parsed.
+	 * @param file the binary scene file
+	 * @return the scene
+	 */
+	public static Scene read(File file) throws IOException {
+
+		ByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+					.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+		return read(buffer);
+	}
+
+	/**
+	 * Load a scene in the binary format from a little-endian buffer, starting
+	 * at its position.  The position is left just past the scene.
+	 * @param buffer the buffer holding the scene
+	 * @return the scene
+	 */
+	public static Scene read(ByteBuffer buffer) throws IOException {
+
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+			throw new IOException("Not a binary scene");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary scene version " + version);
+
+		Scene scene = new Scene();
+		Camera camera = new Camera();
+		getTuple(buffer, camera.viewPoint);
+		getTuple(buffer, camera.viewDir);
+		getTuple(buffer, camera.viewUp);
+		getTuple(buffer, camera.projNormal);
+		camera.setViewWidth(buffer.getDouble());
+		camera.setViewHeight(buffer.getDouble());
+		camera.setprojDistance(buffer.getDouble());
+		scene.setCamera(camera);
+
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		scene.setImage(new Image(width, height));
+
+		Shader[] shaders = new Shader[buffer.getInt()];
+		int[] shaderKind = new int[shaders.length];
+		boolean[] shaderDeclared = new boolean[shaders.length];
+		for (int i = 0; i < shaders.length; i++) {
+			shaderKind[i] = buffer.getInt();
+			shaderDeclared[i] = buffer.getInt() != 0;
+		}
+		align(buffer);
+		for (int i = 0; i < shaders.length; i++) {
+			Color diffuse = getColor(buffer, new Color());
+			Color specular = getColor(buffer, new Color());
+			double exponent = buffer.getDouble();
+			if (shaderKind[i] == DEFAULT_SHADER) {
+				shaders[i] = Shader.DEFAULT_MATERIAL;
+			} else if (shaderKind[i] == LAMBERTIAN) {
+				Lambertian lambertian = new Lambertian();
+				lambertian.setDiffuseColor(diffuse);
+				shaders[i] = lambertian;
+			} else if (shaderKind[i] == PHONG) {
+				Phong phong = new Phong();
+				phong.setDiffuseColor(diffuse);
+				phong.setSpecularColor(specular);
+				phong.setExponent(exponent);
+				shaders[i] = phong;
+			} else {
+				throw new IOException("Unknown shader kind " + shaderKind[i]);
+			}
+			if (shaderDeclared[i])
+				scene.addShader(shaders[i]);
+		}
+
+		int lightCount = buffer.getInt();
+		align(buffer);
+		for (int i = 0; i < lightCount; i++) {
+			Light light = new Light();
+			getTuple(buffer, light.position);
+			getColor(buffer, light.intensity);
+			scene.addLight(light);
+		}
+
+		int surfaceCount = buffer.getInt();
+		int sphereCount = buffer.getInt();
+		int boxCount = buffer.getInt();
+		int[] kinds = new int[surfaceCount];
+		int[] shaderIndex = new int[surfaceCount];
+		buffer.asIntBuffer().get(kinds).get(shaderIndex);
+		buffer.position(buffer.position() + 8 * surfaceCount);
+		align(buffer);
+
+		DoubleBuffer columns = buffer.asDoubleBuffer();
+		double[][] sphereColumns = new double[4][sphereCount];
+		for (double[] column : sphereColumns)
+			columns.get(column);
+		double[][] boxColumns = new double[6][boxCount];
+		for (double[] column : boxColumns)
+			columns.get(column);
+		buffer.position(buffer.position() + 8 * columns.position());
+
+		int sphere = 0;
+		int box = 0;
+		for (int i = 0; i < surfaceCount; i++) {
+			Surface surface;
+			if (kinds[i] == SPHERE) {
+				Sphere s = new Sphere();
+				s.center.set(sphereColumns[0][sphere], sphereColumns[1][sphere], sphereColumns[2][sphere]);
+				s.setRadius(sphereColumns[3][sphere]);
+				sphere++;
+				surface = s;
+			} else if (kinds[i] == BOX) {
+				Box b = new Box();
+				b.minPt.set(boxColumns[0][box], boxColumns[1][box], boxColumns[2][box]);
+				b.maxPt.set(boxColumns[3][box], boxColumns[4][box], boxColumns[5][box]);
+				box++;
+				surface = b;
+			} else {
+				throw new IOException("Unknown surface kind " + kinds[i]);
+			}
+			surface.setShader(shaders[shaderIndex[i]]);
+			scene.addSurface(surface);
+		}
+
+		return scene;
+	}
+
+	protected static long pad(long bytes) {
+
+		return (bytes + 7) & ~7L;
+	}
+
+	protected static void align(ByteBuffer buffer) {
+
+		buffer.position((int) pad(buffer.position()));
+	}
+
+	protected static void putTuple(ByteBuffer buffer, Tuple3 t) {
+
+		buffer.putDouble(t.x).putDouble(t.y).putDouble(t.z);
+	}
+
+	protected static void putColor(ByteBuffer buffer, Color c) {
+
+		buffer.putDouble(c.r).putDouble(c.g).putDouble(c.b);
+	}
+
+	protected static void getTuple(ByteBuffer buffer, Tuple3 t) {
+
+		t.x = buffer.getDouble();
+		t.y = buffer.getDouble();
+		t.z = buffer.getDouble();
+	}
+
+	protected static Color getColor(ByteBuffer buffer, Color c) {
+
+		c.r = buffer.getDouble();
+		c.g = buffer.getDouble();
+		c.b = buffer.getDouble();
+		return c;
+	}
+}
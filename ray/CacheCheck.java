@@ -0,0 +1,185 @@
+package ray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the SceneCache in a scratch directory, which is deleted afterwards.
+ *
+ * - round trip: every scene file stored and loaded again gives the same
+ *   scene, summed up and rendered as by ParserCheck.
+ * - key: a scene file with one byte changed has a different key, and misses.
+ * - corruption: an entry with a flipped body byte, a truncated entry and an
+ *   entry with a damaged header are each refused and deleted, and the scene
+ *   can then be stored and loaded again.
+ * - eviction: with room for three entries, storing a fourth evicts the
+ *   entry used least recently, not the one stored first.
+ *
+ * Usage: java ray.CacheCheck [scene files]
+ *
+ * Without scene files every XML file in the scenes directory is used.  The
+ * exit status is 1 if any check fails.
+ */
+public class CacheCheck {
+
+	protected final List<String> files;
+	protected final File directory;
+	protected int failures;
+
+	protected CacheCheck(List<String> files, File directory) {
+
+		this.files = files;
+		this.directory = directory;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		ArrayList<String> files = new ArrayList<String>();
+		for (String arg : args)
+			files.add(arg);
+		if (files.isEmpty()) {
+			File[] scenes = new File("scenes").listFiles();
+			if (scenes == null) {
+				System.out.println("No scene files given and no scenes directory found");
+				System.exit(1);
+			}
+			Arrays.sort(scenes);
+			for (File scene : scenes)
+				if (scene.getName().endsWith(".xml"))
+					files.add(scene.getPath());
+		}
+
+		File directory = Files.createTempDirectory("cachecheck").toFile();
+		CacheCheck check = new CacheCheck(files, directory);
+		try {
+			check.checkRoundTrip();
+			check.checkKey();
+			check.checkCorruption();
+			check.checkEviction();
+		} finally {
+			delete(directory);
+		}
+		System.out.println(check.failures == 0 ? "All checks passed" : check.failures + " checks failed");
+		System.exit(check.failures == 0 ? 0 : 1);
+	}
+
+	protected void checkRoundTrip() throws IOException {
+
+		SceneCache cache = new SceneCache(new File(directory, "roundtrip"), Long.MAX_VALUE);
+		int matched = 0;
+		for (String file : files) {
+			String key = cache.key(new File(file));
+			Scene scene = parse(file);
+			if (!cache.store(key, scene))
+				continue;
+			Scene loaded = cache.load(key);
+			if (loaded != null && ParserCheck.summarize(loaded).equals(ParserCheck.summarize(parse(file))))
+				matched++;
+		}
+		report("roundtrip", matched == files.size(), matched + " of " + files.size() + " scenes");
+	}
+
+	protected void checkKey() throws IOException {
+
+		SceneCache cache = new SceneCache(new File(directory, "key"), Long.MAX_VALUE);
+		File original = new File(files.get(0));
+		File edited = new File(directory, "edited.xml");
+		byte[] bytes = Files.readAllBytes(original.toPath());
+		bytes[bytes.length - 1] ^= ' ' ^ '\n';
+		Files.write(edited.toPath(), bytes);
+
+		String key = cache.key(original);
+		cache.store(key, parse(original.getPath()));
+		String editedKey = cache.key(edited);
+		boolean ok = !editedKey.equals(key) && cache.load(editedKey) == null && cache.load(key) != null;
+		report("key", ok, "edited file misses the cache");
+	}
+
+	protected void checkCorruption() throws IOException {
+
+		SceneCache cache = new SceneCache(new File(directory, "corrupt"), Long.MAX_VALUE);
+		String file = files.get(0);
+		String key = cache.key(new File(file));
+		File entry = cache.entry(key);
+		boolean ok = true;
+		String[] damages = { "body byte", "truncated", "header" };
+		for (String damage : damages) {
+			cache.store(key, parse(file));
+			RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+			try {
+				long position = damage.equals("header") ? 0 : raf.length() / 2;
+				if (damage.equals("truncated")) {
+					raf.setLength(position);
+				} else {
+					raf.seek(position);
+					int b = raf.read();
+					raf.seek(position);
+					raf.write(b ^ 0x40);
+				}
+			} finally {
+				raf.close();
+			}
+			boolean refused = cache.load(key) == null && !entry.exists();
+			if (!refused)
+				System.out.println("Damaged entry (" + damage + ") was not refused");
+			ok &= refused;
+		}
+		cache.store(key, parse(file));
+		ok &= cache.load(key) != null;
+		report("corruption", ok, String.join(", ", damages) + " refused and deleted");
+	}
+
+	protected void checkEviction() throws IOException {
+
+		File dir = new File(directory, "evict");
+		String file = files.get(0);
+		String[] keys = new String[4];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = String.format("%064x", i + 1);
+
+		// Measure an entry first, then allow three of them
+		SceneCache probe = new SceneCache(dir, Long.MAX_VALUE);
+		probe.store(keys[0], parse(file));
+		long entryBytes = probe.entry(keys[0]).length();
+		SceneCache cache = new SceneCache(dir, 3 * entryBytes);
+		for (int i = 1; i < 3; i++)
+			cache.store(keys[i], parse(file));
+
+		// Stored in the order 0, 1, 2, then 0 is used again
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 3; i++)
+			cache.entry(keys[i]).setLastModified(now - 30000 + 10000 * i);
+		cache.load(keys[0]);
+		cache.store(keys[3], parse(file));
+
+		boolean ok = cache.entry(keys[0]).exists() && !cache.entry(keys[1]).exists() && cache.entry(keys[2]).exists()
+				&& cache.entry(keys[3]).exists();
+		report("eviction", ok, "least recently used entry evicted");
+	}
+
+	protected static Scene parse(String file) {
+
+		return (Scene) new Parser().parse(file, Scene.class);
+	}
+
+	protected void report(String name, boolean ok, String detail) {
+
+		if (!ok)
+			failures++;
+		System.out.println(String.format("%-10s %-6s %s", name, ok ? "ok" : "FAILED", detail));
+	}
+
+	protected static void delete(File file) {
+
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
@@ -34,4 +34,97 @@ public class Camera {
 	protected double projDistance = 1.0;
 	public void setprojDistance(double projDistance) { this.projDistance = projDistance; }
 	
+	/*
+	 * Derived values used for ray generation.  They are computed once by initView
+	 * and only read afterwards, so any number of render threads may share them.
+	 */
+	
+	/** Center of the image plane. */
+	protected final Point3 planeCenterPoint = new Point3();
+	
+	/** Image plane axes: plane = planeCenterPoint + A*planeU + B*planeV */
+	protected final Vector3 planeU = new Vector3();
+	protected final Vector3 planeV = new Vector3();
+	
+	/** Half the image size in pixels. */
+	protected int halfWidth;
+	protected int halfHeight;
+	
+	/**
+	 * Copy the parameters of another camera.  The derived values are not
+	 * copied; initView must be called again.
+	 * @param other the camera to copy
+	 */
+	public void set(Camera other) {
+		
+		viewPoint.set(other.viewPoint);
+		viewDir.set(other.viewDir);
+		viewUp.set(other.viewUp);
+		projNormal.set(other.projNormal);
+		viewWidth = other.viewWidth;
+		viewHeight = other.viewHeight;
+		projDistance = other.projDistance;
+	}
+	
+	/**
+	 * Compute the image plane for an image of the given size.  Must be called
+	 * before getRayDirection.
+	 * @param pixelWidth width of the output image in pixels
+	 * @param pixelHeight height of the output image in pixels
+	 */
+	public void initView(int pixelWidth, int pixelHeight) {
+		
+		Vector3 dir = new Vector3(viewDir);
+		dir.normalize();
+		
+		Vector3 up = new Vector3(viewUp);
+		up.normalize();
+		
+		Vector3 normal = new Vector3(projNormal);
+		normal.normalize();
+		
+		planeCenterPoint.set(viewPoint);
+		planeCenterPoint.scaleAdd(projDistance, dir);
+		
+		planeV.cross(up, normal);
+		planeV.normalize();
+		planeU.cross(normal, planeV);
+		planeV.normalize();
+		
+		halfWidth = pixelWidth / 2;
+		halfHeight = pixelHeight / 2;
+	}
+	
+	/**
+	 * @return the number of pixel columns covered by the image plane
+	 */
+	public int getRenderWidth() { return 2 * halfWidth; }
+	
+	/**
+	 * @return the number of pixel rows covered by the image plane
+	 */
+	public int getRenderHeight() { return 2 * halfHeight; }
+	
+	/**
+	 * Compute the normalized direction of the camera ray through pixel (x, y).
+	 * @param outDir the direction of the ray
+	 * @param x pixel column, 0 <= x < getRenderWidth()
+	 * @param y pixel row, 0 <= y < getRenderHeight()
+	 */
+	public void getRayDirection(Vector3 outDir, int x, int y) {
+		
+		double a = (double) (x - halfWidth) / (double) halfWidth * viewWidth;
+		double b = (double) (y - halfHeight) / (double) halfHeight * viewHeight;
+		
+		double px = planeCenterPoint.x + a * planeV.x;
+		double py = planeCenterPoint.y + a * planeV.y;
+		double pz = planeCenterPoint.z + a * planeV.z;
+		px += b * planeU.x;
+		py += b * planeU.y;
+		pz += b * planeU.z;
+		
+		outDir.set(px - viewPoint.x, py - viewPoint.y, pz - viewPoint.z);
+		outDir.normalize();
+	}
+	
 }
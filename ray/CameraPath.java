@@ -0,0 +1,76 @@
+package ray;
+
+import java.util.ArrayList;
+
+import ray.math.Vector3;
+
+/**
+ * A list of cameras viewing the same scene, such as the frames of a turntable
+ * or a camera sweep.  It is read from an XML file holding one <camera> element
+ * per view, written as in a scene file:
+ *
+ * <views>
+ *   <camera>
+ *     <viewPoint>10 4.2 6</viewPoint>
+ *     <viewDir>-2.5 -1 -3</viewDir>
+ *     <viewUp>0 1 0</viewUp>
+ *     <projDistance>2</projDistance>
+ *     <viewWidth>1.5</viewWidth>
+ *     <viewHeight>1.5</viewHeight>
+ *   </camera>
+ *   ...
+ * </views>
+ *
+ * A camera without a projNormal has its image plane facing it, with the
+ * normal opposite to its viewDir.  Other values left out take the defaults of
+ * Camera, not those of the scene's camera.
+ */
+public class CameraPath {
+
+	/**
+	 * A camera read from the file, which knows whether its projection normal
+	 * was given.
+	 */
+	public static class View extends Camera {
+
+		protected boolean hasProjNormal;
+
+		public void setProjNormal(Vector3 projNormal) {
+
+			super.setProjNormal(projNormal);
+			hasProjNormal = true;
+		}
+	}
+
+	protected final ArrayList<Camera> cameras = new ArrayList<Camera>();
+	public ArrayList<Camera> getCameras() { return cameras; }
+
+	/**
+	 * Add a camera once all of its values have been read.
+	 */
+	public void addCamera(View camera) {
+
+		if (!camera.hasProjNormal) {
+			Vector3 normal = new Vector3(camera.viewDir);
+			normal.scale(-1);
+			camera.setProjNormal(normal);
+		}
+		cameras.add(camera);
+	}
+
+	/**
+	 * Read a list of cameras.
+	 * @param filename the XML file
+	 * @return the cameras, or null if the file could not be parsed
+	 */
+	public static CameraPath read(String filename) {
+
+		try {
+			return (CameraPath) new Parser().parse(filename, CameraPath.class);
+		} catch (Error e) {
+			// The parser reports invalid elements as Errors
+			System.out.println("Error occured while parsing " + filename + ": " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package ray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * On-disk state of a render in progress, so that an interrupted render can be
+ * resumed.  The file holds a header identifying the render, one byte per tile
+ * recording whether the tile is finished, and the raw float framebuffer:
+ *
+ *   int    magic, version
+ *   int    width, height, tile size, tile count
+ *   long   fingerprint of the scene
+ *   byte[] tile flags
+ *   float  pixels, as in MappedImage, from the first multiple of 4096 on
+ *
+ * The whole file is memory mapped, so render threads write pixels straight
+ * into it and never wait for the disk.  Finished tiles are first noted in
+ * memory; sync, which runs periodically on a timer thread, forces the pixels
+ * to disk before it sets and forces the flags of those tiles, so a flag on
+ * disk always means the tile's pixels are there too.
+ */
+public class Checkpoint {
+	
+	protected static final int MAGIC = 0x5254434b;   // "RTCK"
+	protected static final int VERSION = 1;
+	protected static final int HEADER_BYTES = 32;
+	protected static final int PAGE_BYTES = 4096;
+	
+	protected final File file;
+	protected final int tileCount;
+	
+	/** Header and tile flags. */
+	protected final MappedByteBuffer header;
+	
+	/** The framebuffer. */
+	protected final MappedImage image;
+	
+	/** Tiles finished since the file was opened, not necessarily on disk yet. */
+	protected final AtomicIntegerArray finished;
+	
+	/** Number of tiles that were finished when the file was opened. */
+	protected final int resumed;
+	
+	protected Timer timer;
+	
+	/**
+	 * Open the checkpoint file of a render.  If the file belongs to the same
+	 * render its finished tiles are kept, otherwise it is started afresh.
+	 * @param file the checkpoint file
+	 * @param width image width
+	 * @param height image height
+	 * @param tileSize edge length of the tiles
+	 * @param tileCount number of tiles
+	 * @param fingerprint identifies the scene
+	 */
+	public Checkpoint(File file, int width, int height, int tileSize, int tileCount, long fingerprint)
+			throws IOException {
+		
+		this.file = file;
+		this.tileCount = tileCount;
+		long imageOffset = (HEADER_BYTES + tileCount + PAGE_BYTES - 1) / PAGE_BYTES * (long) PAGE_BYTES;
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		boolean resume;
+		try {
+			resume = raf.length() >= HEADER_BYTES && raf.readInt() == MAGIC && raf.readInt() == VERSION
+					&& raf.readInt() == width && raf.readInt() == height && raf.readInt() == tileSize
+					&& raf.readInt() == tileCount && raf.readLong() == fingerprint;
+			if (!resume)
+				raf.setLength(0);
+			header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + tileCount);
+		} finally {
+			raf.close();
+		}
+		image = new MappedImage(width, height, file, imageOffset, !resume);
+		
+		finished = new AtomicIntegerArray(tileCount);
+		int done = 0;
+		if (resume) {
+			for (int i = 0; i < tileCount; i++) {
+				if (header.get(HEADER_BYTES + i) != 0) {
+					finished.set(i, 1);
+					done++;
+				}
+			}
+		} else {
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, width);
+			header.putInt(12, height);
+			header.putInt(16, tileSize);
+			header.putInt(20, tileCount);
+			header.putLong(24, fingerprint);
+			header.force();
+		}
+		resumed = done;
+	}
+	
+	/**
+	 * Compute the fingerprint of a scene from the contents of its file.
+	 * @param sceneFile the scene file
+	 * @return the first 8 bytes of the SHA-256 hash of the file
+	 */
+	public static long fingerprint(File sceneFile) throws IOException {
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new FileInputStream(sceneFile);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		long result = 0;
+		byte[] hash = digest.digest();
+		for (int i = 0; i < 8; i++)
+			result = (result << 8) | (hash[i] & 0xff);
+		return result;
+	}
+	
+	/**
+	 * @return the framebuffer, which must be used as the image of the scene
+	 */
+	public MappedImage getImage() { return image; }
+	
+	/**
+	 * @return the number of tiles that were already finished when the file was opened
+	 */
+	public int getResumedTiles() { return resumed; }
+	
+	/**
+	 * @param tile index of a tile
+	 * @return whether the tile is finished
+	 */
+	public boolean isDone(int tile) {
+		
+		return finished.get(tile) != 0;
+	}
+	
+	/**
+	 * Note that a tile is finished.  Called by the render threads once all the
+	 * pixels of the tile are written.
+	 * @param tile index of the tile
+	 */
+	public void tileDone(int tile) {
+		
+		finished.set(tile, 1);
+	}
+	
+	/**
+	 * Write the finished tiles through to disk.
+	 */
+	public synchronized void sync() {
+		
+		// Take the finished tiles before forcing, so every tile flagged has its pixels forced
+		int[] pending = new int[tileCount];
+		int count = 0;
+		for (int i = 0; i < tileCount; i++)
+			if (finished.get(i) != 0 && header.get(HEADER_BYTES + i) == 0)
+				pending[count++] = i;
+		if (count == 0)
+			return;
+		
+		image.force();
+		for (int i = 0; i < count; i++)
+			header.put(HEADER_BYTES + pending[i], (byte) 1);
+		header.force();
+	}
+	
+	/**
+	 * Sync at a fixed rate on a background thread until close is called.
+	 * @param intervalMillis time between syncs in milliseconds
+	 */
+	public synchronized void startSync(long intervalMillis) {
+		
+		if (timer != null)
+			return;
+		timer = new Timer("checkpoint", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			public void run() { sync(); }
+		}, intervalMillis, intervalMillis);
+	}
+	
+	/**
+	 * Stop syncing in the background and sync a last time.
+	 */
+	public void close() {
+		
+		synchronized (this) {
+			if (timer != null)
+				timer.cancel();
+			timer = null;
+		}
+		sync();
+	}
+	
+	/**
+	 * Stop syncing and delete the checkpoint file, once the image is saved.
+	 */
+	public void delete() {
+		
+		synchronized (this) {
+			if (timer != null)
+				timer.cancel();
+			timer = null;
+		}
+		image.close();
+		file.delete();
+	}
+}
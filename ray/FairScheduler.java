@@ -0,0 +1,445 @@
+package ray;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Renders many scenes at once on the pool of a tile renderer, sharing its
+ * threads between them in proportion to their priorities.  Every job is cut
+ * into tiles, and each time a render thread is free it takes the next tile of
+ * the job that has received the least service for its weight (stride
+ * scheduling), so a large scene and a small preview of the same priority
+ * progress at the same rate in tiles, and the preview finishes first.
+ *
+ * Jobs are only started while the framebuffers of the jobs being rendered fit
+ * in a memory budget; the others wait, highest priority first and then in
+ * the order they were submitted.  A job larger than the budget is rendered on
+ * its own.  For every job the time spent waiting and the time from its first
+ * tile to its last are recorded.
+ */
+public class FairScheduler {
+
+	/** Bytes of framebuffer per pixel: three floats. */
+	public static final long BYTES_PER_PIXEL = 12;
+
+	protected final TileRenderer renderer;
+	protected final long maxBytes;
+	protected final Listener listener;
+
+	/** Jobs waiting for memory, highest priority first, then oldest first. */
+	protected final PriorityQueue<Job> waiting = new PriorityQueue<Job>(16, new Comparator<Job>() {
+		public int compare(Job a, Job b) {
+			if (a.priority != b.priority)
+				return a.priority > b.priority ? -1 : 1;
+			return Long.compare(a.id, b.id);
+		}
+	});
+
+	/** Jobs being rendered. */
+	protected final ArrayList<Job> active = new ArrayList<Job>();
+
+	/** Jobs that ended, to be announced once the lock is released. */
+	protected final ArrayList<Job> ended = new ArrayList<Job>();
+
+	protected long bytesInFlight;
+	protected int loops;
+	protected long nextId;
+
+	/** Pass of the job served last; jobs starting later begin from it. */
+	protected double virtualTime;
+
+	/**
+	 * Told about every job that ends.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on a render thread once the job is complete, stopped or failed.
+		 */
+		void finished(Job job);
+	}
+
+	/**
+	 * A scene being scheduled, and its timings.
+	 */
+	public static class Job {
+
+		protected final long id;
+		protected final String name;
+		protected final int priority;
+		protected final int width;
+		protected final int height;
+		protected final TileRenderer.Control control;
+		protected final long bytes;
+		protected final int tiles;
+		protected final int tilesX;
+		protected final CountDownLatch done = new CountDownLatch(1);
+
+		/** The scene, until it is released. */
+		protected volatile Scene scene;
+
+		protected int nextTile;
+		protected int inFlight;
+		protected double pass;
+		protected volatile String error;
+
+		protected final long submitted = System.nanoTime();
+		protected volatile long admitted;
+		protected volatile long started;
+		protected volatile long finished;
+
+		protected Job(long id, String name, Scene scene, int priority, TileRenderer.Control control,
+				int tileSize) {
+
+			this.id = id;
+			this.name = name;
+			this.scene = scene;
+			this.priority = priority;
+			this.control = control;
+			Image image = scene.getImage();
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+			this.bytes = BYTES_PER_PIXEL * width * height;
+			Camera camera = scene.getCamera();
+			camera.initView(image.getWidth(), image.getHeight());
+			this.tilesX = (camera.getRenderWidth() + tileSize - 1) / tileSize;
+			int tilesY = (camera.getRenderHeight() + tileSize - 1) / tileSize;
+			this.tiles = Math.max(tilesX, 0) * Math.max(tilesY, 0);
+		}
+
+		public String getName() { return name; }
+		public Scene getScene() { return scene; }
+		public int getWidth() { return width; }
+		public int getHeight() { return height; }
+
+		/**
+		 * Let go of the scene and its image once the job has ended and the image
+		 * has been used, keeping only the timings.
+		 */
+		public void release() {
+
+			if (!isFinished())
+				throw new IllegalStateException("Job " + name + " has not ended");
+			scene = null;
+		}
+		public int getPriority() { return priority; }
+		public TileRenderer.Control getControl() { return control; }
+		public int getTiles() { return tiles; }
+
+		/**
+		 * @return the estimated size of the framebuffer in bytes
+		 */
+		public long getBytes() { return bytes; }
+
+		/**
+		 * @return why the job failed, or null
+		 */
+		public String getError() { return error; }
+
+		/**
+		 * @return whether every tile was rendered
+		 */
+		public boolean isComplete() { return error == null && control.getTilesDone() == tiles; }
+
+		public boolean isFinished() { return done.getCount() == 0; }
+
+		/**
+		 * @return nanoseconds from submission until the job was given memory
+		 */
+		public long getAdmissionWait() { return (admitted != 0 ? admitted : finished) - submitted; }
+
+		/**
+		 * @return nanoseconds from submission until the first tile started
+		 */
+		public long getQueueWait() { return (started != 0 ? started : finished) - submitted; }
+
+		/**
+		 * @return nanoseconds from the first tile until the job ended
+		 */
+		public long getServiceTime() { return started != 0 ? finished - started : 0; }
+
+		/**
+		 * Wait for the job to end.
+		 */
+		public void await() throws InterruptedException { done.await(); }
+	}
+
+	/**
+	 * @param renderer renders the tiles on its pool
+	 * @param maxBytes memory budget for the framebuffers of the jobs being
+	 * rendered
+	 * @param listener told about every job that ends, or null
+	 */
+	public FairScheduler(TileRenderer renderer, long maxBytes, Listener listener) {
+
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Memory budget must not be negative: " + maxBytes);
+		this.renderer = renderer;
+		this.maxBytes = maxBytes;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the budget used when none is given: half of the maximum heap
+	 */
+	public static long defaultMaxBytes() {
+
+		return Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Schedule a scene to be rendered into its image.  Its geometry store is
+	 * built first if necessary, on the calling thread.
+	 * @param scene the scene
+	 * @param name the name of the job in reports
+	 * @param priority the weight of the job, at least 1; a job of priority 2
+	 * receives twice the tiles of a job of priority 1
+	 * @param control stops the job, or null
+	 * @return the job
+	 */
+	public Job submit(Scene scene, String name, int priority, TileRenderer.Control control) {
+
+		if (priority < 1)
+			throw new IllegalArgumentException("Priority must be at least 1: " + priority);
+		scene.getAcceleration();
+		Job job;
+		synchronized (this) {
+			job = new Job(nextId++, name, scene, priority, control != null ? control : new TileRenderer.Control(),
+					renderer.getTileSize());
+			waiting.add(job);
+			admit();
+		}
+		announce();
+		return job;
+	}
+
+	/**
+	 * Cancel a job.  A waiting job ends at once, and a running one starts no
+	 * further tiles.
+	 */
+	public void cancel(Job job) {
+
+		job.control.cancel();
+		synchronized (this) {
+			if (waiting.remove(job)) {
+				end(job);
+				notifyAll();
+			}
+		}
+		announce();
+	}
+
+	/**
+	 * Block until fewer than the given number of jobs wait for memory.
+	 */
+	public synchronized void awaitWaiting(int maxWaiting) throws InterruptedException {
+
+		while (waiting.size() >= maxWaiting)
+			wait();
+	}
+
+	/**
+	 * @return the number of jobs waiting for memory
+	 */
+	public synchronized int getWaiting() { return waiting.size(); }
+
+	/**
+	 * @return the number of jobs being rendered
+	 */
+	public synchronized int getActive() { return active.size(); }
+
+	/**
+	 * Start waiting jobs while they fit in the budget, and enough tile loops
+	 * to keep every render thread busy.  Must be called holding the lock.
+	 */
+	protected void admit() {
+
+		for (Iterator<Job> it = waiting.iterator(); it.hasNext();) {
+			Job job = it.next();
+			if (job.control.isStopped()) {
+				it.remove();
+				end(job);
+			}
+		}
+
+		Job head;
+		while ((head = waiting.peek()) != null) {
+			if (head.tiles == 0) {
+				waiting.poll();
+				end(head);
+				continue;
+			}
+			if (!active.isEmpty() && bytesInFlight + head.bytes > maxBytes)
+				break;
+			waiting.poll();
+			head.admitted = System.nanoTime();
+			head.pass = virtualTime;
+			active.add(head);
+			bytesInFlight += head.bytes;
+		}
+		notifyAll();
+
+		while (loops < renderer.getThreads() && !active.isEmpty()) {
+			loops++;
+			renderer.pool.execute(new TileLoop());
+		}
+	}
+
+	/**
+	 * Pick the next tile to render: the next tile of the active job with the
+	 * smallest pass.  Jobs that were stopped end once their tiles in flight
+	 * are done.  Must be called holding the lock.
+	 * @param loop receives the index of the tile
+	 * @return the job, or null if there is nothing left to render
+	 */
+	protected Job next(TileLoop loop) {
+
+		Job best = null;
+		for (int i = 0; i < active.size(); i++) {
+			Job job = active.get(i);
+			if (job.control.isStopped()) {
+				if (job.inFlight == 0) {
+					retire(job);
+					i--;
+				}
+				continue;
+			}
+			if (job.nextTile < job.tiles && (best == null || job.pass < best.pass
+					|| (job.pass == best.pass && job.id < best.id)))
+				best = job;
+		}
+		if (best == null)
+			return null;
+
+		virtualTime = best.pass;
+		best.pass += 1.0 / best.priority;
+		loop.tile = best.nextTile++;
+		best.inFlight++;
+		if (best.started == 0)
+			best.started = System.nanoTime();
+		return best;
+	}
+
+	/**
+	 * Record a finished tile.  Must be called holding the lock.
+	 */
+	protected void tileDone(Job job, boolean rendered) {
+
+		job.inFlight--;
+		if (rendered)
+			job.control.tilesDone.incrementAndGet();
+		if (job.inFlight == 0 && (job.nextTile == job.tiles || job.control.isStopped()))
+			retire(job);
+	}
+
+	/**
+	 * Remove an active job and start the jobs waiting for its memory.  Must
+	 * be called holding the lock.
+	 */
+	protected void retire(Job job) {
+
+		active.remove(job);
+		bytesInFlight -= job.bytes;
+		end(job);
+		admit();
+	}
+
+	/**
+	 * Mark a job as ended.  Must be called holding the lock.
+	 */
+	protected void end(Job job) {
+
+		job.finished = System.nanoTime();
+		ended.add(job);
+	}
+
+	/**
+	 * Tell the listener and any thread waiting about the jobs that ended.
+	 * Must be called without holding the lock.
+	 */
+	protected void announce() {
+
+		Job[] jobs;
+		synchronized (this) {
+			if (ended.isEmpty())
+				return;
+			jobs = ended.toArray(new Job[0]);
+			ended.clear();
+		}
+		for (Job job : jobs) {
+			job.done.countDown();
+			if (listener != null)
+				listener.finished(job);
+		}
+	}
+
+	/**
+	 * Renders tiles on a pool thread until no job has a tile left.
+	 */
+	protected class TileLoop implements Runnable {
+
+		/** Index of the tile being rendered. */
+		protected int tile;
+
+		public void run() {
+
+			int tileSize = renderer.getTileSize();
+			Job job = null;
+			boolean rendered = false;
+			while (true) {
+				synchronized (FairScheduler.this) {
+					if (job != null)
+						tileDone(job, rendered);
+					job = next(this);
+					if (job == null)
+						loops--;
+				}
+				announce();
+				if (job == null)
+					return;
+
+				rendered = false;
+				try {
+					Scene scene = job.scene;
+					Camera camera = scene.getCamera();
+					int x0 = (tile % job.tilesX) * tileSize;
+					int y0 = (tile / job.tilesX) * tileSize;
+					RayTracer.renderTile(scene, scene.getImage(), x0, y0,
+							Math.min(x0 + tileSize, camera.getRenderWidth()),
+							Math.min(y0 + tileSize, camera.getRenderHeight()));
+					rendered = true;
+				} catch (RuntimeException e) {
+					job.error = String.valueOf(e.getMessage());
+					job.control.cancel();
+				} catch (Error e) {
+					// Such as running out of memory for the image.  The tile
+					// must still be handed back, or the job never retires.
+					job.error = String.valueOf(e);
+					job.control.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Print the timings of jobs, one line per job.
+	 * @param jobs the jobs, all of which have ended
+	 */
+	public static void printReport(List<Job> jobs) {
+
+		System.out.println(String.format(Locale.ROOT, "%-32s %4s %11s %6s %9s %9s %10s  %s", "job", "prio", "size",
+				"tiles", "admit_s", "wait_s", "service_s", "state"));
+		for (Job job : jobs) {
+			String state = job.error != null ? "failed: " + job.error
+					: job.isComplete() ? "done" : job.control.isCancelled() ? "cancelled" : "expired";
+			System.out.println(String.format(Locale.ROOT, "%-32s %4d %11s %6d %9.3f %9.3f %10.3f  %s", job.name,
+					job.priority, job.width + "x" + job.height, job.tiles, job.getAdmissionWait() / 1e9,
+					job.getQueueWait() / 1e9, job.getServiceTime() / 1e9, state));
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package ray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import ray.math.Point3;
+import ray.math.Tuple3;
+import ray.math.Vector3;
+import ray.surface.Group;
+import ray.surface.Instance;
+import ray.surface.Surface;
+
+/**
+ * Per-pixel record of the first hit of every camera ray of a render, so that
+ * the scene can be lit again without tracing the camera rays.  For each pixel
+ * it keeps the surface hit, the distance along the ray and the normal; the
+ * hit point and view direction follow from the camera, so relit pixels are
+ * shaded from exactly the same values as in a full render.  It also keeps,
+ * for each light, whether the hit point was in shadow, and the position of
+ * the light at the time.  Lights that have not moved since reuse those
+ * results; for the others the shadow rays are traced again.
+ *
+ * A G-buffer is only valid for the geometry, camera and image size it was
+ * recorded with.  These are summed up in a fingerprint, so a scene in which
+ * only the lights or the shader parameters changed can be relit, and any
+ * other change leads to a full render.  Surfaces are numbered in the order of
+ * the scene's surfaces followed by the surfaces of each group.
+ *
+ * The columns are stored in a file with the layout (little-endian):
+ *
+ *   int    magic "RTGB", version, width, height, light count
+ *   byte   fingerprint (32 bytes)
+ *   double light positions (3 per light)
+ *   int    surface of each pixel, or -1 where the ray hit nothing
+ *   double distance of each pixel, then the x, y and z of the normals
+ *   byte   for each light, 1 for each pixel in its shadow
+ */
+public class GBuffer {
+
+	/** "RTGB" as read little-endian. */
+	protected static final int MAGIC = 0x42475452;
+	protected static final int VERSION = 1;
+	protected static final int HEADER_BYTES = 52;
+
+	/** Largest number of bytes mapped at once, since a mapping is limited to 2 GB. */
+	protected static final long SEGMENT_BYTES = 1L << 30;
+
+	/** Most pixels a G-buffer can hold, the length limit of its arrays. */
+	public static final long MAX_PIXELS = Integer.MAX_VALUE;
+
+	/** Suffix of the file kept next to a scene. */
+	public static final String SUFFIX = ".gbuffer";
+
+	/** Size in pixels of the camera's image plane. */
+	protected final int width;
+	protected final int height;
+	protected final byte[] fingerprint;
+
+	/* The hit of each pixel. */
+	protected final int[] surface;
+	protected final double[] t;
+	protected final double[] nx;
+	protected final double[] ny;
+	protected final double[] nz;
+
+	/** Whether each pixel is in the shadow of each light. */
+	protected byte[][] shadowed;
+
+	/** Positions of the lights the shadows were traced for. */
+	protected double[] lightPositions;
+
+	/** Whether the hits have been recorded, so that pixels can be relit. */
+	protected boolean recorded;
+
+	/*
+	 * State of the current render, set by prepare.
+	 */
+	protected Surface[] surfaces;
+	protected IdentityHashMap<Surface, Integer> surfaceIds;
+	protected boolean[] reuseShadows;
+
+	/**
+	 * Create an empty G-buffer for a scene, which is filled by the next render.
+	 * @param scene the scene
+	 */
+	public GBuffer(Scene scene) {
+
+		Image image = scene.getImage();
+		Camera camera = scene.getCamera();
+		camera.initView(image.getWidth(), image.getHeight());
+		this.width = camera.getRenderWidth();
+		this.height = camera.getRenderHeight();
+		if ((long) width * height > MAX_PIXELS)
+			throw new IllegalArgumentException("Image too large for a G-buffer: " + width + "x" + height);
+		this.fingerprint = fingerprint(scene);
+		int pixels = width * height;
+		this.surface = new int[pixels];
+		this.t = new double[pixels];
+		this.nx = new double[pixels];
+		this.ny = new double[pixels];
+		this.nz = new double[pixels];
+		this.shadowed = new byte[0][];
+		this.lightPositions = new double[0];
+	}
+
+	/**
+	 * Load the G-buffer recorded for a scene.
+	 * @param file the file written by save
+	 * @param scene the scene to be relit
+	 * @return the G-buffer, or null if the file is missing, damaged, or was
+	 * recorded for different geometry, camera or image size
+	 */
+	public static GBuffer load(File file, Scene scene) throws IOException {
+
+		if (!file.isFile())
+			return null;
+		GBuffer result = new GBuffer(scene);
+		int pixels = result.width * result.height;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (raf.length() < HEADER_BYTES)
+				return null;
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return null;
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			int lights = buffer.getInt();
+			byte[] fingerprint = new byte[32];
+			buffer.get(fingerprint);
+			if (width != result.width || height != result.height || !Arrays.equals(fingerprint, result.fingerprint)
+					|| lights < 0 || raf.length() != fileLength(pixels, lights))
+				return null;
+
+			long position = HEADER_BYTES;
+			result.lightPositions = new double[3 * lights];
+			position = copy(channel, FileChannel.MapMode.READ_ONLY, position, result.lightPositions);
+			position = copy(channel, FileChannel.MapMode.READ_ONLY, position, result.surface);
+			for (double[] column : new double[][] { result.t, result.nx, result.ny, result.nz })
+				position = copy(channel, FileChannel.MapMode.READ_ONLY, position, column);
+			result.shadowed = new byte[lights][pixels];
+			for (byte[] column : result.shadowed)
+				position = copy(channel, FileChannel.MapMode.READ_ONLY, position, column);
+		} finally {
+			raf.close();
+		}
+		result.recorded = true;
+		return result;
+	}
+
+	/**
+	 * Write the G-buffer to a file, replacing it atomically.
+	 * @param file the file
+	 */
+	public void save(File file) throws IOException {
+
+		if (!recorded)
+			throw new IllegalStateException("Nothing has been rendered into the G-buffer");
+		int pixels = width * height;
+		int lights = shadowed.length;
+
+		File temp = File.createTempFile("gbuffer", ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.setLength(fileLength(pixels, lights));
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(lights);
+				buffer.put(fingerprint);
+
+				long position = HEADER_BYTES;
+				position = copy(channel, FileChannel.MapMode.READ_WRITE, position, lightPositions);
+				position = copy(channel, FileChannel.MapMode.READ_WRITE, position, surface);
+				for (double[] column : new double[][] { t, nx, ny, nz })
+					position = copy(channel, FileChannel.MapMode.READ_WRITE, position, column);
+				for (byte[] column : shadowed)
+					position = copy(channel, FileChannel.MapMode.READ_WRITE, position, column);
+			} finally {
+				raf.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @return the length of the file holding a G-buffer
+	 */
+	protected static long fileLength(long pixels, long lights) {
+
+		return HEADER_BYTES + 24 * lights + 36 * pixels + lights * pixels;
+	}
+
+	/**
+	 * Copy a column of ints, doubles or bytes between the file and an array,
+	 * mapping at most SEGMENT_BYTES at a time so the file may exceed 2 GB.
+	 * @param mode READ_ONLY to read the column, READ_WRITE to write it
+	 * @param position where the column starts in the file
+	 * @return where the column ends in the file
+	 */
+	protected static long copy(FileChannel channel, FileChannel.MapMode mode, long position, Object column)
+			throws IOException {
+
+		boolean write = mode == FileChannel.MapMode.READ_WRITE;
+		int length = java.lang.reflect.Array.getLength(column);
+		int size = column instanceof double[] ? 8 : column instanceof int[] ? 4 : 1;
+		int chunk = (int) (SEGMENT_BYTES / size);
+		for (int i = 0; i < length; i += chunk) {
+			int count = Math.min(chunk, length - i);
+			ByteBuffer buffer = channel.map(mode, position + (long) i * size, (long) count * size)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (column instanceof double[]) {
+				if (write)
+					buffer.asDoubleBuffer().put((double[]) column, i, count);
+				else
+					buffer.asDoubleBuffer().get((double[]) column, i, count);
+			} else if (column instanceof int[]) {
+				if (write)
+					buffer.asIntBuffer().put((int[]) column, i, count);
+				else
+					buffer.asIntBuffer().get((int[]) column, i, count);
+			} else {
+				if (write)
+					buffer.put((byte[]) column, i, count);
+				else
+					buffer.get((byte[]) column, i, count);
+			}
+		}
+		return position + (long) length * size;
+	}
+
+	/**
+	 * @return whether the hits have been recorded, so that a render only
+	 * shades the pixels again
+	 */
+	public boolean isRecorded() { return recorded; }
+
+	/**
+	 * @param scene the scene to be rendered next
+	 * @return the number of its lights whose shadows will be reused
+	 */
+	public int countReusedLights(Scene scene) {
+
+		int count = 0;
+		ArrayList<Light> lights = scene.getLights();
+		for (int i = 0; i < lights.size(); i++)
+			if (canReuse(i, lights.get(i).position))
+				count++;
+		return count;
+	}
+
+	/**
+	 * Tell whether the shadows recorded for a light still hold: the hits have
+	 * been recorded and the light has not moved.
+	 */
+	protected boolean canReuse(int light, Point3 position) {
+
+		return recorded && light < shadowed.length && lightPositions[3 * light] == position.x
+				&& lightPositions[3 * light + 1] == position.y && lightPositions[3 * light + 2] == position.z;
+	}
+
+	/**
+	 * Get ready to render a scene: number its surfaces, and find the lights
+	 * that have not moved since their shadows were traced.  Called before the
+	 * tiles are rendered.
+	 * @param scene the scene, with the geometry the G-buffer was made for
+	 */
+	public void prepare(Scene scene) {
+
+		surfaces = surfaceTable(scene);
+		surfaceIds = new IdentityHashMap<Surface, Integer>();
+		for (int i = 0; i < surfaces.length; i++)
+			surfaceIds.put(surfaces[i], i);
+
+		ArrayList<Light> lights = scene.getLights();
+		int pixels = width * height;
+		byte[][] newShadowed = new byte[lights.size()][];
+		double[] newPositions = new double[3 * lights.size()];
+		reuseShadows = new boolean[lights.size()];
+		for (int i = 0; i < lights.size(); i++) {
+			Point3 position = lights.get(i).position;
+			reuseShadows[i] = canReuse(i, position);
+			newShadowed[i] = reuseShadows[i] ? shadowed[i] : new byte[pixels];
+			newPositions[3 * i] = position.x;
+			newPositions[3 * i + 1] = position.y;
+			newPositions[3 * i + 2] = position.z;
+		}
+		shadowed = newShadowed;
+		lightPositions = newPositions;
+	}
+
+	/**
+	 * Mark the hits as recorded once every tile has been rendered.
+	 */
+	public void finish() {
+
+		recorded = true;
+		Arrays.fill(reuseShadows, true);
+	}
+
+	/**
+	 * Render the pixels x0 <= x < x1, y0 <= y < y1 into image.  If the hits
+	 * have not been recorded yet the camera rays are traced and their hits
+	 * recorded; otherwise the recorded hits are shaded again.
+	 */
+	void renderTile(RenderContext ctx, Image image, int x0, int y0, int x1, int y1) {
+
+		Camera camera = ctx.scene.getCamera();
+		Point3 viewPoint = camera.viewPoint;
+		Vector3 direction = ctx.rayDirection;
+		IntersectionRecord hit = ctx.hit;
+
+		for (int x = x0; x < x1; x++) {
+			for (int y = y0; y < y1; y++) {
+				int pixel = y * width + x;
+				camera.getRayDirection(direction, x, y);
+
+				if (!recorded) {
+					if (!ctx.query.closestHit(hit, viewPoint, direction, 0, 2147483647.0)) {
+						surface[pixel] = -1;
+						image.setPixelRGB(0, 0, 0, x, y);
+						continue;
+					}
+					Integer id = surfaceIds.get(hit.surface);
+					if (id == null)
+						throw new IllegalStateException("Surface " + hit.surface + " is not part of the scene");
+					surface[pixel] = id;
+					t[pixel] = hit.t;
+					nx[pixel] = hit.normal.x;
+					ny[pixel] = hit.normal.y;
+					nz[pixel] = hit.normal.z;
+				} else {
+					int id = surface[pixel];
+					if (id < 0) {
+						image.setPixelRGB(0, 0, 0, x, y);
+						continue;
+					}
+					// The same arithmetic as the intersection code
+					hit.surface = surfaces[id];
+					hit.t = t[pixel];
+					hit.location.set(viewPoint);
+					hit.location.scaleAdd(t[pixel], direction);
+					hit.normal.set(nx[pixel], ny[pixel], nz[pixel]);
+				}
+
+				image.setPixelColor(RayTracer.shade(ctx, direction, hit, this, pixel), x, y);
+			}
+		}
+	}
+
+	/**
+	 * Tell whether a pixel's hit point is in the shadow of a light, from the
+	 * recorded result if the light has not moved, or else by tracing a shadow
+	 * ray and recording the result.
+	 */
+	boolean isShadowed(RenderContext ctx, int light, int pixel, Point3 point, Point3 lightPos) {
+
+		if (reuseShadows[light])
+			return shadowed[light][pixel] != 0;
+		boolean result = RayTracer.isShadowed(ctx, light, point, lightPos);
+		shadowed[light][pixel] = (byte) (result ? 1 : 0);
+		return result;
+	}
+
+	/**
+	 * Number the surfaces of a scene: its own surfaces, then those of each group.
+	 */
+	protected static Surface[] surfaceTable(Scene scene) {
+
+		ArrayList<Surface> result = new ArrayList<Surface>(scene.getSurfaces());
+		for (Group group : scene.getGroups())
+			result.addAll(group.getSurfaces());
+		return result.toArray(new Surface[0]);
+	}
+
+	/**
+	 * Sum up everything a G-buffer depends on: the image size, the camera and
+	 * the geometry of every surface, but not the lights or shaders.
+	 * @return the SHA-256 hash
+	 */
+	public static byte[] fingerprint(Scene scene) {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		Camera camera = scene.getCamera();
+		Image image = scene.getImage();
+		ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(VERSION).putInt(image.getWidth()).putInt(image.getHeight());
+		buffer.putInt(scene.getGroups().size());
+		for (Tuple3 tuple : new Tuple3[] { camera.viewPoint, camera.viewDir, camera.viewUp,
+				camera.projNormal })
+			buffer.putDouble(tuple.x).putDouble(tuple.y).putDouble(tuple.z);
+		buffer.putDouble(camera.viewWidth).putDouble(camera.viewHeight).putDouble(camera.projDistance);
+		digest.update(buffer.array(), 0, buffer.position());
+
+		Point3 min = new Point3();
+		Point3 max = new Point3();
+		for (Surface s : surfaceTable(scene)) {
+			digest.update(s.getClass().getName().getBytes(StandardCharsets.UTF_8));
+			buffer.clear();
+			s.computeBoundingBox(min, max);
+			buffer.putDouble(min.x).putDouble(min.y).putDouble(min.z);
+			buffer.putDouble(max.x).putDouble(max.y).putDouble(max.z);
+			if (s instanceof Instance) {
+				Instance instance = (Instance) s;
+				buffer.putInt(scene.getGroups().indexOf(instance.getGroup()));
+				for (double entry : instance.getMatrix())
+					buffer.putDouble(entry);
+			}
+			digest.update(buffer.array(), 0, buffer.position());
+		}
+		return digest.digest();
+	}
+}
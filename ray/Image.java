@@ -4,11 +4,15 @@ import java.awt.Transparency;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferFloat;
 import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 
@@ -24,13 +28,51 @@ import ray.math.Color;
  */
 public class Image {
 	
+	/** Gamma applied to the pixel values when writing the image. */
+	public static final double GAMMA = 2.2;
+	
+	/** Number of buckets of the gamma lookup table over [0, 1). */
+	protected static final int GAMMA_BUCKETS = 4096;
+	
+	/** Number of rows packed by one task when writing the image. */
+	protected static final int BAND_ROWS = 64;
+	
+	/**
+	 * gammaThreshold[k] is the smallest float value that Color.gammaCorrect(GAMMA)
+	 * followed by Color.toInt turns into an 8-bit value of at least k.
+	 */
+	protected static final float[] gammaThreshold = new float[256];
+	
+	/** 8-bit value of the smallest float in each bucket of [0, 1). */
+	protected static final byte[] gammaBucket = new byte[GAMMA_BUCKETS];
+	
+	static {
+		// Math.pow is semi-monotonic, so the conversion is monotonic and each
+		// 8-bit value starts at a threshold found by bisecting the float bits.
+		int one = Float.floatToIntBits(1.0f);
+		for (int k = 1; k < 256; k++) {
+			int lo = Float.floatToIntBits(gammaThreshold[k - 1]);
+			int hi = one;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (gammaCorrectByte(Float.intBitsToFloat(mid)) >= k)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			gammaThreshold[k] = Float.intBitsToFloat(lo);
+		}
+		for (int i = 0; i < GAMMA_BUCKETS; i++)
+			gammaBucket[i] = (byte) gammaCorrectByte((float) i / GAMMA_BUCKETS);
+	}
+	
 	/** Image width * */
 	protected int width;
 	
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
+	/** Data array, allocated on first use * */
 	protected float data[];
 	
 	/**
@@ -69,7 +111,30 @@ public class Image {
 		
 		width = newWidth;
 		height = newHeight;
-		data = new float[width * height * 3];
+		data = null;
+	}
+	
+	/**
+	 * Get the data array, allocating it on first use.  Images that are only
+	 * streamed to disk band by band never allocate it.
+	 * @return the data array
+	 */
+	protected final float[] data() {
+		
+		float[] d = data;
+		return d != null ? d : allocate();
+	}
+	
+	private synchronized float[] allocate() {
+		
+		if (data == null) {
+			long size = (long) width * height * 3;
+			if (size > Integer.MAX_VALUE)
+				throw new IllegalStateException("Image of " + width + "x" + height
+						+ " pixels is too large to hold in memory; stream it to disk instead");
+			data = new float[(int) size];
+		}
+		return data;
 	}
 	
 	/**
@@ -81,6 +146,7 @@ public class Image {
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
 		
+		float[] data = data();
 		int idx = calcIdx(inX, inY);
 		outPixel.set(data[idx + 0], data[idx + 1], data[idx + 2]);
 	}
@@ -93,6 +159,7 @@ public class Image {
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
 		
+		float[] data = data();
 		int idx = calcIdx(inX, inY);
 		data[idx + 0] = (float) inPixel.r;
 		data[idx + 1] = (float) inPixel.g;
@@ -110,6 +177,7 @@ public class Image {
 	 */
 	public void setPixelRGB(double inR, double inG, double inB, int inX, int inY) {
 		
+		float[] data = data();
 		int idx = calcIdx(inX, inY);
 		data[idx + 0] = (float) inR;
 		data[idx + 1] = (float) inG;
@@ -136,12 +204,22 @@ public class Image {
 	 */
 	public BufferedImage asBufferedImage() {
 		
+		// create a data buffer that shares the same backing array as this image
+		float[] data = data();
+		return asBufferedImage(new DataBufferFloat(data,data.length));
+	}
+	
+	/**
+	 * Wrap a data buffer holding the float samples of the rows of this image,
+	 * top row first, in a BufferedImage.
+	 * @param db the samples
+	 * @return BufferedImage backed by the data buffer
+	 */
+	protected BufferedImage asBufferedImage(DataBuffer db) {
+		
 		int pixelFloats = 3;
 		int bandOffsets[] = new int[]{0,1,2};
 		
-		// create a data buffer that shares the same backing array as this image
-		DataBufferFloat db = new DataBufferFloat(data,data.length);
-		
 		// sample model describes how to find pixels and pixel components in the data buffer
 		PixelInterleavedSampleModel sm = new PixelInterleavedSampleModel(db.getDataType(),width,height,
 				pixelFloats,width*pixelFloats,bandOffsets);
@@ -158,6 +236,91 @@ public class Image {
 		return new BufferedImage(cm,raster,true,null);
 	}
 	
+	/**
+	 * Convert a pixel value to 8 bits the slow way, as Color.gammaCorrect(GAMMA)
+	 * and Color.toInt do.
+	 * @param value the linear pixel value
+	 * @return the gamma corrected 8-bit value
+	 */
+	public static int gammaCorrectByte(float value) {
+		
+		double v = Math.pow(value, 1.0 / GAMMA);
+		return (int) (255.0 * Math.max(Math.min(v, 1.0), 0.0) + 0.5);
+	}
+	
+	/**
+	 * Convert a pixel value to 8 bits using the gamma lookup table.  The result
+	 * is exactly that of gammaCorrectByte for every float, so images written
+	 * through the table have no rounding differences at all.
+	 * @param value the linear pixel value
+	 * @return the gamma corrected 8-bit value
+	 */
+	public static int gammaByte(float value) {
+		
+		// Math.pow maps negative infinity to positive infinity
+		if (!(value > 0))
+			return value == Float.NEGATIVE_INFINITY ? 255 : 0;
+		if (value >= 1)
+			return 255;
+		
+		// Scaling by a power of two is exact, so the bucket start is a lower bound
+		int k = gammaBucket[(int) (value * GAMMA_BUCKETS)] & 0xff;
+		while (k < 255 && value >= gammaThreshold[k + 1])
+			k++;
+		return k;
+	}
+	
+	/**
+	 * Gamma correct rows of the image into 8-bit samples.  Rows are counted from
+	 * the top of the image, as they are stored in image files.
+	 * @param out receives three samples per pixel
+	 * @param offset position in out of the first sample of the first row
+	 * @param firstRow the first row to convert
+	 * @param endRow one past the last row to convert
+	 * @param bgr whether to store the samples in blue, green, red order
+	 */
+	public void packRows(byte[] out, int offset, int firstRow, int endRow, boolean bgr) {
+		
+		float[] data = data();
+		int r = bgr ? 2 : 0;
+		int b = 2 - r;
+		int end = endRow * width * 3;
+		for (int idx = firstRow * width * 3; idx < end; idx += 3, offset += 3) {
+			out[offset + r] = (byte) gammaByte(data[idx + 0]);
+			out[offset + 1] = (byte) gammaByte(data[idx + 1]);
+			out[offset + b] = (byte) gammaByte(data[idx + 2]);
+		}
+	}
+	
+	/**
+	 * Converts bands of rows in parallel.
+	 */
+	protected class PackTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		protected final byte[] out;
+		protected final int firstRow;
+		protected final int endRow;
+		
+		PackTask(byte[] out, int firstRow, int endRow) {
+			
+			this.out = out;
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+		}
+		
+		protected void compute() {
+			
+			if (endRow - firstRow > BAND_ROWS) {
+				int mid = (firstRow + endRow) >>> 1;
+				invokeAll(new PackTask(out, firstRow, mid), new PackTask(out, mid, endRow));
+				return;
+			}
+			packRows(out, firstRow * width * 3, firstRow, endRow, true);
+		}
+	}
+	
 	/**
 	 * Write this image to the filename.  The output is always written as a PNG regardless
 	 * of the extension on the filename given.
@@ -166,17 +329,11 @@ public class Image {
 	public void write(String fileName) {
 		
 		// For some reason java can't write the BufferedImages produced directly from the
-		// image data, so we have to recreate the image to produce one for output.
+		// image data, so we have to recreate the image to produce one for output.  The
+		// pixels are gamma corrected straight into its raster, one band of rows per task.
 		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		Color pixelColor = new Color();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toInt();
-				bufferedImage.setRGB(x, (height - 1 - y), rgb);
-			}
-		}
+		byte[] bytes = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
+		ForkJoinPool.commonPool().invoke(new PackTask(bytes, 0, height));
 		
 		try {
 			ImageIO.write(bufferedImage, "PNG", new File(fileName));
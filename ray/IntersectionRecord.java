@@ -0,0 +1,49 @@
+package ray;
+
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.surface.Surface;
+
+/**
+ * Holds the result of intersecting a ray with a surface.  Records are owned and
+ * reused by the caller, so surfaces fill them in instead of allocating results.
+ */
+public class IntersectionRecord {
+
+	/** The ray parameter of the intersection. */
+	public double t;
+
+	/** The location of the intersection. */
+	public final Point3 location = new Point3();
+
+	/** The unit surface normal at the intersection, pointing out of the surface. */
+	public final Vector3 normal = new Vector3();
+
+	/** The surface that was hit. */
+	public Surface surface;
+
+	/**
+	 * Default constructor.  Produces an empty record with no surface.
+	 */
+	public IntersectionRecord() { }
+
+	/**
+	 * Sets this record to the contents of another record.
+	 * @param other the record to copy
+	 */
+	public void set(IntersectionRecord other) {
+
+		t = other.t;
+		location.set(other.location);
+		normal.set(other.normal);
+		surface = other.surface;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+
+		return "intersection: " + t + " " + location + " " + normal + " " + surface;
+	}
+}
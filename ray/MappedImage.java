@@ -0,0 +1,257 @@
+package ray;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ray.math.Color;
+
+/**
+ * An image whose pixels live off the heap in a memory-mapped file instead of a
+ * float array.  The file is mapped in segments of whole rows of at most 1 GB,
+ * so the image may be larger than the 2 GB limit of Java arrays, and it adds
+ * nothing to the heap or to the work of the garbage collector.
+ *
+ * The pixels are laid out as in Image.  The image is written through the
+ * streaming PNG encoder since it may be too large for a BufferedImage.
+ */
+public class MappedImage extends Image {
+	
+	/** Largest number of bytes mapped by one segment. */
+	protected static final long SEGMENT_BYTES = 1L << 30;
+	
+	/** The file backing the pixels. */
+	protected final File file;
+	
+	/** Position of the first pixel in the file. */
+	protected final long fileOffset;
+	
+	/** The mappings of the segments. */
+	protected MappedByteBuffer[] mappings;
+	
+	/** Number of image rows held by each segment. */
+	protected int segmentRows;
+	
+	/** The mapped segments, top rows first. */
+	protected FloatBuffer[] segments;
+	
+	/**
+	 * Create a black image backed by the given file, which is created or
+	 * overwritten.
+	 * @param inW input width
+	 * @param inH input height
+	 * @param file the backing file
+	 */
+	public MappedImage(int inW, int inH, File file) throws IOException {
+		
+		this(inW, inH, file, 0, true);
+	}
+	
+	/**
+	 * Create an image backed by part of the given file, which is extended if
+	 * it is too short.  Data before the offset is left alone.
+	 * @param inW input width
+	 * @param inH input height
+	 * @param file the backing file
+	 * @param offset position of the first pixel in the file
+	 * @param clear whether to make the image black or keep the pixels in the file
+	 */
+	public MappedImage(int inW, int inH, File file, long offset, boolean clear) throws IOException {
+		
+		super(inW, inH);
+		this.file = file;
+		this.fileOffset = offset;
+		map(clear);
+	}
+	
+	/**
+	 * Create a black image backed by a temporary file.  The file is unlinked
+	 * right away where the platform allows it, so it disappears with the
+	 * mapping.
+	 * @param inW input width
+	 * @param inH input height
+	 * @return the image
+	 */
+	public static MappedImage createTemporary(int inW, int inH) throws IOException {
+		
+		File file = File.createTempFile("framebuffer", ".raw");
+		file.deleteOnExit();
+		MappedImage image = new MappedImage(inW, inH, file);
+		file.delete();
+		return image;
+	}
+	
+	/**
+	 * Set the size of the image by remapping the file.  Destroys all current
+	 * image data.
+	 */
+	public void setSize(int newWidth, int newHeight) {
+		
+		super.setSize(newWidth, newHeight);
+		if (file != null) {
+			try {
+				map(true);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot map framebuffer " + file, e);
+			}
+		}
+	}
+	
+	protected void map(boolean clear) throws IOException {
+		
+		long rowBytes = (long) width * 3 * 4;
+		segmentRows = (int) Math.max(1, Math.min(height, SEGMENT_BYTES / Math.max(1, rowBytes)));
+		int count = (height + segmentRows - 1) / segmentRows;
+		segments = new FloatBuffer[count];
+		mappings = new MappedByteBuffer[count];
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// Truncating first makes the pixels read as zeros
+			if (clear)
+				raf.setLength(fileOffset);
+			if (raf.length() < fileOffset + rowBytes * height)
+				raf.setLength(fileOffset + rowBytes * height);
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < count; i++) {
+				long rows = Math.min(segmentRows, height - (long) i * segmentRows);
+				mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						fileOffset + (long) i * segmentRows * rowBytes, rows * rowBytes);
+				segments[i] = mappings[i].order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * @return the backing file
+	 */
+	public File getFile() { return file; }
+	
+	/**
+	 * Write the pixels changed so far through to the file.
+	 */
+	public void force() {
+		
+		for (MappedByteBuffer mapping : mappings)
+			mapping.force();
+	}
+	
+	/**
+	 * Release the mapping.  The memory is returned once the buffers are
+	 * garbage collected; the image cannot be used afterwards.
+	 */
+	public void close() {
+		
+		segments = null;
+		mappings = null;
+	}
+	
+	public void getPixelColor(Color outPixel, int inX, int inY) {
+		
+		int row = height - 1 - inY;
+		FloatBuffer segment = segments[row / segmentRows];
+		int idx = ((row % segmentRows) * width + inX) * 3;
+		outPixel.set(segment.get(idx + 0), segment.get(idx + 1), segment.get(idx + 2));
+	}
+	
+	public void setPixelColor(Color inPixel, int inX, int inY) {
+		
+		setPixelRGB(inPixel.r, inPixel.g, inPixel.b, inX, inY);
+	}
+	
+	public void setPixelRGB(double inR, double inG, double inB, int inX, int inY) {
+		
+		int row = height - 1 - inY;
+		FloatBuffer segment = segments[row / segmentRows];
+		int idx = ((row % segmentRows) * width + inX) * 3;
+		segment.put(idx + 0, (float) inR);
+		segment.put(idx + 1, (float) inG);
+		segment.put(idx + 2, (float) inB);
+	}
+	
+	public void packRows(byte[] out, int offset, int firstRow, int endRow, boolean bgr) {
+		
+		int r = bgr ? 2 : 0;
+		int b = 2 - r;
+		for (int row = firstRow; row < endRow; row++) {
+			FloatBuffer segment = segments[row / segmentRows];
+			int idx = (row % segmentRows) * width * 3;
+			for (int x = 0; x < width; x++, idx += 3, offset += 3) {
+				out[offset + r] = (byte) gammaByte(segment.get(idx + 0));
+				out[offset + 1] = (byte) gammaByte(segment.get(idx + 1));
+				out[offset + b] = (byte) gammaByte(segment.get(idx + 2));
+			}
+		}
+	}
+	
+	/**
+	 * Return a BufferedImage backed by the mapped pixels, as Image does.  The
+	 * samples of a BufferedImage are indexed by int, so this is only possible
+	 * for images of fewer than 2^31 samples; those larger are written by
+	 * write, which does not need the view.
+	 * @return BufferedImage representing the data in this image
+	 * @throws IllegalStateException if the image is too large for a BufferedImage
+	 */
+	public BufferedImage asBufferedImage() {
+		
+		final long rowFloats = (long) width * 3;
+		if (rowFloats * height > Integer.MAX_VALUE)
+			throw new IllegalStateException("Image of " + width + "x" + height
+					+ " pixels is too large for a BufferedImage");
+		
+		// Reads and writes go straight to the mapped segments
+		return asBufferedImage(new DataBuffer(DataBuffer.TYPE_FLOAT, (int) (rowFloats * height)) {
+			public float getElemFloat(int bank, int i) {
+				int row = (int) (i / rowFloats);
+				return segments[row / segmentRows].get((int) ((row % segmentRows) * rowFloats + i % rowFloats));
+			}
+			public void setElemFloat(int bank, int i, float val) {
+				int row = (int) (i / rowFloats);
+				segments[row / segmentRows].put((int) ((row % segmentRows) * rowFloats + i % rowFloats), val);
+			}
+			public double getElemDouble(int bank, int i) { return getElemFloat(bank, i); }
+			public void setElemDouble(int bank, int i, double val) { setElemFloat(bank, i, (float) val); }
+			public int getElem(int bank, int i) { return (int) getElemFloat(bank, i); }
+			public void setElem(int bank, int i, int val) { setElemFloat(bank, i, val); }
+		});
+	}
+	
+	/**
+	 * Write this image to the filename as a PNG, a band of rows at a time.
+	 * @param fileName the output filename
+	 */
+	public void write(String fileName) {
+		
+		byte[] samples = new byte[BAND_ROWS * width * 3];
+		try {
+			PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16),
+					width, height);
+			try {
+				for (int row = 0; row < height; row += BAND_ROWS) {
+					int rows = Math.min(BAND_ROWS, height - row);
+					packRows(samples, 0, row, row + rows, false);
+					writer.writeRows(samples, 0, rows);
+				}
+				writer.close();
+			} catch (Exception e) {
+				writer.abort();
+				throw e;
+			}
+		}
+		catch (Exception e) {
+			System.out.println("Error occured while attempting to write file: "+fileName);
+			System.err.println(e);
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,12 +1,16 @@
 package ray;
 
 import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -43,7 +47,8 @@ import ray.math.Tuple3;
  * Later, other nodes can reference a named node by using a "ref" attribute.  
  * The value of the  reference attribute is used to index in the hash table 
  * and the previously stored node with the matching name is used instead of
- * a parsed value.
+ * a parsed value.  The table only lives for one call to parse, so names do
+ * not carry over from one file to the next.
  *
  * There are special routines for explicitly parsing primitives,
  * arrays of primitives, Tuple3 (either Vector3 or Point3), Colors, Strings,
@@ -98,23 +103,105 @@ import ray.math.Tuple3;
  * methods for each child type and they must take exactly one parameter
  * of the type of the child node.
  *
+ * All state of a parse is local to the call, so one parser may be used to
+ * parse several files at the same time from different threads.  What the
+ * reflection finds out about a class (the method each child element maps to,
+ * the classes named by type attributes and the constructors) is resolved
+ * once into method handles and shared by all parses.
+ *
  * @author arbree Aug 18, 2005
  * Parser.java
  * Copyright 2005 Program of Computer Graphics, Cornell University
  */
 public class Parser {
 
-	/** Java document builder used to parse XML * */
-	private DocumentBuilder db;
+	/**
+	 * The method used to add the value of a child element to its parent.
+	 */
+	static class Binding {
+
+		/** Name of the setXXX or addXXX method. */
+		final String methodName;
+
+		/** Type the child element is parsed as; boxed for primitive parameters. */
+		final Class<?> parameterType;
+
+		/** The method, taking the parent and the value as Objects. */
+		final MethodHandle setter;
+
+		Binding(String methodName, Class<?> parameterType, MethodHandle setter) {
+
+			this.methodName = methodName;
+			this.parameterType = parameterType;
+			this.setter = setter;
+		}
+
+		/**
+		 * Call the method with the parsed value of a child element.
+		 *
+		 * @param parent the object the child belongs to
+		 * @param childValue the value of the child
+		 */
+		void invoke(Object parent, Object childValue) {
+
+			try {
 
-	/** Map of references to their names **/
-	public static HashMap references = new HashMap();
+				//Invoke the setter method
+				setter.invokeExact(parent, childValue);
+
+			} catch (Throwable e) {
+				System.err.println("Error invoking the method "
+						+ methodName + ".");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Lookup used to turn the methods and constructors found into handles. */
+	private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+	/** Bindings of each class by child element name. */
+	private static final ClassValue<ConcurrentHashMap<String, Binding>> bindings =
+			new ClassValue<ConcurrentHashMap<String, Binding>>() {
+		protected ConcurrentHashMap<String, Binding> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<String, Binding>();
+		}
+	};
+
+	/** Classes named by type attributes, by the class they must extend and the name. */
+	private static final ClassValue<ConcurrentHashMap<String, Class<?>>> subclasses =
+			new ClassValue<ConcurrentHashMap<String, Class<?>>>() {
+		protected ConcurrentHashMap<String, Class<?>> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<String, Class<?>>();
+		}
+	};
+
+	/** Zero argument constructor of each class returning Object, or null if there is none. */
+	private static final ClassValue<MethodHandle> constructors = new ClassValue<MethodHandle>() {
+		protected MethodHandle computeValue(Class<?> type) {
+			try {
+				return lookup.findConstructor(type, MethodType.methodType(void.class))
+						.asType(MethodType.methodType(Object.class));
+			} catch (Exception e) {
+				return null;
+			}
+		}
+	};
 
 	/** Creates a new Parser. */
 	public Parser() {
 
+	}
+
+	/**
+	 * Create a document builder for one parse; builders are not thread safe.
+	 *
+	 * @return a new document builder
+	 */
+	private DocumentBuilder newDocumentBuilder() {
+
 		try {
-			db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder();
 		} catch (Exception e) {
 
 			throw new Error("Error instantiating the parser.");
@@ -130,12 +217,12 @@ public class Parser {
 	 * @param text the text to parse
 	 * @return a new object of the given type
 	 */
-	private Object parsePrimitive(Class c, String text) {
+	private static Object parsePrimitive(Class<?> c, String text) {
 
 		if (c == Integer.TYPE) {
-			return new Integer(text);
+			return Integer.valueOf(text);
 		} else if (c == Double.TYPE) {
-			return new Double(text);
+			return Double.valueOf(text);
 		} else {
 			throw new Error("Cannot parse primitive of type " + c);
 		}
@@ -149,10 +236,10 @@ public class Parser {
 	 * @return an ArrayList of temporary values used to create the array at the
 	 *         return point
 	 */
-	private ArrayList parseArray(Class componentType, String text) {
+	private static ArrayList<Object> parseArray(Class<?> componentType, String text) {
 
 		StringTokenizer t = new StringTokenizer(text);
-		ArrayList result = new ArrayList();
+		ArrayList<Object> result = new ArrayList<Object>();
 		while (t.hasMoreTokens()) {
 			String token = t.nextToken();
 			result.add(parsePrimitive(componentType, token));
@@ -167,22 +254,22 @@ public class Parser {
 	 * @param text the text to interpret as an object
 	 * @return the object parsed
 	 */
-	private Object parseObject(Class c, String text) {
+	static Object parseObject(Class<?> c, String text) {
 
 		if (c == String.class) {
 			return text;
 		}
 
 		else if (c == Integer.class) {
-			return new Integer(text);
+			return Integer.valueOf(text);
 		}
 
 		else if (c == Double.class) {
-			return new Double(text);
+			return Double.valueOf(text);
 		}
 
 		else if ((c.isArray() && c.getComponentType().isPrimitive())) {
-			ArrayList tempArray = parseArray(c.getComponentType(), text);
+			ArrayList<Object> tempArray = parseArray(c.getComponentType(), text);
 			Object result = Array.newInstance(c.getComponentType(), tempArray
 					.size());
 			for (int i = 0; i < tempArray.size(); i++) {
@@ -192,18 +279,12 @@ public class Parser {
 		}
 
 		else if (Tuple3.class.isAssignableFrom(c)) {
-			ArrayList tempArray = parseArray(Double.TYPE, text);
+			ArrayList<Object> tempArray = parseArray(Double.TYPE, text);
 			if (tempArray.size() != 3) {
 				throw new Error("Tuple3 is not of length 3 ("
 						+ tempArray.size() + ")");
 			}
-			Tuple3 result;
-			try {
-				result = (Tuple3) c.newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName());
-			}
+			Tuple3 result = (Tuple3) newInstance(c);
 			result.x = ((Double) tempArray.get(0)).doubleValue();
 			result.y = ((Double) tempArray.get(1)).doubleValue();
 			result.z = ((Double) tempArray.get(2)).doubleValue();
@@ -211,18 +292,12 @@ public class Parser {
 		}
 
 		else if (Color.class.isAssignableFrom(c)) {
-			ArrayList tempArray = parseArray(Double.TYPE, text);
+			ArrayList<Object> tempArray = parseArray(Double.TYPE, text);
 			if (tempArray.size() != 3) {
 				throw new Error("Color is not of length 3 (" + tempArray.size()
 						+ ")");
 			}
-			Color result;
-			try {
-				result = (Color) c.newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName());
-			}
+			Color result = (Color) newInstance(c);
 			result.r = ((Double) tempArray.get(0)).doubleValue();
 			result.g = ((Double) tempArray.get(1)).doubleValue();
 			result.b = ((Double) tempArray.get(2)).doubleValue();
@@ -230,14 +305,14 @@ public class Parser {
 		}
 
 		else if (Image.class.isAssignableFrom(c)) {
-			ArrayList tempArray = parseArray(Integer.TYPE, text);
+			ArrayList<Object> tempArray = parseArray(Integer.TYPE, text);
 			if (tempArray.size() != 2) {
 				throw new Error(
 						"Image declaration specifies only width and height");
 			}
 			Image result;
 			try {
-				Constructor imageConstructor = c.getConstructor(new Class[] {
+				Constructor<?> imageConstructor = c.getConstructor(new Class<?>[] {
 						Integer.TYPE, Integer.TYPE });
 				result = (Image) imageConstructor
 						.newInstance(new Object[] { (Integer) tempArray.get(0),
@@ -254,6 +329,141 @@ public class Parser {
 		}
 	}
 
+	/**
+	 * Check whether objects of a class are parsed from the text of their node
+	 * rather than from child nodes.
+	 *
+	 * @param c the class type of the node
+	 * @return true for the special types handled by parseObject(Class, String)
+	 */
+	static boolean isTextType(Class<?> c) {
+
+		return (c.isArray() && c.getComponentType().isPrimitive())
+				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == Color.class || Tuple3.class.isAssignableFrom(c)
+				|| Image.class.isAssignableFrom(c);
+	}
+
+	/**
+	 * Create an object through its zero argument constructor.
+	 *
+	 * @param c the class to instantiate
+	 * @return the new object
+	 */
+	static Object newInstance(Class<?> c) {
+
+		MethodHandle constructor = constructors.get(c);
+		try {
+			if (constructor != null)
+				return constructor.invoke();
+		} catch (Throwable e) {
+			// Reported below
+		}
+		throw new Error("Error instantiating object of class: " + c.getName());
+	}
+
+	/**
+	 * Resolve the class named by a type attribute.  The name is looked up as
+	 * given and then in the package of the base type.
+	 *
+	 * @param c the class the named class must extend or implement
+	 * @param className the value of the type attribute
+	 * @return the named class
+	 */
+	static Class<?> findSubclass(Class<?> c, String className) {
+
+		ConcurrentHashMap<String, Class<?>> known = subclasses.get(c);
+		Class<?> result = known.get(className);
+		if (result != null)
+			return result;
+
+		try {
+			Class<?> possibleClass;
+			// Try to look up the class; if it fails, try looking in the package
+			// of the given base type
+			try {
+				possibleClass = Class.forName(className);
+			} catch (ClassNotFoundException e) {
+				possibleClass = Class.forName(c.getPackage().getName()
+						+ "." + className);
+			}
+			if (!c.isAssignableFrom(possibleClass)) {
+				throw new Error("Type " + className
+						+ " does not extend or implement " + c.getName());
+			}
+			known.putIfAbsent(className, possibleClass);
+			return possibleClass;
+		} catch (ClassNotFoundException e) {
+			throw new Error("Class could not be found: " + className);
+		}
+	}
+
+	/**
+	 * Find the method used to add a child element to an object of class c,
+	 * first setXXX and then addXXX.
+	 *
+	 * @param c the class of the parent object
+	 * @param childName the name of the child element
+	 * @return the binding of the child element
+	 */
+	static Binding findBinding(Class<?> c, String childName) {
+
+		ConcurrentHashMap<String, Binding> known = bindings.get(c);
+		Binding binding = known.get(childName);
+		if (binding != null)
+			return binding;
+
+		// Check setXXX
+		Method foundMethod = findMethod(c, "set" + childName);
+
+		// If can't find setXXX method, look for addXXX method instead
+		if (foundMethod == null)
+			foundMethod = findMethod(c, "add" + childName);
+
+		// Its an error if no method was found
+		if (foundMethod == null) {
+			throw new Error("Could not find a method to use to add "
+					+ childName + " to the class type " + c.getName()
+					+ ".");
+		}
+
+		// Check that the method has the right number of parameters
+		Class<?>[] parameterTypes = foundMethod.getParameterTypes();
+		if (parameterTypes.length != 1) {
+			throw new Error("Method " + foundMethod.getName()
+					+ " must take exactly one parameter.");
+		}
+
+		// If the type is primitive, switch to corresponding Object type
+		// to parse. The method handle will automatically take care of
+		// converting Object types back into primitives.
+		Class<?> parameterType = parameterTypes[0];
+		if (parameterType.isPrimitive()) {
+			if (parameterType == Integer.TYPE) {
+				parameterType = Integer.class;
+			} else if (parameterType == Float.TYPE) {
+				parameterType = Float.class;
+			} else if (parameterType == Double.TYPE) {
+				parameterType = Double.class;
+			} else {
+				throw new Error("Cannot parse primitives of type "
+						+ parameterType);
+			}
+		}
+
+		MethodHandle setter;
+		try {
+			setter = lookup.unreflect(foundMethod).asType(
+					MethodType.methodType(void.class, Object.class, Object.class));
+		} catch (IllegalAccessException e) {
+			throw new Error("Cannot access the method " + foundMethod.getName() + ".");
+		}
+
+		binding = new Binding(foundMethod.getName(), parameterType, setter);
+		known.putIfAbsent(childName, binding);
+		return binding;
+	}
+
 	/**
 	 * Return the Method object representing the string methodName in Class c.
 	 * Return null if no such method if found.
@@ -262,7 +472,7 @@ public class Parser {
 	 * @param methodName the name of the method to find
 	 * @return the Method object if a method is found, null otherwise
 	 */
-	private Method findMethod(Class c, String methodName) {
+	private static Method findMethod(Class<?> c, String methodName) {
 
 		// Get the method list
 		Method[] methods = c.getMethods();
@@ -282,9 +492,10 @@ public class Parser {
 	 *
 	 * @param c Class type to read from node n
 	 * @param n the node to parse into an instance of c
+	 * @param references map of the named objects parsed so far to their names
 	 * @return the object read
 	 */
-	private Object parseObject(Class c, Node n) {
+	private Object parseObject(Class<?> c, Node n, HashMap<String, Object> references) {
 
 		Object resultingObject = null;
 		NamedNodeMap attributes = n.getAttributes();
@@ -292,52 +503,10 @@ public class Parser {
 		Node nameAttribute = attributes.getNamedItem("name");
 		Node refAttribute = attributes.getNamedItem("ref");
 
-		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
-			try {
-				Class possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
-			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
-			}
-		}
-
 		// If the node specifies a type, check that it is assignable to the current
 		// output type for this node
 		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
-			try {
-				Class possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
-			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
-			}
+			c = findSubclass(c, typeAttribute.getNodeValue()); // Set the current active class to user specified type
 		}
 
 		// Check that our current type is valid
@@ -358,10 +527,7 @@ public class Parser {
 		}
 
 		// Check for certain special classes of the current node
-		else if ((c.isArray() && c.getComponentType().isPrimitive())
-				|| c == String.class || c == Integer.class || c == Double.class
-				|| c == Color.class || Tuple3.class.isAssignableFrom(c)
-				|| Image.class.isAssignableFrom(c)) {
+		else if (isTextType(c)) {
 
 			// Interpret the text values of all children nodes as objects
 			for (int i = 0; i < children.getLength(); i++) {
@@ -380,12 +546,7 @@ public class Parser {
 		else {
 
 			// Create one!
-			try {
-				resultingObject = c.newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName());
-			}
+			resultingObject = newInstance(c);
 
 			// For each child
 			for (int i = 0; i < children.getLength(); i++) {
@@ -397,62 +558,13 @@ public class Parser {
 				}
 
 				//Find the method to use for adding
-				Method foundMethod = null;
-				String childName = child.getNodeName();
-
-				// Check setXXX
-				foundMethod = findMethod(c, "set" + childName);
-
-				// If can't find setXXX method, look for addXXX method instead
-				if (foundMethod == null)
-					foundMethod = findMethod(c, "add" + childName);
-
-				// Its an error if no method was found
-				if (foundMethod == null) {
-					throw new Error("Could not find a method to use to add "
-							+ childName + " to the class type " + c.getName()
-							+ ".");
-				}
-
-				// Check that the method has the right number of parameters
-				Class[] parameterTypes = foundMethod.getParameterTypes();
-				if (parameterTypes.length != 1) {
-					throw new Error("Method " + foundMethod.getName()
-							+ " must take exactly one parameter.");
-				}
-
-				// If the type is primitive, switch to corresponding Object type
-				// to parse. Method invocation will automatically take care of
-				// converting Object types back into primitives.
-				Class parameterType = parameterTypes[0];
-				if (parameterType.isPrimitive()) {
-					if (parameterType == Integer.TYPE) {
-						parameterType = Integer.class;
-					} else if (parameterType == Float.TYPE) {
-						parameterType = Float.class;
-					} else if (parameterType == Double.TYPE) {
-						parameterType = Double.class;
-					} else {
-						throw new Error("Cannot parse primitives of type "
-								+ parameterType);
-					}
-				}
+				Binding binding = findBinding(c, child.getNodeName());
 
 				// Recursively parse value of child element
-				Object childValue = parseObject(parameterType, child);
+				Object childValue = parseObject(binding.parameterType, child, references);
 
 				// Call the setter method with the parsed value;
-				try {
-
-					//Invoke the setter method
-					foundMethod.invoke(resultingObject,
-							new Object[] { childValue });
-
-				} catch (Exception e) {
-					System.err.println("Error invoking the method "
-							+ foundMethod.getName() + ".");
-					e.printStackTrace();
-				}
+				binding.invoke(resultingObject, childValue);
 			}
 		}
 
@@ -473,7 +585,7 @@ public class Parser {
 	 * @param c the class of the object to parse
 	 * @return a new object of the given class
 	 */
-	public Object parse(String filename, Class c) {
+	public Object parse(String filename, Class<?> c) {
 
 		File file = new File(filename);
 
@@ -481,9 +593,9 @@ public class Parser {
 		Object result = null;
 		try {
 
-			Document doc = db.parse(file);
+			Document doc = newDocumentBuilder().parse(file);
 			Element root = doc.getDocumentElement();
-			result = parseObject(c, root);
+			result = parseObject(c, root, new HashMap<String, Object>());
 
 		} catch (Exception e) {
 			System.out.println("Exception occurred while parsing: " + filename);
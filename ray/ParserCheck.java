@@ -0,0 +1,144 @@
+package ray;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ray.math.Color;
+import ray.shader.Shader;
+import ray.surface.Surface;
+
+/**
+ * Checks that scene files parsed at the same time on many threads, all with
+ * one Parser, give the same scenes as when they are parsed one after another.
+ * Every file is first parsed serially and summed up: its camera, image size,
+ * lights, surfaces, which of the scene's shaders each surface uses (so that a
+ * named shader resolved in the wrong parse is caught), and a small render.
+ * Then every file is parsed repeatedly on a pool of threads, released
+ * together, and each result is compared with the serial one.
+ *
+ * Usage: java ray.ParserCheck [options] [scene files]
+ *   -threads N   parsing threads (default: 8)
+ *   -rounds N    times every file is parsed concurrently (default: 25)
+ *
+ * Without scene files every XML file in the scenes directory is used.  The
+ * exit status is 1 if any result differs.
+ */
+public class ParserCheck {
+
+	/** Edge length of the render included in the summary of a scene. */
+	protected static final int THUMBNAIL = 48;
+
+	public static void main(String[] args) throws Exception {
+
+		int threads = 8;
+		int rounds = 25;
+		ArrayList<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			File[] scenes = new File("scenes").listFiles();
+			if (scenes == null) {
+				System.out.println("No scene files given and no scenes directory found");
+				System.exit(1);
+			}
+			Arrays.sort(scenes);
+			for (File scene : scenes)
+				if (scene.getName().endsWith(".xml"))
+					files.add(scene.getPath());
+		}
+
+		final Parser parser = new Parser();
+		final List<String> expected = new ArrayList<String>();
+		for (String file : files)
+			expected.add(summarize(parser.parse(file, Scene.class)));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		List<String> names = new ArrayList<String>();
+		for (int round = 0; round < rounds; round++) {
+			for (final String file : files) {
+				names.add(file);
+				results.add(pool.submit(new Callable<String>() {
+					public String call() throws Exception {
+						start.await();
+						return summarize(parser.parse(file, Scene.class));
+					}
+				}));
+			}
+		}
+		start.countDown();
+
+		int mismatches = 0;
+		for (int i = 0; i < results.size(); i++) {
+			String result;
+			try {
+				result = results.get(i).get();
+			} catch (java.util.concurrent.ExecutionException e) {
+				result = "failed: " + e.getCause();
+			}
+			if (!result.equals(expected.get(i % files.size()))) {
+				if (mismatches++ < 10)
+					System.out.println("Mismatch: " + names.get(i));
+			}
+		}
+		pool.shutdown();
+
+		System.out.println(mismatches + " of " + results.size() + " concurrent parses of " + files.size()
+				+ " files on " + threads + " threads differ from the serial parses");
+		System.exit(mismatches == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Describe a parsed scene, including a render of it, in a string that is
+	 * equal for equal scenes.
+	 */
+	protected static String summarize(Object parsed) {
+
+		if (!(parsed instanceof Scene))
+			return "not parsed";
+		Scene scene = (Scene) parsed;
+		StringBuilder result = new StringBuilder();
+		Camera camera = scene.getCamera();
+		Image image = scene.getImage();
+		result.append(camera.viewPoint).append(camera.viewDir).append(camera.viewUp).append(camera.projNormal)
+				.append(' ').append(camera.viewWidth).append(' ').append(camera.viewHeight).append(' ')
+				.append(camera.projDistance).append(' ').append(image.getWidth()).append('x')
+				.append(image.getHeight()).append('\n');
+		for (Light light : scene.getLights())
+			result.append(light).append('\n');
+		List<Shader> shaders = scene.getShaders();
+		for (Surface surface : scene.getSurfaces()) {
+			int shader = -1;
+			for (int i = 0; i < shaders.size(); i++)
+				if (shaders.get(i) == surface.getShader())
+					shader = i;
+			result.append(surface).append(" shader ").append(shader).append('\n');
+		}
+
+		scene.setImage(new Image(THUMBNAIL, THUMBNAIL));
+		scene.getCamera().initView(THUMBNAIL, THUMBNAIL);
+		RayTracer.renderTile(scene, scene.getImage(), 0, 0, THUMBNAIL, THUMBNAIL);
+		Color color = new Color();
+		for (int y = 0; y < THUMBNAIL; y++) {
+			for (int x = 0; x < THUMBNAIL; x++) {
+				scene.getImage().getPixelColor(color, x, y);
+				result.append(Integer.toHexString(color.toInt())).append(' ');
+			}
+		}
+		return result.toString();
+	}
+}
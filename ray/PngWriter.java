@@ -0,0 +1,218 @@
+package ray;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal PNG encoder for 8-bit RGB images that accepts the image a few rows
+ * at a time.  Compressed data is written out in IDAT chunks as soon as it is
+ * produced, so only the current and the previous row are held in memory.
+ *
+ * Rows are filtered with the usual heuristic: of the five PNG filters the one
+ * whose output has the smallest sum of absolute values is used.
+ */
+public class PngWriter {
+	
+	/** The eight bytes every PNG file starts with. */
+	protected static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+	
+	/** Largest amount of compressed data written per IDAT chunk. */
+	protected static final int CHUNK_SIZE = 1 << 16;
+	
+	/** Bytes per pixel. */
+	protected static final int PIXEL_BYTES = 3;
+	
+	protected final DataOutputStream out;
+	protected final int width;
+	protected final int height;
+	protected int rowsWritten;
+	
+	protected final Deflater deflater = new Deflater();
+	protected final CRC32 crc = new CRC32();
+	protected final byte[] chunk = new byte[CHUNK_SIZE];
+	protected int chunkLength;
+	
+	/** The previous row, unfiltered; all zero before the first row. */
+	protected byte[] previous;
+	
+	/** The current row, unfiltered. */
+	protected byte[] current;
+	
+	/** The current row under each filter, each preceded by the filter type. */
+	protected final byte[][] filtered = new byte[5][];
+	
+	/** Sum of absolute values of the current row under each filter. */
+	protected final long[] sums = new long[5];
+	
+	/**
+	 * Start a PNG image.  The writer owns the stream and closes it in close.
+	 * @param stream the stream to write to
+	 * @param width image width in pixels
+	 * @param height image height in pixels
+	 */
+	public PngWriter(OutputStream stream, int width, int height) throws IOException {
+		
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("PNG images must not be empty: " + width + "x" + height);
+		if ((long) width * PIXEL_BYTES + 1 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Image too wide: " + width);
+		
+		this.out = new DataOutputStream(stream);
+		this.width = width;
+		this.height = height;
+		int rowBytes = width * PIXEL_BYTES;
+		previous = new byte[rowBytes];
+		current = new byte[rowBytes];
+		for (int f = 0; f < filtered.length; f++) {
+			filtered[f] = new byte[rowBytes + 1];
+			filtered[f][0] = (byte) f;
+		}
+		
+		out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;      // bit depth
+		header[9] = 2;      // color type: RGB
+		header[10] = 0;     // deflate compression
+		header[11] = 0;     // adaptive filtering
+		header[12] = 0;     // no interlace
+		writeChunk("IHDR", header, header.length);
+	}
+	
+	/**
+	 * Append rows to the image, top row first.
+	 * @param samples red, green and blue samples of the rows
+	 * @param offset position of the first sample in samples
+	 * @param rows number of rows
+	 */
+	public void writeRows(byte[] samples, int offset, int rows) throws IOException {
+		
+		if (rowsWritten + rows > height)
+			throw new IllegalStateException("More rows than the image height of " + height);
+		
+		int rowBytes = current.length;
+		for (int i = 0; i < rows; i++, offset += rowBytes) {
+			System.arraycopy(samples, offset, current, 0, rowBytes);
+			byte[] row = filterRow();
+			deflater.setInput(row);
+			while (!deflater.needsInput())
+				drain();
+			
+			byte[] tmp = previous;
+			previous = current;
+			current = tmp;
+			rowsWritten++;
+		}
+	}
+	
+	/**
+	 * Finish the image and close the stream.
+	 */
+	public void close() throws IOException {
+		
+		try {
+			if (rowsWritten != height)
+				throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+			deflater.finish();
+			while (!deflater.finished())
+				drain();
+			if (chunkLength > 0)
+				writeChunk("IDAT", chunk, chunkLength);
+			writeChunk("IEND", chunk, 0);
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+	
+	/**
+	 * Close the stream without finishing the image, after a failure.
+	 */
+	public void abort() {
+		
+		deflater.end();
+		try {
+			out.close();
+		} catch (IOException e) {
+			// The image is incomplete anyway
+		}
+	}
+	
+	/**
+	 * Compress pending input into the chunk buffer, writing the chunk when full.
+	 */
+	protected void drain() throws IOException {
+		
+		chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+		if (chunkLength == chunk.length) {
+			writeChunk("IDAT", chunk, chunkLength);
+			chunkLength = 0;
+		}
+	}
+	
+	/**
+	 * Apply all filters to the current row.
+	 * @return the filtered row with the smallest sum of absolute values
+	 */
+	protected byte[] filterRow() {
+		
+		byte[] none = filtered[0], sub = filtered[1], up = filtered[2], avg = filtered[3], paeth = filtered[4];
+		Arrays.fill(sums, 0);
+		for (int i = 0; i < current.length; i++) {
+			int x = current[i] & 0xff;
+			int a = i >= PIXEL_BYTES ? current[i - PIXEL_BYTES] & 0xff : 0;
+			int b = previous[i] & 0xff;
+			int c = i >= PIXEL_BYTES ? previous[i - PIXEL_BYTES] & 0xff : 0;
+			
+			none[i + 1] = (byte) x;
+			sub[i + 1] = (byte) (x - a);
+			up[i + 1] = (byte) (x - b);
+			avg[i + 1] = (byte) (x - ((a + b) >> 1));
+			paeth[i + 1] = (byte) (x - paethPredictor(a, b, c));
+			for (int f = 0; f < 5; f++)
+				sums[f] += Math.abs(filtered[f][i + 1]);
+		}
+		
+		int best = 0;
+		for (int f = 1; f < 5; f++)
+			if (sums[f] < sums[best])
+				best = f;
+		return filtered[best];
+	}
+	
+	protected static int paethPredictor(int a, int b, int c) {
+		
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+	
+	protected void writeChunk(String type, byte[] data, int length) throws IOException {
+		
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		crc.reset();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	protected static void putInt(byte[] bytes, int offset, int value) {
+		
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
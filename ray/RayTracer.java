@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import ray.math.Color;
 import ray.math.Vector3;
 import ray.math.Point3;
+import ray.accel.GeometryStore;
 import ray.surface.*;
 import ray.shader.*;
 
@@ -14,30 +15,374 @@ import ray.shader.*;
  */
 public class RayTracer {
 
+    /** Shadow rays ignore intersections closer than this to their origin. */
+    private static final double SHADOW_EPSILON = 1e-6;
+
     /**
      * The main method takes all the parameters an assumes they are input files
      * for the ray tracer. It tries to render each one and write it out to a PNG
      * file named <input_file>.png.
      *
+     * Options may be given before the input files:
+     *   -threads N   number of render threads (default: number of processors)
+     *   -tile N      edge length of a render tile in pixels (default: 32)
+     *   -simd on|off use the vector intersection kernels if available (default: on)
+     *   -stream N    stream the image to disk in bands of N rows instead of
+     *                holding it in memory (default: off)
+     *   -mapped      keep the image off the heap in a memory-mapped file
+     *   -stax        read the scene files with the streaming parser
+     *   -checkpoint S save finished tiles to <input_file>.checkpoint every S
+     *                seconds; a later run on the same scene resumes from it
+     *   -cache DIR   keep parsed scenes and their hierarchies in DIR, so that
+     *                later runs on the same scene skip parsing and building
+     *   -cachesize MB size limit of the cache (default: 1024)
+     *   -batch       render all input files as a pipeline that loads the next
+     *                scene and writes the previous one while one renders, then
+     *                report the time of each stage; directories stand for the
+     *                scene files in them.  -stream, -mapped and -checkpoint do
+     *                not apply.
+     *   -depth N     number of scenes waiting between two stages of the
+     *                batch pipeline, or waiting for memory with -fair
+     *                (default: 1)
+     *   -fair        like -batch, but render all scenes at once, sharing the
+     *                render threads tile by tile in proportion to priority
+     *   -priority N  priority of the input files that follow, with -fair
+     *                (default: 1)
+     *   -memory MB   framebuffer memory of the scenes rendered at once with
+     *                -fair (default: half the maximum heap)
+     *   -views FILE  render each of the input files that follow once from
+     *                every camera in FILE (see CameraPath), to the numbered
+     *                frames <input_file>.0000.png, <input_file>.0001.png...
+     *                The scene is loaded and built once and all views are
+     *                rendered at once, within -memory.
+     *   -gbuffer     keep the camera hits in <input_file>.gbuffer; a later run
+     *                on a scene whose geometry and camera are unchanged only
+     *                shades the pixels again, tracing shadow rays for the
+     *                lights that moved.  Does not apply to -stream and
+     *                -checkpoint.
+     *
+     * Input files written by BinaryScene are recognized by their header and
+     * loaded without parsing.
+     *
      * @param args
      */
     public static final void main(String[] args) {
 
+        int threads = Runtime.getRuntime().availableProcessors();
+        int tileSize = TileRenderer.DEFAULT_TILE_SIZE;
+        int bandRows = 0;
+        boolean mapped = false;
+        int checkpointInterval = 0;
+        boolean streamingParser = false;
+        java.io.File cacheDirectory = null;
+        long cacheBytes = SceneCache.DEFAULT_MAX_BYTES;
+        SceneCache cache = null;
+        boolean useGBuffer = false;
+        CameraPath views = null;
+        boolean batch = false;
+        boolean fair = false;
+        int depth = BatchRenderer.DEFAULT_DEPTH;
+        int priority = 1;
+        long memoryBytes = FairScheduler.defaultMaxBytes();
+        ArrayList<String> batchInputs = new ArrayList<String>();
+        ArrayList<Integer> batchPriorities = new ArrayList<Integer>();
+
         Parser parser = new Parser();
+        TileRenderer renderer = null;
         for (int ctr = 0; ctr < args.length; ctr++) {
 
+            // Handle options
+            if (args[ctr].equals("-threads")) {
+                threads = Integer.parseInt(args[++ctr]);
+                continue;
+            }
+            if (args[ctr].equals("-tile")) {
+                tileSize = Integer.parseInt(args[++ctr]);
+                continue;
+            }
+            if (args[ctr].equals("-simd")) {
+                GeometryStore.setVectorKernels(args[++ctr].equals("on"));
+                continue;
+            }
+            if (args[ctr].equals("-mapped")) {
+                mapped = true;
+                continue;
+            }
+            if (args[ctr].equals("-stax")) {
+                streamingParser = true;
+                continue;
+            }
+            if (args[ctr].equals("-checkpoint")) {
+                checkpointInterval = Integer.parseInt(args[++ctr]);
+                continue;
+            }
+            if (args[ctr].equals("-cache")) {
+                cacheDirectory = new java.io.File(args[++ctr]);
+                continue;
+            }
+            if (args[ctr].equals("-cachesize")) {
+                cacheBytes = Long.parseLong(args[++ctr]) << 20;
+                continue;
+            }
+            if (args[ctr].equals("-stream")) {
+                bandRows = Integer.parseInt(args[++ctr]);
+                continue;
+            }
+            if (args[ctr].equals("-gbuffer")) {
+                useGBuffer = true;
+                continue;
+            }
+            if (args[ctr].equals("-views")) {
+                views = CameraPath.read(args[++ctr]);
+                if (views == null) {
+                    System.out.println("Error occured while attempting to read the views: "+args[ctr]);
+                    break;
+                }
+                continue;
+            }
+            if (args[ctr].equals("-batch")) {
+                batch = true;
+                continue;
+            }
+            if (args[ctr].equals("-depth")) {
+                depth = Integer.parseInt(args[++ctr]);
+                continue;
+            }
+            if (args[ctr].equals("-fair")) {
+                batch = true;
+                fair = true;
+                continue;
+            }
+            if (args[ctr].equals("-priority")) {
+                priority = Integer.parseInt(args[++ctr]);
+                continue;
+            }
+            if (args[ctr].equals("-memory")) {
+                memoryBytes = Long.parseLong(args[++ctr]) << 20;
+                continue;
+            }
+            if (batch) {
+                for (String input : BatchRenderer.listScenes(java.util.Collections.singletonList(args[ctr]))) {
+                    batchInputs.add(input);
+                    batchPriorities.add(priority);
+                }
+                continue;
+            }
+
             // Get the input/output filenames.
             String inputFilename = args[ctr];
             String outputFilename = inputFilename + ".png";
 
-            // Parse the input file
-            Scene scene = (Scene) parser.parse(inputFilename, Scene.class);
+            // Render every view of the scene
+            if (views != null) {
+                if (bandRows > 0 || mapped || checkpointInterval > 0 || useGBuffer)
+                    System.out.println("Note: -stream, -mapped, -checkpoint and -gbuffer do not apply to -views");
+                if (renderer == null)
+                    renderer = new TileRenderer(tileSize, threads);
+                BatchRenderer viewRenderer = new BatchRenderer(renderer, depth);
+                viewRenderer.setStreamingParser(streamingParser);
+                viewRenderer.setCache(openCache(cacheDirectory, cacheBytes));
+                try {
+                    viewRenderer.runViews(inputFilename, views.getCameras(), memoryBytes);
+                }
+                catch (Exception e) {
+                    System.out.println("Error occured while rendering the views of: "+inputFilename);
+                    System.err.println(e);
+                }
+                continue;
+            }
+
+            // Look the scene up in the cache
+            Scene scene = null;
+            String cacheKey = null;
+            if (cacheDirectory != null) {
+                try {
+                    if (cache == null)
+                        cache = new SceneCache(cacheDirectory, cacheBytes);
+                    long startTime = System.currentTimeMillis();
+                    cacheKey = cache.key(new java.io.File(inputFilename));
+                    scene = cache.load(cacheKey);
+                    if (scene != null)
+                        System.out.println("Loaded from the scene cache in "
+                                + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds.\n"
+                                + scene.getAcceleration());
+                }
+                catch (java.io.IOException e) {
+                    System.out.println("Error occured while attempting to use the scene cache for: "+inputFilename);
+                    System.err.println(e);
+                }
+            }
+
+            // Parse the input file unless it was cached
+            if (scene == null && BinaryScene.isBinary(new java.io.File(inputFilename))) {
+                try {
+                    scene = BinaryScene.read(new java.io.File(inputFilename));
+                }
+                catch (java.io.IOException e) {
+                    System.out.println("Error occured while attempting to read the binary scene: "+inputFilename);
+                    System.err.println(e);
+                    continue;
+                }
+            }
+            else if (scene == null && streamingParser)
+                scene = (Scene) new StreamParser().parse(inputFilename, Scene.class);
+            else if (scene == null)
+                scene = (Scene) parser.parse(inputFilename, Scene.class);
+            if (renderer == null)
+                renderer = new TileRenderer(tileSize, threads);
+            Checkpoint checkpoint = null;
+            if (checkpointInterval > 0 && bandRows == 0) {
+                Image image = scene.getImage();
+                try {
+                    checkpoint = new Checkpoint(new java.io.File(inputFilename + ".checkpoint"),
+                            image.getWidth(), image.getHeight(), tileSize, renderer.countTiles(scene),
+                            Checkpoint.fingerprint(new java.io.File(inputFilename)));
+                }
+                catch (java.io.IOException e) {
+                    System.out.println("Error occured while attempting to open the checkpoint of: "+inputFilename);
+                    System.err.println(e);
+                    continue;
+                }
+                scene.setImage(checkpoint.getImage());
+                checkpoint.startSync(checkpointInterval * 1000L);
+            }
+            else if (mapped && bandRows == 0) {
+                Image image = scene.getImage();
+                try {
+                    scene.setImage(MappedImage.createTemporary(image.getWidth(), image.getHeight()));
+                }
+                catch (java.io.IOException e) {
+                    System.out.println("Error occured while attempting to map the image of: "+inputFilename);
+                    System.err.println(e);
+                    continue;
+                }
+            }
+            if (scene.geometry == null) {
+                scene.buildAcceleration();
+                if (cacheKey != null) {
+                    try {
+                        cache.store(cacheKey, scene);
+                    }
+                    catch (Exception e) {
+                        System.out.println("Error occured while attempting to cache the scene: "+inputFilename);
+                        System.err.println(e);
+                    }
+                }
+            }
 
             // Render the scene
-            renderImage(scene);
+            if (bandRows > 0) {
+                try {
+                    renderer.renderToFile(scene, outputFilename, bandRows);
+                }
+                catch (Exception e) {
+                    System.out.println("Error occured while attempting to write file: "+outputFilename);
+                    System.err.println(e);
+                    e.printStackTrace();
+                }
+                continue;
+            }
+            if (useGBuffer && checkpoint == null) {
+                renderWithGBuffer(renderer, scene, new java.io.File(inputFilename + GBuffer.SUFFIX));
+            }
+            else {
+                if (useGBuffer)
+                    System.out.println("Note: -gbuffer does not apply to -checkpoint");
+                renderer.render(scene, checkpoint);
+            }
+            if (checkpoint != null)
+                checkpoint.close();
 
-            // Write the image out
+            // Write the image out; the checkpoint is no longer needed once it exists
             scene.getImage().write(outputFilename);
+            if (checkpoint != null && new java.io.File(outputFilename).exists())
+                checkpoint.delete();
+        }
+
+        if (batch)
+        {
+            if (bandRows > 0 || mapped || checkpointInterval > 0 || useGBuffer || views != null)
+                System.out.println("Note: -stream, -mapped, -checkpoint, -gbuffer and -views do not apply to -batch and -fair");
+            renderer = new TileRenderer(tileSize, threads);
+            BatchRenderer pipeline = new BatchRenderer(renderer, depth);
+            pipeline.setStreamingParser(streamingParser);
+            pipeline.setCache(openCache(cacheDirectory, cacheBytes));
+            try {
+                if (fair)
+                    pipeline.runFair(batchInputs, batchPriorities, memoryBytes);
+                else
+                    pipeline.run(batchInputs);
+            }
+            catch (Exception e) {
+                System.out.println("Error occured while rendering the batch");
+                System.err.println(e);
+            }
+        }
+
+        if (renderer != null)
+            renderer.shutdown();
+    }
+
+    /**
+     * Renders a scene through the G-buffer kept in a file: the scene is only
+     * shaded again if the file holds the camera hits for its geometry and
+     * camera, and otherwise rendered in full and its hits saved to the file.
+     */
+    static void renderWithGBuffer(TileRenderer renderer, Scene scene, java.io.File file)
+    {
+        Image image = scene.getImage();
+        if ((long) image.getWidth() * image.getHeight() > GBuffer.MAX_PIXELS) {
+            System.out.println("Note: -gbuffer does not apply to images of more than "
+                    + GBuffer.MAX_PIXELS + " pixels");
+            renderer.render(scene);
+            return;
+        }
+
+        GBuffer gbuffer = null;
+        try {
+            gbuffer = GBuffer.load(file, scene);
+        }
+        catch (java.io.IOException e) {
+            System.out.println("Error occured while attempting to read the G-buffer: "+file);
+            System.err.println(e);
+        }
+        if (gbuffer == null) {
+            gbuffer = new GBuffer(scene);
+        }
+        else {
+            System.out.println("Relighting from the G-buffer, reusing the shadows of "
+                    + gbuffer.countReusedLights(scene) + " of " + scene.getLights().size() + " lights.");
+        }
+
+        renderer.render(scene, gbuffer);
+
+        try {
+            gbuffer.save(file);
+        }
+        catch (java.io.IOException e) {
+            System.out.println("Error occured while attempting to save the G-buffer: "+file);
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Opens the scene cache for the batch modes, which render without it if
+     * it cannot be used.
+     *
+     * @return the cache, or null if there is no cache directory or the cache
+     * cannot be used
+     */
+    static SceneCache openCache(java.io.File directory, long maxBytes)
+    {
+        if (directory == null)
+            return null;
+        try {
+            return new SceneCache(directory, maxBytes);
+        }
+        catch (java.io.IOException e) {
+            System.out.println("Error occured while attempting to open the scene cache; rendering without it");
+            System.err.println(e);
+            return null;
         }
     }
 
@@ -53,7 +398,7 @@ public class RayTracer {
     }
 
     /**
-     * The renderImage method renders the entire scene.
+     * The renderImage method renders the entire scene on the calling thread.
      *
      * @param scene The scene to be rendered
      */
@@ -68,365 +413,158 @@ public class RayTracer {
         /*
          * Render the image, writing the pixel values into image.
          */
+        Camera camera = scene.getCamera();
+        camera.initView(image.getWidth(), image.getHeight());
+        renderTile(scene, image, 0, 0, camera.getRenderWidth(), camera.getRenderHeight());
 
-        /* 카메라 초기 정보 로드, 새 객체로 생성 */
-        Point3 viewPoint = scene.getCamera().viewPoint;
-        viewPoint = new Point3(viewPoint.x, viewPoint.y, viewPoint.z);
-
-        Vector3 viewDir = scene.getCamera().viewDir;
-        viewDir = new Vector3(viewDir.x, viewDir.y, viewDir.z);
-        viewDir.normalize();
-
-        Vector3 viewUp = scene.getCamera().viewUp;
-        viewUp = new Vector3(viewUp.x, viewUp.y, viewUp.z);
-        viewUp.normalize();
-
-        Vector3 projNormal = scene.getCamera().projNormal;
-        projNormal = new Vector3(projNormal.x, projNormal.y, projNormal.z);
-        projNormal.normalize();
-
-        double projDistance = scene.getCamera().projDistance;
-
-
-        /* Image plane의 중앙 점 지정 */
-        Point3 planeCenterPoint = new Point3(viewPoint.x, viewPoint.y, viewPoint.z);
-        planeCenterPoint.scaleAdd(projDistance, viewDir);
-
-
-        /* Image plane을 표현하기 위한 벡터 U와 V를 지정 */
-        /* plane = planeCenterPoint + A*planeU + B*planeV */
-        Vector3 planeV = new Vector3();
-        planeV.cross(viewUp, projNormal);
-        planeV.normalize();
-        Vector3 planeU = new Vector3();
-        planeU.cross(projNormal, planeV);
-        planeV.normalize();
-
+        // Output time
+        long totalTime = (System.currentTimeMillis() - startTime);
+        System.out.println("Done.  Total rendering time: " + (totalTime / 1000.0) + " seconds");
+    }
 
-        /* Image Size 로드 */
-        double width = scene.getCamera().viewWidth;
-        double height = scene.getCamera().viewHeight;
+    /**
+     * Renders the pixels x0 <= x < x1, y0 <= y < y1 of the scene into image.
+     * The camera must already have been set up with Camera.initView.  Distinct
+     * tiles touch distinct pixels, so tiles may be rendered concurrently.
+     *
+     * @param scene The scene to be rendered
+     * @param image The image receiving the pixel values
+     */
+    static void renderTile(Scene scene, Image image, int x0, int y0, int x1, int y1) {
 
-        int pixelWidth = image.getWidth();
-        int pixelHeight = image.getHeight();
+        renderTile(new RenderContext(scene), image, x0, y0, x1, y1);
+    }
 
-        int halfWidth = pixelWidth / 2;
-        int halfHeight = pixelHeight / 2;
+    /**
+     * Renders a tile using the scratch objects of the given context, which must
+     * not be used by another thread at the same time.  Nothing is allocated
+     * per pixel.
+     */
+    static void renderTile(RenderContext ctx, Image image, int x0, int y0, int x1, int y1) {
 
+        Camera camera = ctx.scene.getCamera();
+        Point3 viewPoint = camera.viewPoint;
+        Vector3 targetVector = ctx.rayDirection;
 
         /* Camera Ray를 생성, 이를 이용하여 Tracing */
-        for(int i = -halfWidth; i <= halfWidth - 1; i++)
+        for(int x = x0; x < x1; x++)
         {
-            for(int j = -halfHeight; j <= halfHeight - 1; j++)
+            for(int y = y0; y < y1; y++)
             {
-                Point3 targetPoint = new Point3(planeCenterPoint);
-                targetPoint.scaleAdd((double)i / (double)halfWidth * width, planeV);
-                targetPoint.scaleAdd((double)j / (double)halfHeight * height, planeU);
-
-                Vector3 targetVector = new Vector3();
-                targetVector.sub(targetPoint, viewPoint);
-                targetVector.normalize();
+                camera.getRayDirection(targetVector, x, y);
 
-                Color targetPointColor = calculateColor(scene, viewPoint, targetVector);
-                image.setPixelColor(targetPointColor, i + halfWidth, j + halfHeight);
+                Color targetPointColor = calculateColor(ctx, viewPoint, targetVector);
+                image.setPixelColor(targetPointColor, x, y);
             }
         }
-
-
-        // Output time
-        long totalTime = (System.currentTimeMillis() - startTime);
-        System.out.println("Done.  Total rendering time: " + (totalTime / 1000.0) + " seconds");
     }
 
-    private static Color calculateColor(Scene scene, Point3 viewPoint, Vector3 direction)
+    /**
+     * Computes the color seen along a ray.  The returned color is the scratch
+     * color of the context and is overwritten by the next call.
+     */
+    static Color calculateColor(RenderContext ctx, Point3 viewPoint, Vector3 direction)
     {
-        ArrayList surfaces = scene.getSurfaces();
-        double projDistance = scene.getCamera().projDistance;
-
-        Surface targetSurface = (Surface)surfaces.get(0);
-        double targetT = 2147483647.0;
-        boolean isexist = false;
-
-        for(int i = 0; i < surfaces.size(); i++)
-        {
-            if(surfaces.get(i) instanceof ray.surface.Sphere) //Sphere
-            {
-                Point3 sphereCenter = new Point3(((Sphere)surfaces.get(i)).center);
-                double sphereRadius = ((Sphere)surfaces.get(i)).radius;
-
-                Vector3 u = new Vector3();
-                u.sub(viewPoint, sphereCenter);
-
-                double t = -u.dot(direction) - Math.sqrt(Math.pow(u.dot(direction), 2.0) - u.dot(u) + Math.pow(sphereRadius, 2.0));
-                if(t < 0)
-                    t = -u.dot(direction) + Math.sqrt(Math.pow(u.dot(direction), 2.0) - u.dot(u) + Math.pow(sphereRadius, 2.0));
-                
-                if(targetT > t && t > 0)
-                {
-                    targetT = t;
-                    targetSurface = (Surface)surfaces.get(i);
-                    isexist = true;
-                }
-            }
-            else //Box
-            {
-                Point3 minPt = new Point3(((Box)surfaces.get(i)).minPt);
-                Point3 maxPt = new Point3(((Box)surfaces.get(i)).maxPt);
-
-                double tx1 = (minPt.x - viewPoint.x) / direction.x;
-                double ty1 = (minPt.y - viewPoint.y) / direction.y;
-                double tz1 = (minPt.z - viewPoint.z) / direction.z;
-
-                double tx2 = (maxPt.x - viewPoint.x) / direction.x;
-                double ty2 = (maxPt.y - viewPoint.y) / direction.y;
-                double tz2 = (maxPt.z - viewPoint.z) / direction.z;
-
-                double txmin = Math.min(tx1, tx2);
-                double tymin = Math.min(ty1, ty2);
-                double tzmin = Math.min(tz1, tz2);
-
-                double txmax = Math.max(tx1, tx2);
-                double tymax = Math.max(ty1, ty2);
-                double tzmax = Math.max(tz1, tz2);
-
-                double tmin = Math.max(txmin, tymin);
-                tmin = Math.max(tmin, tzmin);
+        Color returnColor = ctx.color;
+        returnColor.set(0, 0, 0);
 
-                double tmax = Math.min(txmax, tymax);
-                tmax = Math.min(tmax, tzmax);
+        IntersectionRecord hit = ctx.hit;
+        if(!ctx.query.closestHit(hit, viewPoint, direction, 0, 2147483647.0))
+            return returnColor;
 
-                if(tmin > tmax)
-                    continue;
-
-                double t = tmin;
-
-                if(targetT > t && t > 0)
-                {
-                    targetT = t;
-                    targetSurface = (Surface)surfaces.get(i);
-                    isexist = true;
-                }
-            }
-        }
+        return shade(ctx, direction, hit, null, 0);
+    }
 
-        if(isexist == false)
-            return (new Color(0, 0, 0));
+    /**
+     * Computes the color of a hit seen along a ray.  The returned color is the
+     * scratch color of the context and is overwritten by the next call.
+     *
+     * @param hit the closest hit of the ray
+     * @param gbuffer answers the shadow tests of the pixel, or null to trace them
+     * @param pixel index of the pixel in the G-buffer
+     */
+    static Color shade(RenderContext ctx, Vector3 direction, IntersectionRecord hit, GBuffer gbuffer, int pixel)
+    {
+        Color returnColor = ctx.color;
+        returnColor.set(0, 0, 0);
 
-        Point3 tgPoint = new Point3(viewPoint);
-        tgPoint.scaleAdd(targetT, direction);
+        Surface targetSurface = hit.surface;
+        Point3 tgPoint = hit.location;
+        Vector3 nVec = hit.normal;
 
         Shader shader = targetSurface.shader;
-        ArrayList lightlist = scene.getLights();
+        ArrayList lightlist = ctx.scene.getLights();
 
-        Color returnColor = new Color();
+        Vector3 lightDir = ctx.lightDir;
+        Color diffuse = ctx.diffuse;
 
-        if(targetSurface instanceof ray.surface.Sphere) //Sphere
+        if (shader.getClass().equals(Lambertian.class)) //Lambertian
         {
-            Sphere sphere = (Sphere)targetSurface;
-            Point3 sphereCenter = new Point3(sphere.center);
-            double sphereRadius = sphere.radius;
+            Lambertian lam = (Lambertian)shader;
 
-            Vector3 nVec = new Vector3();
-            nVec.sub(tgPoint, sphereCenter);
-            nVec.normalize();
-
-            if (shader.getClass().equals(Lambertian.class)) //Lambertian
+            for(int i = 0; i < lightlist.size(); i++)
             {
-                Lambertian lam = (Lambertian)shader;
-
-                for(int i = 0; i < lightlist.size(); i++)
+                Light light = (Light)lightlist.get(i);
+                Point3 lightPos = light.position;
+                Color lightIntense = light.intensity;
+
+                lightDir.sub(lightPos, tgPoint);
+                lightDir.normalize();
+
+                diffuse.set(lam.diffuseColor);
+                diffuse.scale(lightIntense);
+                if(nVec.dot(lightDir) > 0)
+                    diffuse.scale(nVec.dot(lightDir));
+                else
+                    diffuse.set(0, 0, 0);
+
+                if(!(gbuffer != null ? gbuffer.isShadowed(ctx, i, pixel, tgPoint, lightPos)
+                        : isShadowed(ctx, i, tgPoint, lightPos)))
                 {
-                    Light light = (Light)lightlist.get(i);
-                    Point3 lightPos = new Point3(light.position);
-                    Color lightIntense = new Color(light.intensity);
-
-                    Vector3 lightDir = new Vector3();
-                    lightDir.sub(lightPos, tgPoint);
-                    lightDir.normalize();
-
-                    Color diffuse = new Color();
-
-                    diffuse.add(lam.diffuseColor);
-                    diffuse.scale(lightIntense);
-                    if(nVec.dot(lightDir) > 0)
-                        diffuse.scale(nVec.dot(lightDir));
-                    else
-                        diffuse.set(0, 0, 0);
-
-                    if(CheckIfShadow(surfaces, tgPoint, lightPos) < 2)
-                    {
-                        returnColor.add(diffuse);
-                    }
-                }
-            }
-            else //Phong
-            {
-                Phong pho = (Phong)shader;
-
-                for(int i = 0; i < lightlist.size(); i++)
-                {
-                    Light light = (Light)lightlist.get(i);
-                    Point3 lightPos = new Point3(light.position);
-                    Color lightIntense = new Color(light.intensity);
-
-                    Vector3 lightDir = new Vector3();
-                    lightDir.sub(lightPos, tgPoint);
-                    lightDir.normalize();
-
-                    Color diffuse = new Color();
-
-                    diffuse.add(pho.diffuseColor);
-                    diffuse.scale(lightIntense);
-                    if(nVec.dot(lightDir) > 0)
-                        diffuse.scale(nVec.dot(lightDir));
-                    else
-                        diffuse.set(0, 0, 0);
-
-
-                    Vector3 hVec = new Vector3();
-                    hVec.add(new Vector3(-direction.x, -direction.y, -direction.z), lightDir);
-                    hVec.normalize();
-
-                    Color specular = new Color();
-                    double exponent = pho.exponent;
-
-                    specular.add(pho.specularColor);
-                    specular.scale(lightIntense);
-                    if(nVec.dot(hVec) > 0)
-                        specular.scale(Math.pow(nVec.dot(hVec), exponent));
-                    else
-                        specular.set(0, 0, 0);
-
-                    if(CheckIfShadow(surfaces, tgPoint, lightPos) < 2)
-                    {
-                        returnColor.add(diffuse);
-                        returnColor.add(specular);
-                    }
+                    returnColor.add(diffuse);
                 }
             }
         }
-        else if(targetSurface instanceof ray.surface.Box) //Box
+        else //Phong
         {
-            Box box = (Box)targetSurface;
-            Point3 minPt = box.minPt;
-            Point3 maxPt = box.maxPt;
-            Point3 midPt = new Point3((minPt.x + maxPt.x) / 2.0, (minPt.y + maxPt.y) / 2.0, (minPt.z + maxPt.z) / 2.0);
-
-            double XY = (maxPt.x - minPt.x) * (maxPt.y - minPt.y);
-            double YZ = (maxPt.y - minPt.y) * (maxPt.z - minPt.z);
-            double ZX = (maxPt.z - minPt.z) * (maxPt.x - minPt.x);
-
-            Vector3 tempVec = new Vector3();
-            tempVec.sub(tgPoint, midPt);
-            tempVec.normalize();
-
-            Vector3 nVec = new Vector3(1, 0, 0);
-            double chk = tempVec.dot(nVec) * YZ;
+            Phong pho = (Phong)shader;
+            Vector3 hVec = ctx.halfVector;
+            Color specular = ctx.specular;
 
-            if(tempVec.dot(new Vector3(0, 1, 0)) * ZX > chk)
+            for(int i = 0; i < lightlist.size(); i++)
             {
-                nVec.set(0, 1, 0);
-                chk = tempVec.dot(nVec) * ZX;
-            }
-
-            if(tempVec.dot(new Vector3(0, 0, 1)) * XY > chk)
-            {
-                nVec.set(0, 0, 1);
-                chk = tempVec.dot(nVec) * XY;
-            }
+                Light light = (Light)lightlist.get(i);
+                Point3 lightPos = light.position;
+                Color lightIntense = light.intensity;
 
-            if(tempVec.dot(new Vector3(-1, 0, 0)) * YZ > chk)
-            {
-                nVec.set(-1, 0, 0);
-                chk = tempVec.dot(nVec) * YZ;
-            }
+                lightDir.sub(lightPos, tgPoint);
+                lightDir.normalize();
 
-            if(tempVec.dot(new Vector3(0, -1, 0)) * ZX > chk)
-            {
-                nVec.set(0, -1, 0);
-                chk = tempVec.dot(nVec) * ZX;
-            }
+                diffuse.set(pho.diffuseColor);
+                diffuse.scale(lightIntense);
+                if(nVec.dot(lightDir) > 0)
+                    diffuse.scale(nVec.dot(lightDir));
+                else
+                    diffuse.set(0, 0, 0);
 
-            if(tempVec.dot(new Vector3(0, 0, -1)) * XY > chk)
-            {
-                nVec.set(0, 0, -1);
-                chk = tempVec.dot(nVec) * XY;
-            }
-            
-            nVec.normalize();
 
-            if (shader.getClass().equals(Lambertian.class)) //Lambertian
-            {
-                Lambertian lam = (Lambertian)shader;
+                hVec.set(-direction.x + lightDir.x, -direction.y + lightDir.y, -direction.z + lightDir.z);
+                hVec.normalize();
 
-                for(int i = 0; i < lightlist.size(); i++)
-                {
-                    Light light = (Light)lightlist.get(i);
-                    Point3 lightPos = new Point3(light.position);
-                    Color lightIntense = new Color(light.intensity);
-
-                    Vector3 lightDir = new Vector3();
-                    lightDir.sub(lightPos, tgPoint);
-                    lightDir.normalize();
-
-                    Color diffuse = new Color();
-
-                    diffuse.add(lam.diffuseColor);
-                    diffuse.scale(lightIntense);
-                    if(nVec.dot(lightDir) > 0)
-                        diffuse.scale(nVec.dot(lightDir));
-                    else
-                        diffuse.set(0, 0, 0);
-
-                    if(CheckIfShadow(surfaces, tgPoint, lightPos) == 0)
-                    {
-                        returnColor.add(diffuse);
-                    }
-                }
+                double exponent = pho.exponent;
 
-            }
-            else //Phong
-            {
-                Phong pho = (Phong)shader;
+                specular.set(pho.specularColor);
+                specular.scale(lightIntense);
+                if(nVec.dot(hVec) > 0)
+                    specular.scale(Math.pow(nVec.dot(hVec), exponent));
+                else
+                    specular.set(0, 0, 0);
 
-                for(int i = 0; i < lightlist.size(); i++)
+                if(!(gbuffer != null ? gbuffer.isShadowed(ctx, i, pixel, tgPoint, lightPos)
+                        : isShadowed(ctx, i, tgPoint, lightPos)))
                 {
-                    Light light = (Light)lightlist.get(i);
-                    Point3 lightPos = new Point3(light.position);
-                    Color lightIntense = new Color(light.intensity);
-
-                    Vector3 lightDir = new Vector3();
-                    lightDir.sub(lightPos, tgPoint);
-                    lightDir.normalize();
-
-                    Color diffuse = new Color();
-
-                    diffuse.add(pho.diffuseColor);
-                    diffuse.scale(lightIntense);
-                    if(nVec.dot(lightDir) > 0)
-                        diffuse.scale(nVec.dot(lightDir));
-                    else
-                        diffuse.set(0, 0, 0);
-
-                    Vector3 hVec = new Vector3();
-                    hVec.add(new Vector3(-direction.x, -direction.y, -direction.z), lightDir);
-                    hVec.normalize();
-
-                    Color specular = new Color();
-                    double exponent = pho.exponent;
-
-                    specular.add(pho.specularColor);
-                    specular.scale(lightIntense);
-                    if(nVec.dot(hVec) > 0)
-                        specular.scale(Math.pow(nVec.dot(hVec), exponent));
-                    else
-                        specular.set(0, 0, 0);
-
-                    if(CheckIfShadow(surfaces, tgPoint, lightPos) == 0)
-                    {
-                        returnColor.add(diffuse);
-                        returnColor.add(specular);
-                    }
+                    returnColor.add(diffuse);
+                    returnColor.add(specular);
                 }
             }
         }
@@ -434,70 +572,36 @@ public class RayTracer {
         return returnColor;
     }
 
-    private static int CheckIfShadow(ArrayList surfaces, Point3 tgPoint, Point3 lightPos)
+    /**
+     * Checks whether anything lies between tgPoint and the light, that is
+     * whether any surface is crossed strictly between SHADOW_EPSILON and the
+     * light.  The lower bound keeps a surface from shadowing the point the ray
+     * starts from.
+     *
+     * The surface that blocked the previous shadow ray towards the same light
+     * is tried first, since neighbouring pixels are usually shadowed by the
+     * same object.
+     *
+     * @param ctx context holding the last blocker found for each light
+     * @param lightIndex index of the light in the scene
+     */
+    static boolean isShadowed(RenderContext ctx, int lightIndex, Point3 tgPoint, Point3 lightPos)
     {
-        int count = 0;
-
-        Vector3 direction = new Vector3();
+        Vector3 direction = ctx.shadowDir;
         direction.sub(lightPos, tgPoint);
+        double distance = direction.length();
         direction.normalize();
 
-        for(int i = 0; i < surfaces.size(); i++)
-        {
-            if(surfaces.get(i) instanceof ray.surface.Sphere) //Sphere
-            {
-                Point3 sphereCenter = new Point3(((Sphere)surfaces.get(i)).center);
-                double sphereRadius = ((Sphere)surfaces.get(i)).radius;
-
-                Vector3 u = new Vector3();
-                u.sub(tgPoint, sphereCenter);
-
-                double t1 = -u.dot(direction) - Math.sqrt(Math.pow(u.dot(direction), 2.0) - u.dot(u) + Math.pow(sphereRadius, 2.0));
-                double t2 = -u.dot(direction) + Math.sqrt(Math.pow(u.dot(direction), 2.0) - u.dot(u) + Math.pow(sphereRadius, 2.0));
-
-                if(t1 > 0)
-                    count++;
-
-                if(t2 > 0)
-                    count++;
-            }
-            else //Box
-            {
-                Point3 minPt = new Point3(((Box)surfaces.get(i)).minPt);
-                Point3 maxPt = new Point3(((Box)surfaces.get(i)).maxPt);
+        Surface lastOccluder = ctx.occluders[lightIndex];
+        if(lastOccluder != null && lastOccluder.intersect(ctx.shadowHit, tgPoint, direction, SHADOW_EPSILON, distance))
+            return true;
 
-                double tx1 = (minPt.x - tgPoint.x) / direction.x;
-                double ty1 = (minPt.y - tgPoint.y) / direction.y;
-                double tz1 = (minPt.z - tgPoint.z) / direction.z;
-
-                double tx2 = (maxPt.x - tgPoint.x) / direction.x;
-                double ty2 = (maxPt.y - tgPoint.y) / direction.y;
-                double tz2 = (maxPt.z - tgPoint.z) / direction.z;
-
-                double txmin = Math.min(tx1, tx2);
-                double tymin = Math.min(ty1, ty2);
-                double tzmin = Math.min(tz1, tz2);
-
-                double txmax = Math.max(tx1, tx2);
-                double tymax = Math.max(ty1, ty2);
-                double tzmax = Math.max(tz1, tz2);
-
-                double tmin = Math.max(txmin, tymin);
-                tmin = Math.max(tmin, tzmin);
-
-                double tmax = Math.min(txmax, tymax);
-                tmax = Math.min(tmax, tzmax);
-
-                if(tmin > tmax)
-                    continue;
-
-                double t = tmin;
-
-                if(t > 0)
-                    count++;
-            }
+        if(ctx.query.occluded(tgPoint, direction, SHADOW_EPSILON, distance))
+        {
+            ctx.occluders[lightIndex] = ctx.query.getOccluder();
+            return true;
         }
 
-        return count;
+        return false;
     }
 }
@@ -0,0 +1,51 @@
+package ray;
+
+import ray.accel.GeometryStore;
+import ray.math.Color;
+import ray.math.Vector3;
+import ray.surface.Surface;
+
+/**
+ * Scratch objects used while tracing rays through a scene.  Reusing them keeps
+ * the per-pixel path free of allocation.  A context belongs to one thread at a
+ * time; every render thread creates its own.
+ */
+public class RenderContext {
+
+	/** The scene being rendered. */
+	final Scene scene;
+
+	/** Compiled geometry of the scene. */
+	final GeometryStore geometry;
+
+	/** Ray queries against the geometry. */
+	final GeometryStore.Query query;
+
+	/** Last surface found to block the shadow ray towards each light. */
+	final Surface[] occluders;
+
+	/* Intersections of camera and shadow rays. */
+	final IntersectionRecord hit = new IntersectionRecord();
+	final IntersectionRecord shadowHit = new IntersectionRecord();
+
+	/* Scratch vectors and colors. */
+	final Vector3 rayDirection = new Vector3();
+	final Vector3 lightDir = new Vector3();
+	final Vector3 halfVector = new Vector3();
+	final Vector3 shadowDir = new Vector3();
+	final Color color = new Color();
+	final Color diffuse = new Color();
+	final Color specular = new Color();
+
+	/**
+	 * Create the scratch state for rendering the given scene.
+	 * @param scene the scene to be rendered
+	 */
+	public RenderContext(Scene scene) {
+
+		this.scene = scene;
+		this.geometry = scene.getAcceleration();
+		this.query = geometry.newQuery();
+		this.occluders = new Surface[scene.getLights().size()];
+	}
+}
@@ -0,0 +1,382 @@
+package ray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import ray.accel.GeometryStore;
+
+/**
+ * Long-lived renderer that takes requests over stdin or a Unix domain socket,
+ * so that a pipeline rendering many frames pays for JVM startup, class loading
+ * and JIT warmup once.  Parsed scenes are kept in memory with their compiled
+ * geometry, and are parsed again only when their file changes.
+ *
+ * Requests are single lines of whitespace separated words, so paths must not
+ * contain whitespace:
+ *   render [-o out.png] [-res WxH] scene.xml ...
+ *                        render each scene, by default to <scene>.png
+ *   stats                report the number of requests and cached scenes
+ *   clear                forget the cached scenes
+ *   quit                 close the connection (on stdin: stop)
+ *   shutdown             stop the daemon
+ *
+ * Every scene rendered is answered with one line, either
+ *   ok scene=S output=O cached=true|false load_ms=T render_ms=T write_ms=T total_ms=T
+ * or
+ *   error scene=S message=M
+ * and other requests with one line starting with ok or error.  Renders are
+ * done one at a time, each on all render threads; requests on other
+ * connections wait for their turn.
+ *
+ * Usage: java ray.RenderDaemon [options]
+ *   -socket PATH   listen on a Unix domain socket instead of stdin
+ *   -threads N     number of render threads (default: number of processors)
+ *   -tile N        edge length of a render tile in pixels (default: 32)
+ *   -scenes N      number of parsed scenes kept in memory (default: 32)
+ *   -cache DIR     also keep parsed scenes in an on-disk SceneCache
+ */
+public class RenderDaemon {
+
+	/** Number of scenes kept in memory when none is given. */
+	public static final int DEFAULT_SCENES = 32;
+
+	protected final TileRenderer renderer;
+	protected final SceneCache diskCache;
+
+	/** Parsed scenes by canonical path, least recently used first. */
+	protected final LinkedHashMap<String, CachedScene> scenes;
+
+	/** Held while a scene is loaded and rendered. */
+	protected final Object renderLock = new Object();
+
+	protected long requests;
+	protected volatile boolean stopped;
+	protected ServerSocketChannel server;
+
+	/**
+	 * A parsed scene and the version of its file.
+	 */
+	protected static class CachedScene {
+
+		protected final Scene scene;
+		protected final long lastModified;
+		protected final long length;
+
+		protected CachedScene(Scene scene, long lastModified, long length) {
+
+			this.scene = scene;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * @param renderer renders the scenes
+	 * @param maxScenes number of parsed scenes kept in memory
+	 * @param diskCache on-disk cache of parsed scenes, or null
+	 */
+	public RenderDaemon(TileRenderer renderer, final int maxScenes, SceneCache diskCache) {
+
+		this.renderer = renderer;
+		this.diskCache = diskCache;
+		this.scenes = new LinkedHashMap<String, CachedScene>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, CachedScene> eldest) {
+				return size() > maxScenes;
+			}
+		};
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		int tileSize = TileRenderer.DEFAULT_TILE_SIZE;
+		int maxScenes = DEFAULT_SCENES;
+		String socket = null;
+		SceneCache diskCache = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-socket")) {
+				socket = args[++i];
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-tile")) {
+				tileSize = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-scenes")) {
+				maxScenes = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cache")) {
+				diskCache = new SceneCache(new File(args[++i]), SceneCache.DEFAULT_MAX_BYTES);
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+				return;
+			}
+		}
+
+		// Replies own stdout; anything else printed goes to stderr
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+
+		RenderDaemon daemon = new RenderDaemon(new TileRenderer(tileSize, threads), maxScenes, diskCache);
+		try {
+			if (socket != null) {
+				daemon.listen(new File(socket));
+			} else {
+				daemon.serve(new InputStreamReader(System.in, StandardCharsets.UTF_8),
+						new OutputStreamWriter(stdout, StandardCharsets.UTF_8));
+			}
+		} finally {
+			daemon.renderer.shutdown();
+		}
+	}
+
+	/**
+	 * Accept connections on a Unix domain socket until shutdown is requested,
+	 * serving each on its own thread.  The socket file is replaced if it
+	 * exists and removed on exit.
+	 * @param path the socket file
+	 */
+	public void listen(File path) throws IOException {
+
+		Files.deleteIfExists(path.toPath());
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			server.bind(UnixDomainSocketAddress.of(path.toPath()));
+			System.err.println("Listening on " + path);
+			while (!stopped) {
+				final SocketChannel channel;
+				try {
+					channel = server.accept();
+				} catch (IOException e) {
+					if (stopped)
+						break;
+					throw e;
+				}
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						try {
+							serve(Channels.newReader(channel, StandardCharsets.UTF_8),
+									Channels.newWriter(channel, StandardCharsets.UTF_8));
+						} catch (IOException e) {
+							System.err.println("Connection failed: " + e);
+						} finally {
+							try {
+								channel.close();
+							} catch (IOException e) {
+								// Already gone
+							}
+						}
+					}
+				}, "render-daemon-connection");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} finally {
+			server.close();
+			Files.deleteIfExists(path.toPath());
+		}
+	}
+
+	/**
+	 * Answer the requests read from a stream until it ends, or until quit or
+	 * shutdown is requested.
+	 * @param in the requests, one per line
+	 * @param out receives the replies, flushed after every request
+	 */
+	public void serve(Reader in, Writer out) throws IOException {
+
+		BufferedReader reader = new BufferedReader(in);
+		PrintWriter writer = new PrintWriter(out);
+		String line;
+		while (!stopped && (line = reader.readLine()) != null) {
+			String[] words = line.trim().split("\\s+");
+			if (words[0].isEmpty())
+				continue;
+			if (words[0].equals("quit")) {
+				writer.println("ok bye");
+				writer.flush();
+				return;
+			}
+			if (words[0].equals("shutdown")) {
+				writer.println("ok shutting down");
+				writer.flush();
+				shutdown();
+				return;
+			}
+			handle(words, writer);
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Stop accepting requests.  Requests being rendered are finished.
+	 */
+	public void shutdown() {
+
+		stopped = true;
+		ServerSocketChannel s = server;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Answer one request other than quit and shutdown.
+	 * @param words the words of the request
+	 * @param out receives the replies
+	 */
+	protected void handle(String[] words, PrintWriter out) {
+
+		if (words[0].equals("stats")) {
+			synchronized (renderLock) {
+				out.println("ok requests=" + requests + " scenes=" + scenes.size() + " threads="
+						+ renderer.getThreads());
+			}
+		} else if (words[0].equals("clear")) {
+			synchronized (renderLock) {
+				scenes.clear();
+			}
+			out.println("ok cleared");
+		} else if (words[0].equals("render")) {
+			String output = null;
+			int width = 0;
+			int height = 0;
+			boolean rendered = false;
+			for (int i = 1; i < words.length; i++) {
+				try {
+					if (words[i].equals("-o")) {
+						output = words[++i];
+						continue;
+					}
+					if (words[i].equals("-res")) {
+						String[] size = words[++i].split("x");
+						width = Integer.parseInt(size[0]);
+						height = Integer.parseInt(size[1]);
+						continue;
+					}
+				} catch (RuntimeException e) {
+					out.println("error message=Invalid option " + words[i - 1]);
+					return;
+				}
+				out.println(render(words[i], output != null ? output : words[i] + ".png", width, height));
+				output = null;
+				rendered = true;
+			}
+			if (!rendered)
+				out.println("error message=No scene given");
+		} else {
+			out.println("error message=Unknown request " + words[0]);
+		}
+	}
+
+	/**
+	 * Render a scene to a PNG file.
+	 * @param sceneName the scene file
+	 * @param output the PNG file
+	 * @param width image width, or 0 to use the scene's
+	 * @param height image height, or 0 to use the scene's
+	 * @return the reply line
+	 */
+	protected String render(String sceneName, String output, int width, int height) {
+
+		synchronized (renderLock) {
+			requests++;
+			long startTime = System.nanoTime();
+			Scene scene = null;
+			Image image = null;
+			try {
+				boolean[] cached = new boolean[1];
+				scene = loadScene(new File(sceneName), cached);
+				long loaded = System.nanoTime();
+
+				// The scene is shared between requests, so it gets a fresh image each time
+				image = scene.getImage();
+				scene.setImage(new Image(width > 0 ? width : image.getWidth(), height > 0 ? height : image.getHeight()));
+				renderer.renderTiles(scene);
+				long rendered = System.nanoTime();
+
+				// Image.write reports failures only by not writing the file
+				File file = new File(output);
+				file.delete();
+				scene.getImage().write(output);
+				long written = System.nanoTime();
+				if (!file.isFile())
+					return "error scene=" + sceneName + " message=Could not write " + output;
+
+				return "ok scene=" + sceneName + " output=" + output + " cached=" + cached[0]
+						+ " load_ms=" + millis(loaded - startTime) + " render_ms=" + millis(rendered - loaded)
+						+ " write_ms=" + millis(written - rendered) + " total_ms=" + millis(written - startTime);
+			} catch (Exception e) {
+				return "error scene=" + sceneName + " message=" + String.valueOf(e.getMessage()).replace('\n', ' ');
+			} finally {
+				if (image != null)
+					scene.setImage(image);
+			}
+		}
+	}
+
+	/**
+	 * Get a scene with its compiled geometry, from memory if its file has not
+	 * changed since it was parsed.  Must be called holding renderLock.
+	 * @param file the scene file
+	 * @param cached receives whether the scene came from memory
+	 */
+	protected Scene loadScene(File file, boolean[] cached) throws IOException {
+
+		if (!file.isFile())
+			throw new IOException("No such file " + file);
+		String key = file.getCanonicalPath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		CachedScene entry = scenes.get(key);
+		if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+			cached[0] = true;
+			return entry.scene;
+		}
+
+		Scene scene = null;
+		String diskKey = null;
+		if (diskCache != null) {
+			diskKey = diskCache.key(file);
+			scene = diskCache.load(diskKey);
+		}
+		if (scene == null) {
+			if (BinaryScene.isBinary(file))
+				scene = BinaryScene.read(file);
+			else
+				scene = (Scene) new StreamParser().parse(file.getPath(), Scene.class);
+			if (scene == null)
+				throw new IOException("Could not parse " + file);
+			scene.setAcceleration(new GeometryStore(scene.getSurfaces()));
+			if (diskCache != null)
+				diskCache.store(diskKey, scene);
+		}
+
+		scenes.put(key, new CachedScene(scene, lastModified, length));
+		cached[0] = false;
+		return scene;
+	}
+
+	private static String millis(long nanos) {
+
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+}
@@ -0,0 +1,784 @@
+package ray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ray.accel.GeometryStore;
+
+/**
+ * Local HTTP render service.  Scenes are posted as XML or in the binary scene
+ * format and become jobs, which wait in a queue ordered by priority and are
+ * rendered a few at a time on one shared pool of render threads.  Parsed
+ * scenes are kept in memory with their compiled geometry, keyed by a hash of
+ * their contents, so posting the same scene again skips parsing and building
+ * the hierarchies.  The service only listens on the loopback interface.
+ *
+ * Requests:
+ *   POST   /jobs          queue the scene in the body; replies 202 with the
+ *                         job's status, or 503 if the queue is full
+ *   GET    /jobs/ID       the job's status
+ *   GET    /jobs/ID/image wait for the job, then reply with its PNG, or 409
+ *                         with its status if it did not finish
+ *   DELETE /jobs/ID       cancel the job
+ *   POST   /render        queue the scene in the body and reply as for /image
+ *   GET    /stats         counters of the service
+ *   POST   /shutdown      cancel all jobs and stop
+ *
+ * POST /jobs and /render take the query parameters
+ *   priority=P    jobs with a higher priority are started first (default 0)
+ *   deadline=MS   the job is given up MS milliseconds after it is posted
+ *   res=WxH       image size, instead of the scene's
+ *
+ * Status replies are JSON objects with the fields id, state (queued,
+ * running, done, failed, cancelled or expired), priority, tiles, tiles_done,
+ * cached, queue_ms, render_ms, total_ms and, for failed jobs, message.
+ * Cancelling or expiring a running job skips its remaining tiles, so it stops
+ * within about one tile per render thread.
+ *
+ * Usage: java ray.RenderService [options]
+ *   -port N        port to listen on, or 0 for any free port (default: 8080)
+ *   -threads N     number of render threads (default: number of processors)
+ *   -tile N        edge length of a render tile in pixels (default: 32)
+ *   -jobs N        number of jobs rendered at the same time (default: 2)
+ *   -queue N       number of jobs allowed to wait (default: 256)
+ *   -scenes N      number of parsed scenes kept in memory (default: 32)
+ *   -keep N        number of finished jobs kept for polling (default: 256)
+ */
+public class RenderService {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_JOBS = 2;
+	public static final int DEFAULT_QUEUE = 256;
+	public static final int DEFAULT_SCENES = 32;
+	public static final int DEFAULT_KEEP = 256;
+
+	/* States of a job. */
+	public static final String QUEUED = "queued";
+	public static final String RUNNING = "running";
+	public static final String DONE = "done";
+	public static final String FAILED = "failed";
+	public static final String CANCELLED = "cancelled";
+	public static final String EXPIRED = "expired";
+
+	/** Rows encoded at a time when compressing an image. */
+	protected static final int PNG_BAND_ROWS = 64;
+
+	protected final TileRenderer renderer;
+	protected final int maxQueued;
+	protected final int keep;
+
+	/** Jobs waiting to be rendered, highest priority first, then oldest first. */
+	protected final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>(16, new Comparator<Job>() {
+		public int compare(Job a, Job b) {
+			if (a.priority != b.priority)
+				return a.priority > b.priority ? -1 : 1;
+			return Long.compare(a.id, b.id);
+		}
+	});
+
+	/** All jobs known by id; also guards finished and the counters. */
+	protected final HashMap<Long, Job> jobs = new HashMap<Long, Job>();
+
+	/** Finished jobs, oldest first. */
+	protected final ArrayDeque<Job> finished = new ArrayDeque<Job>();
+
+	/** Parsed scenes by content hash, least recently used first. */
+	protected final LinkedHashMap<String, SceneEntry> scenes;
+
+	protected final Thread[] workers;
+	protected final AtomicInteger running = new AtomicInteger();
+	protected long nextId = 1;
+	protected long submitted;
+	protected long sceneHits;
+	protected volatile boolean stopped;
+	protected HttpServer server;
+	protected ExecutorService handlers;
+
+	/**
+	 * A scene to be rendered and its progress.  The state moves from queued to
+	 * running to one of the final states, or straight from queued to a final
+	 * state, and changes only while the job is locked.
+	 */
+	protected static class Job {
+
+		protected final long id;
+		protected final int priority;
+		protected final int width;
+		protected final int height;
+		protected final long submitted = System.nanoTime();
+		protected final TileRenderer.Control control;
+		protected final CountDownLatch ended = new CountDownLatch(1);
+
+		/** The posted scene, dropped once the job has started. */
+		protected byte[] body;
+
+		protected volatile String state = QUEUED;
+		protected volatile String message;
+		protected volatile boolean cached;
+		protected volatile int tiles;
+		protected volatile long started;
+		protected volatile long endTime;
+		protected volatile byte[] png;
+
+		protected Job(long id, int priority, int width, int height, long deadlineMillis, byte[] body) {
+
+			this.id = id;
+			this.priority = priority;
+			this.width = width;
+			this.height = height;
+			this.body = body;
+			this.control = deadlineMillis > 0
+					? new TileRenderer.Control(submitted + deadlineMillis * 1000000L)
+					: new TileRenderer.Control();
+		}
+
+		/**
+		 * Move a queued job to running.
+		 * @return false if the job was stopped before it could start
+		 */
+		protected synchronized boolean start() {
+
+			if (state != QUEUED || control.isStopped())
+				return false;
+			state = RUNNING;
+			started = System.nanoTime();
+			return true;
+		}
+
+		/**
+		 * Move the job to a final state unless it is in one already.
+		 * @return whether the state changed
+		 */
+		protected synchronized boolean finish(String finalState, String finalMessage) {
+
+			if (state != QUEUED && state != RUNNING)
+				return false;
+			if (started == 0)
+				started = System.nanoTime();
+			state = finalState;
+			message = finalMessage;
+			endTime = System.nanoTime();
+			body = null;
+			ended.countDown();
+			return true;
+		}
+
+		protected synchronized byte[] takeBody() {
+
+			byte[] result = body;
+			body = null;
+			return result;
+		}
+	}
+
+	/**
+	 * A parsed scene, or the place for one while it is being parsed.
+	 */
+	protected static class SceneEntry {
+
+		protected Scene scene;
+	}
+
+	/**
+	 * @param renderer renders the jobs; its threads are shared by all jobs
+	 * @param jobCount number of jobs rendered at the same time
+	 * @param maxQueued number of jobs allowed to wait
+	 * @param maxScenes number of parsed scenes kept in memory
+	 * @param keep number of finished jobs kept for polling
+	 */
+	public RenderService(TileRenderer renderer, int jobCount, int maxQueued, final int maxScenes, int keep) {
+
+		if (jobCount < 1)
+			throw new IllegalArgumentException("Job count must be positive: " + jobCount);
+		this.renderer = renderer;
+		this.maxQueued = maxQueued;
+		this.keep = keep;
+		this.scenes = new LinkedHashMap<String, SceneEntry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, SceneEntry> eldest) {
+				return size() > maxScenes;
+			}
+		};
+		this.workers = new Thread[jobCount];
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		int port = DEFAULT_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int tileSize = TileRenderer.DEFAULT_TILE_SIZE;
+		int jobCount = DEFAULT_JOBS;
+		int maxQueued = DEFAULT_QUEUE;
+		int maxScenes = DEFAULT_SCENES;
+		int keep = DEFAULT_KEEP;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-tile")) {
+				tileSize = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-jobs")) {
+				jobCount = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-queue")) {
+				maxQueued = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-scenes")) {
+				maxScenes = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-keep")) {
+				keep = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+				return;
+			}
+		}
+
+		TileRenderer renderer = new TileRenderer(tileSize, threads);
+		RenderService service = new RenderService(renderer, jobCount, maxQueued, maxScenes, keep);
+		try {
+			service.start(port);
+			System.out.println("Listening on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+					+ service.getPort() + "/ (" + jobCount + " jobs at a time on " + renderer.getThreads()
+					+ " threads)");
+			service.awaitShutdown();
+		} finally {
+			service.shutdown();
+			renderer.shutdown();
+		}
+	}
+
+	/**
+	 * Start the render workers and listen on the loopback interface.
+	 * @param port the port, or 0 for any free port
+	 */
+	public void start(int port) throws IOException {
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "render-service-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/jobs", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleJobs(exchange);
+			}
+		});
+		server.createContext("/render", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!exchange.getRequestMethod().equals("POST")) {
+					reply(exchange, 405, error("Use POST"));
+					return;
+				}
+				Job job = submit(exchange);
+				if (job != null)
+					replyImage(exchange, job);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				reply(exchange, 200, stats());
+			}
+		});
+		server.createContext("/shutdown", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!exchange.getRequestMethod().equals("POST")) {
+					reply(exchange, 405, error("Use POST"));
+					return;
+				}
+				reply(exchange, 200, "{\"state\":\"shutting down\"}");
+				shutdown();
+			}
+		});
+		// Image requests wait for their job, so each exchange gets a thread
+		handlers = Executors.newCachedThreadPool();
+		server.setExecutor(handlers);
+		server.start();
+	}
+
+	/**
+	 * @return the port the service listens on
+	 */
+	public int getPort() { return server.getAddress().getPort(); }
+
+	/**
+	 * Block until the service is shut down.
+	 */
+	public void awaitShutdown() throws InterruptedException {
+
+		for (Thread worker : workers)
+			worker.join();
+	}
+
+	/**
+	 * Stop accepting requests and cancel every job that has not finished.
+	 */
+	public void shutdown() {
+
+		if (stopped)
+			return;
+		stopped = true;
+		Job[] all;
+		synchronized (jobs) {
+			all = jobs.values().toArray(new Job[0]);
+		}
+		for (Job job : all)
+			cancel(job);
+		for (Thread worker : workers)
+			if (worker != null)
+				worker.interrupt();
+		// Let the reply to a shutdown request go out first
+		server.stop(1);
+		handlers.shutdown();
+	}
+
+	/**
+	 * Take jobs off the queue and render them until the service stops.
+	 */
+	protected void work() {
+
+		while (!stopped) {
+			Job job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (!job.start()) {
+				expire(job);
+				continue;
+			}
+			running.incrementAndGet();
+			try {
+				render(job);
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Render a job that has just started, and move it to its final state.
+	 */
+	protected void render(Job job) {
+
+		try {
+			Scene scene = loadScene(job);
+			if (job.control.isStopped()) {
+				stopped(job);
+				return;
+			}
+
+			Image template = scene.getImage();
+			Image image = new Image(job.width > 0 ? job.width : template.getWidth(),
+					job.height > 0 ? job.height : template.getHeight());
+			Scene view = scene.newView(image);
+			job.tiles = renderer.countTiles(view);
+			renderer.renderTiles(view, null, job.control);
+			if (job.control.getTilesDone() < job.tiles) {
+				stopped(job);
+				return;
+			}
+
+			job.png = encode(image);
+			finished(job, DONE, null);
+		} catch (Throwable e) {
+			// Scene errors are reported by the parser as Errors
+			finished(job, FAILED, String.valueOf(e.getMessage()));
+		}
+	}
+
+	/**
+	 * Get the parsed scene of a job, from memory if the same content was
+	 * posted before.  Jobs posting the same content at the same time wait for
+	 * one of them to parse it.
+	 */
+	protected Scene loadScene(Job job) throws IOException {
+
+		byte[] body = job.takeBody();
+		String key = hash(body);
+		SceneEntry entry;
+		synchronized (scenes) {
+			entry = scenes.get(key);
+			if (entry == null) {
+				entry = new SceneEntry();
+				scenes.put(key, entry);
+			}
+		}
+
+		synchronized (entry) {
+			if (entry.scene != null) {
+				synchronized (jobs) {
+					sceneHits++;
+				}
+				job.cached = true;
+				return entry.scene;
+			}
+			try {
+				entry.scene = parse(body, job);
+			} finally {
+				if (entry.scene == null) {
+					synchronized (scenes) {
+						scenes.remove(key, entry);
+					}
+				}
+			}
+			return entry.scene;
+		}
+	}
+
+	/**
+	 * Parse a posted scene and compile its geometry.
+	 */
+	protected static Scene parse(byte[] body, Job job) throws IOException {
+
+		Scene scene;
+		ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+		if (body.length >= 4 && buffer.getInt(0) == BinaryScene.MAGIC)
+			scene = BinaryScene.read(buffer);
+		else
+			scene = (Scene) new StreamParser().parse(new ByteArrayInputStream(body), "job " + job.id, Scene.class);
+		if (scene == null)
+			throw new IOException("Could not parse the scene");
+		scene.setAcceleration(new GeometryStore(scene.getSurfaces()));
+		return scene;
+	}
+
+	/**
+	 * Compress an image into a PNG file in memory.
+	 */
+	protected static byte[] encode(Image image) throws IOException {
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PngWriter writer = new PngWriter(bytes, width, height);
+		byte[] samples = new byte[Math.min(PNG_BAND_ROWS, height) * width * 3];
+		for (int row = 0; row < height; row += PNG_BAND_ROWS) {
+			int end = Math.min(row + PNG_BAND_ROWS, height);
+			image.packRows(samples, 0, row, end, false);
+			writer.writeRows(samples, 0, end - row);
+		}
+		writer.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Queue the scene posted in a request, or reply with the reason it was
+	 * refused.
+	 * @return the job, or null if it was refused
+	 */
+	protected Job submit(HttpExchange exchange) throws IOException {
+
+		int priority = 0;
+		long deadline = 0;
+		int width = 0;
+		int height = 0;
+		Map<String, String> parameters = parameters(exchange);
+		try {
+			if (parameters.containsKey("priority"))
+				priority = Integer.parseInt(parameters.get("priority"));
+			if (parameters.containsKey("deadline"))
+				deadline = Long.parseLong(parameters.get("deadline"));
+			if (parameters.containsKey("res")) {
+				String[] size = parameters.get("res").split("x");
+				width = Integer.parseInt(size[0]);
+				height = Integer.parseInt(size[1]);
+				if (width < 1 || height < 1)
+					throw new NumberFormatException();
+			}
+		} catch (RuntimeException e) {
+			reply(exchange, 400, error("Invalid query " + exchange.getRequestURI().getRawQuery()));
+			return null;
+		}
+
+		byte[] body = exchange.getRequestBody().readAllBytes();
+		if (body.length == 0) {
+			reply(exchange, 400, error("No scene given"));
+			return null;
+		}
+
+		Job job;
+		synchronized (jobs) {
+			if (stopped) {
+				reply(exchange, 503, error("Shutting down"));
+				return null;
+			}
+			if (queue.size() >= maxQueued) {
+				reply(exchange, 503, error("Queue full"));
+				return null;
+			}
+			job = new Job(nextId++, priority, width, height, deadline, body);
+			jobs.put(job.id, job);
+			submitted++;
+		}
+		queue.add(job);
+		return job;
+	}
+
+	/**
+	 * Answer a request under /jobs.
+	 */
+	protected void handleJobs(HttpExchange exchange) throws IOException {
+
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		// path is "", "jobs", then the id and "image" if given
+		if (path.length == 2) {
+			if (!method.equals("POST")) {
+				reply(exchange, 405, error("Use POST"));
+				return;
+			}
+			Job job = submit(exchange);
+			if (job != null) {
+				exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+				reply(exchange, 202, status(job));
+			}
+			return;
+		}
+
+		Job job = null;
+		if (path.length <= 4) {
+			try {
+				long id = Long.parseLong(path[2]);
+				synchronized (jobs) {
+					job = jobs.get(id);
+				}
+			} catch (NumberFormatException e) {
+				// Not a job
+			}
+		}
+		boolean image = path.length == 4 && path[3].equals("image");
+		if (job == null || (path.length == 4 && !image)) {
+			reply(exchange, 404, error("No such job"));
+			return;
+		}
+
+		if (method.equals("DELETE") && !image) {
+			cancel(job);
+			reply(exchange, 200, status(job));
+		} else if (method.equals("GET") && image) {
+			replyImage(exchange, job);
+		} else if (method.equals("GET")) {
+			expire(job);
+			reply(exchange, 200, status(job));
+		} else {
+			reply(exchange, 405, error("Method not allowed"));
+		}
+	}
+
+	/**
+	 * Cancel a job.  A queued job is removed from the queue, and a running one
+	 * starts no further tiles.
+	 */
+	protected void cancel(Job job) {
+
+		job.control.cancel();
+		if (job.state == QUEUED && queue.remove(job))
+			finished(job, CANCELLED, null);
+	}
+
+	/**
+	 * Give up a queued job whose deadline has passed.
+	 */
+	protected void expire(Job job) {
+
+		if (job.state == QUEUED && job.control.isStopped()) {
+			queue.remove(job);
+			stopped(job);
+		}
+	}
+
+	/**
+	 * Finish a job that was stopped before all its tiles were rendered.
+	 */
+	protected void stopped(Job job) {
+
+		finished(job, job.control.isCancelled() ? CANCELLED : EXPIRED, null);
+	}
+
+	/**
+	 * Move a job to its final state, and forget the oldest finished jobs
+	 * beyond the number kept.
+	 */
+	protected void finished(Job job, String state, String message) {
+
+		if (!job.finish(state, message))
+			return;
+		System.out.println("Job " + job.id + " " + state + " after " + millis(job.endTime - job.submitted) + " ms"
+				+ (message != null ? ": " + message : ""));
+		synchronized (jobs) {
+			finished.add(job);
+			while (finished.size() > keep)
+				jobs.remove(finished.remove().id);
+		}
+	}
+
+	/**
+	 * Wait for a job to finish, then reply with its image, or with its status
+	 * if it did not complete.
+	 */
+	protected void replyImage(HttpExchange exchange, Job job) throws IOException {
+
+		try {
+			// Queued jobs are checked against their deadline while waiting
+			while (!job.ended.await(50, TimeUnit.MILLISECONDS))
+				expire(job);
+		} catch (InterruptedException e) {
+			reply(exchange, 503, error("Interrupted"));
+			return;
+		}
+
+		byte[] png = job.png;
+		if (png == null) {
+			reply(exchange, 409, status(job));
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "image/png");
+		exchange.getResponseHeaders().set("X-Job", String.valueOf(job.id));
+		exchange.sendResponseHeaders(200, png.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(png);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the status of a job as a JSON object
+	 */
+	protected static String status(Job job) {
+
+		long now = System.nanoTime();
+		long started = job.started;
+		long ended = job.endTime;
+		String state = job.state;
+		boolean waiting = state == QUEUED;
+		StringBuilder result = new StringBuilder();
+		result.append("{\"id\":").append(job.id);
+		result.append(",\"state\":\"").append(state).append('"');
+		result.append(",\"priority\":").append(job.priority);
+		result.append(",\"tiles\":").append(job.tiles);
+		result.append(",\"tiles_done\":").append(job.control.getTilesDone());
+		result.append(",\"cached\":").append(job.cached);
+		result.append(",\"queue_ms\":").append(millis((waiting ? now : started) - job.submitted));
+		result.append(",\"render_ms\":").append(waiting ? "0.0" : millis((ended != 0 ? ended : now) - started));
+		result.append(",\"total_ms\":").append(millis((ended != 0 ? ended : now) - job.submitted));
+		if (job.message != null)
+			result.append(",\"message\":").append(quote(job.message));
+		return result.append('}').toString();
+	}
+
+	/**
+	 * @return the counters of the service as a JSON object
+	 */
+	protected String stats() {
+
+		int sceneCount;
+		synchronized (scenes) {
+			sceneCount = scenes.size();
+		}
+		synchronized (jobs) {
+			return "{\"submitted\":" + submitted + ",\"queued\":" + queue.size() + ",\"running\":" + running.get()
+					+ ",\"jobs\":" + jobs.size() + ",\"scenes\":" + sceneCount + ",\"scene_hits\":" + sceneHits
+					+ ",\"workers\":" + workers.length + ",\"threads\":" + renderer.getThreads() + "}";
+		}
+	}
+
+	protected static Map<String, String> parameters(HttpExchange exchange) {
+
+		Map<String, String> result = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null)
+			return result;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0)
+				result.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+						URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+		}
+		return result;
+	}
+
+	protected static void reply(HttpExchange exchange, int code, String json) throws IOException {
+
+		byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	protected static String error(String message) {
+
+		return "{\"error\":" + quote(message) + "}";
+	}
+
+	protected static String quote(String text) {
+
+		StringBuilder result = new StringBuilder("\"");
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				result.append('\\').append(c);
+			else if (c < 0x20)
+				result.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			else
+				result.append(c);
+		}
+		return result.append('"').toString();
+	}
+
+	protected static String hash(byte[] bytes) {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest(bytes))
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return result.toString();
+	}
+
+	private static String millis(long nanos) {
+
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+}
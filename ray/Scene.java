@@ -3,7 +3,9 @@ package ray;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import ray.accel.GeometryStore;
 import ray.shader.Shader;
+import ray.surface.Group;
 import ray.surface.Surface;
 
 
@@ -21,23 +23,83 @@ public class Scene {
 	public Camera getCamera() { return this.camera; }
 	
 	/** The list of lights for the scene. */
-	protected ArrayList lights = new ArrayList();
+	protected ArrayList<Light> lights = new ArrayList<Light>();
 	public void addLight(Light toAdd) { lights.add(toAdd); }
 	public ArrayList<Light> getLights() { return this.lights; }
 	
 	/** The list of surfaces for the scene. */
-	protected ArrayList surfaces = new ArrayList();
+	protected ArrayList<Surface> surfaces = new ArrayList<Surface>();
 	public void addSurface(Surface toAdd) { surfaces.add(toAdd); }
 	public ArrayList<Surface> getSurfaces() { return this.surfaces; }
 	
 	/** The list of materials in the scene . */
-	protected ArrayList shaders = new ArrayList();
+	protected ArrayList<Shader> shaders = new ArrayList<Shader>();
 	public void addShader(Shader toAdd) { shaders.add(toAdd); }
 	public ArrayList<Shader> getShaders() { return this.shaders; }
 	
+	/** The groups of surfaces placed in the scene by instances. */
+	protected ArrayList<Group> groups = new ArrayList<Group>();
+	public void addGroup(Group toAdd) { groups.add(toAdd); }
+	public ArrayList<Group> getGroups() { return this.groups; }
+	
 	/** Image to be produced by the renderer **/
 	protected Image outputImage;
 	public Image getImage() { return this.outputImage; }
 	public void setImage(Image outputImage) { this.outputImage = outputImage; }
+	
+	/** Compiled geometry and acceleration structure, built by buildAcceleration. */
+	protected GeometryStore geometry;
+	
+	/**
+	 * Compile the current list of surfaces into a geometry store with its
+	 * acceleration structure.  Must be called again if surfaces are added
+	 * afterwards.
+	 */
+	public synchronized void buildAcceleration() {
+		
+		geometry = new GeometryStore(surfaces);
+		System.out.println(geometry);
+	}
+	
+	/**
+	 * Use geometry compiled elsewhere, such as one loaded from a SceneCache.
+	 * @param geometry the compiled surfaces of this scene
+	 */
+	public synchronized void setAcceleration(GeometryStore geometry) {
+		
+		this.geometry = geometry;
+	}
+	
+	/**
+	 * @return the compiled geometry, building it first if necessary
+	 */
+	public synchronized GeometryStore getAcceleration() {
+		
+		if (geometry == null)
+			buildAcceleration();
+		return geometry;
+	}
+	
+	/**
+	 * Create a scene sharing the lights, surfaces, shaders, groups and compiled
+	 * geometry of this one, with its own copy of the camera and its own image.
+	 * A scene and its views may be rendered at the same time.
+	 * @param image the image the view is rendered into
+	 * @return the view
+	 */
+	public Scene newView(Image image) {
+		
+		Scene view = new Scene();
+		Camera copy = new Camera();
+		copy.set(camera);
+		view.camera = copy;
+		view.lights = lights;
+		view.surfaces = surfaces;
+		view.shaders = shaders;
+		view.groups = groups;
+		view.outputImage = image;
+		view.geometry = getAcceleration();
+		return view;
+	}
 
 }
@@ -0,0 +1,323 @@
+package ray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+import ray.accel.Bvh;
+import ray.accel.GeometryStore;
+import ray.accel.ScalarKernels;
+import ray.math.Color;
+import ray.math.Point3;
+import ray.math.Tuple3;
+import ray.math.Vector3;
+import ray.shader.Lambertian;
+import ray.shader.Phong;
+import ray.shader.Shader;
+import ray.surface.Box;
+import ray.surface.Group;
+import ray.surface.Instance;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * On-disk cache of compiled scenes.  An entry holds a scene in the binary
+ * scene format followed by the hierarchies of its geometry store, so a warm
+ * start neither parses the scene file nor builds the hierarchies.
+ *
+ * Entries are keyed by a SHA-256 hash of the scene file's contents together
+ * with the renderer version: the class files of the code that parses scenes,
+ * defines what they contain, and writes and reads entries, and the
+ * intersection kernels in use.  Changing the scene or
+ * rebuilding the renderer therefore leads to a different key, and the old
+ * entries are never used again.  They are removed by the least recently used
+ * eviction that runs whenever an entry is stored and the cache is larger than
+ * its size limit.
+ *
+ * An entry is written to a temporary file and renamed into place, so a reader
+ * never sees a partial entry.  Its layout is (little-endian):
+ *
+ *   int    magic "RTCA", version
+ *   long   body length
+ *   long   CRC-32 of the body
+ *   byte   key (32 bytes)
+ *   body   scene as written by BinaryScene, padded to 8 bytes, followed by
+ *          the hierarchies as saved by GeometryStore
+ *
+ * Entries whose header, length or checksum do not match are deleted and
+ * treated as misses.
+ */
+public class SceneCache {
+
+	/** "RTCA" as read little-endian. */
+	protected static final int MAGIC = 0x41435452;
+	protected static final int VERSION = 1;
+	protected static final int HEADER_BYTES = 56;
+	protected static final String SUFFIX = ".rtc";
+
+	/** Default size limit in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+	/** Classes whose class files, with those of their nested classes, are part of every key. */
+	protected static final Class<?>[] VERSIONED_CLASSES = { SceneCache.class, BinaryScene.class, Parser.class,
+			StreamParser.class, Scene.class, Camera.class, Light.class, Image.class, Surface.class, Sphere.class,
+			Box.class, Group.class, Instance.class, Shader.class, Lambertian.class, Phong.class, Color.class,
+			Tuple3.class, Point3.class, Vector3.class, GeometryStore.class, Bvh.class, ScalarKernels.class };
+
+	/** Hash of the versioned class files, computed once. */
+	private static byte[] classesDigest;
+
+	protected final File directory;
+	protected final long maxBytes;
+
+	/**
+	 * Use a cache directory, creating it if necessary.
+	 * @param directory the directory holding the entries
+	 * @param maxBytes the least recently used entries are deleted once the
+	 * entries take up more than this
+	 */
+	public SceneCache(File directory, long maxBytes) throws IOException {
+
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Cache size must not be negative: " + maxBytes);
+		classesDigest();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create the cache directory " + directory);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the directory used when none is given: .cache/ray in the user's home
+	 */
+	public static File defaultDirectory() {
+
+		return new File(new File(System.getProperty("user.home"), ".cache"), "ray");
+	}
+
+	/**
+	 * @return the cache directory
+	 */
+	public File getDirectory() { return directory; }
+
+	/**
+	 * Compute the key of a scene file for the running renderer.
+	 * @param sceneFile the scene file
+	 * @return the key, as 64 hexadecimal digits
+	 */
+	public String key(File sceneFile) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(("RTCA " + VERSION + " " + BinaryScene.VERSION + " "
+				+ GeometryStore.getDefaultKernels().getName() + "\n").getBytes(StandardCharsets.UTF_8));
+		digest.update(classesDigest());
+		update(digest, new FileInputStream(sceneFile), new byte[1 << 16]);
+
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest())
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return result.toString();
+	}
+
+	/**
+	 * Hash the class files of the versioned classes and of the classes nested
+	 * in them.
+	 * @throws IOException if a class file cannot be read, in which case the
+	 * renderer version is unknown and the cache must not be used
+	 */
+	protected static synchronized byte[] classesDigest() throws IOException {
+
+		if (classesDigest != null)
+			return classesDigest;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[1 << 16];
+		ArrayList<Class<?>> classes = new ArrayList<Class<?>>(Arrays.asList(VERSIONED_CLASSES));
+		for (int i = 0; i < classes.size(); i++) {
+			Class<?> c = classes.get(i);
+			String name = "/" + c.getName().replace('.', '/') + ".class";
+			InputStream in = c.getResourceAsStream(name);
+			if (in == null)
+				throw new IOException("Cannot read " + name + " to tell the renderer version");
+			digest.update(name.getBytes(StandardCharsets.UTF_8));
+			update(digest, in, buffer);
+			classes.addAll(Arrays.asList(c.getDeclaredClasses()));
+		}
+		classesDigest = digest.digest();
+		return classesDigest;
+	}
+
+	private static void update(MessageDigest digest, InputStream in, byte[] buffer) throws IOException {
+
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Load the scene stored under a key, with its geometry store already set.
+	 * @param key the key computed by key
+	 * @return the scene, or null if there is no valid entry for the key
+	 */
+	public Scene load(String key) {
+
+		File file = entry(key);
+		if (!file.isFile())
+			return null;
+
+		try {
+			ByteBuffer buffer;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+						.order(ByteOrder.LITTLE_ENDIAN);
+			} finally {
+				raf.close();
+			}
+
+			if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new IOException("Invalid cache entry header");
+			long length = buffer.getLong();
+			long checksum = buffer.getLong();
+			byte[] storedKey = new byte[32];
+			buffer.get(storedKey);
+			if (length != buffer.remaining() || !Arrays.equals(storedKey, keyBytes(key)))
+				throw new IOException("Cache entry does not match its key");
+			CRC32 crc = new CRC32();
+			crc.update(buffer.duplicate());
+			if (crc.getValue() != checksum)
+				throw new IOException("Cache entry checksum mismatch");
+
+			Scene scene = BinaryScene.read(buffer);
+			buffer.position((int) BinaryScene.pad(buffer.position()));
+			scene.setAcceleration(new GeometryStore(scene.getSurfaces(), buffer));
+			if (buffer.hasRemaining())
+				throw new IOException("Cache entry has trailing data");
+
+			file.setLastModified(System.currentTimeMillis());
+			return scene;
+		} catch (IOException e) {
+			file.delete();
+		} catch (RuntimeException e) {
+			// Any other inconsistency in the entry
+			file.delete();
+		}
+		return null;
+	}
+
+	/**
+	 * Store a scene and its geometry store under a key, then evict the least
+	 * recently used entries if the cache has grown beyond its limit.
+	 * @param key the key computed by key
+	 * @param scene the scene
+	 * @return false if the scene holds types the binary scene format cannot
+	 * store, and was not cached
+	 */
+	public boolean store(String key, Scene scene) throws IOException {
+
+		if (!BinaryScene.canWrite(scene))
+			return false;
+		GeometryStore geometry = scene.getAcceleration();
+		File temp = File.createTempFile("entry", ".tmp", directory);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				long sceneBytes = BinaryScene.pad(BinaryScene.write(scene, channel, HEADER_BYTES));
+				long length = sceneBytes + geometry.getSavedSize();
+				ByteBuffer body = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + sceneBytes,
+						geometry.getSavedSize()).order(ByteOrder.LITTLE_ENDIAN);
+				geometry.save(body);
+
+				ByteBuffer whole = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + length)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				whole.position(HEADER_BYTES);
+				CRC32 crc = new CRC32();
+				crc.update(whole);
+				whole.position(0);
+				whole.putInt(MAGIC).putInt(VERSION).putLong(length).putLong(crc.getValue()).put(keyBytes(key));
+				channel.force(true);
+			} finally {
+				raf.close();
+			}
+			Files.move(temp.toPath(), entry(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+		evict();
+		return true;
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache is within its limit.
+	 */
+	protected void evict() {
+
+		File[] entries = directory.listFiles();
+		if (entries == null)
+			return;
+		long total = 0;
+		final long[] used = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			order[i] = i;
+			used[i] = entries[i].lastModified();
+			if (entries[i].getName().endsWith(SUFFIX))
+				total += entries[i].length();
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(used[a], used[b]);
+			}
+		});
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			File file = entries[order[i]];
+			if (!file.getName().endsWith(SUFFIX))
+				continue;
+			long length = file.length();
+			if (file.delete())
+				total -= length;
+		}
+	}
+
+	protected File entry(String key) {
+
+		return new File(directory, key + SUFFIX);
+	}
+
+	protected static byte[] keyBytes(String key) {
+
+		byte[] result = new byte[32];
+		for (int i = 0; i < result.length && 2 * i + 1 < key.length(); i++)
+			result[i] = (byte) Integer.parseInt(key.substring(2 * i, 2 * i + 2), 16);
+		return result;
+	}
+}
@@ -0,0 +1,320 @@
+package ray;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+import ray.math.Color;
+import ray.math.Point3;
+import ray.math.Tuple3;
+import ray.math.Vector3;
+import ray.shader.Lambertian;
+import ray.shader.Phong;
+import ray.shader.Shader;
+import ray.surface.Box;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * Seeded generator of large scenes for scaling measurements.  The same
+ * settings and seed always give the same scene, which can be built directly
+ * or written as XML.
+ *
+ * Layouts:
+ *   uniform    primitives spread evenly through a cube
+ *   clustered  primitives gathered in dense clusters with empty space between
+ *   occluder   a uniform cloud over a floor, with a large sphere in the middle
+ *              that casts a shadow over much of it
+ *
+ * The cube grows with the number of primitives so that their density, and
+ * thus the depth complexity seen by the camera, stays about the same.
+ *
+ * Usage: java ray.SceneGenerator [options] out.xml
+ *   -spheres N        number of spheres (default: 1000)
+ *   -boxes N          number of boxes (default: 1000)
+ *   -lights N         number of lights (default: 2)
+ *   -res WxH          image resolution (default: 640x480)
+ *   -layout NAME      uniform, clustered or occluder (default: uniform)
+ *   -seed N           random seed (default: 1)
+ */
+public class SceneGenerator {
+
+	public static final String[] LAYOUTS = { "uniform", "clustered", "occluder" };
+
+	/** Number of different shaders the primitives are given. */
+	protected static final int SHADER_COUNT = 8;
+
+	/** Primitives per cluster in the clustered layout. */
+	protected static final int CLUSTER_SIZE = 250;
+
+	protected int spheres = 1000;
+	public void setSpheres(int spheres) { this.spheres = spheres; }
+
+	protected int boxes = 1000;
+	public void setBoxes(int boxes) { this.boxes = boxes; }
+
+	protected int lights = 2;
+	public void setLights(int lights) { this.lights = lights; }
+
+	protected int width = 640;
+	protected int height = 480;
+	public void setResolution(int width, int height) { this.width = width; this.height = height; }
+
+	protected String layout = "uniform";
+	public void setLayout(String layout) {
+		if (!java.util.Arrays.asList(LAYOUTS).contains(layout))
+			throw new IllegalArgumentException("Unknown layout: " + layout);
+		this.layout = layout;
+	}
+
+	protected long seed = 1;
+	public void setSeed(long seed) { this.seed = seed; }
+
+	public static void main(String[] args) throws IOException {
+
+		SceneGenerator generator = new SceneGenerator();
+		String output = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-spheres")) {
+				generator.setSpheres(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-boxes")) {
+				generator.setBoxes(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-lights")) {
+				generator.setLights(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-res")) {
+				String[] size = args[++i].split("x");
+				generator.setResolution(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+			} else if (args[i].equals("-layout")) {
+				generator.setLayout(args[++i]);
+			} else if (args[i].equals("-seed")) {
+				generator.setSeed(Long.parseLong(args[++i]));
+			} else {
+				output = args[i];
+			}
+		}
+		if (output == null) {
+			System.out.println("Usage: java ray.SceneGenerator [options] out.xml");
+			return;
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8));
+		try {
+			writeXml(generator.generate(), out);
+		} finally {
+			out.close();
+		}
+		System.out.println("Wrote " + output + ": " + generator);
+	}
+
+	/**
+	 * Build the scene.
+	 * @return a new scene
+	 */
+	public Scene generate() {
+
+		Random random = new Random(seed);
+		int count = spheres + boxes;
+		double size = 2.5 * Math.cbrt(Math.max(count, 1));
+		double half = size / 2;
+
+		Scene scene = new Scene();
+		scene.setImage(new Image(width, height));
+
+		// Look at the cube from above and to the side, wide enough to see all of it
+		Camera camera = new Camera();
+		Vector3 eye = new Vector3(0.9, 0.7, 1.2);
+		eye.normalize();
+		eye.scale(1.6 * size);
+		camera.setViewPoint(new Point3(eye.x, eye.y, eye.z));
+		Vector3 view = new Vector3(-eye.x, -eye.y, -eye.z);
+		camera.setViewDir(view);
+		camera.setProjNormal(eye);
+		camera.setprojDistance(1);
+		camera.setViewHeight(0.75);
+		camera.setViewWidth(0.75 * width / height);
+		scene.setCamera(camera);
+
+		Shader[] shaders = new Shader[SHADER_COUNT];
+		for (int i = 0; i < shaders.length; i++) {
+			Color color = new Color(0.2 + 0.8 * random.nextDouble(), 0.2 + 0.8 * random.nextDouble(),
+					0.2 + 0.8 * random.nextDouble());
+			if (i % 2 == 0) {
+				Lambertian lambertian = new Lambertian();
+				lambertian.setDiffuseColor(color);
+				shaders[i] = lambertian;
+			} else {
+				Phong phong = new Phong();
+				phong.setDiffuseColor(color);
+				phong.setSpecularColor(new Color(0.5, 0.5, 0.5));
+				phong.setExponent(10 + 90 * random.nextDouble());
+				shaders[i] = phong;
+			}
+			scene.addShader(shaders[i]);
+		}
+
+		// Cluster centers, used by the clustered layout only
+		double[][] clusters = new double[Math.max(1, (count + CLUSTER_SIZE - 1) / CLUSTER_SIZE)][3];
+		for (double[] center : clusters)
+			for (int k = 0; k < 3; k++)
+				center[k] = (random.nextDouble() - 0.5) * size * 0.8;
+		double spread = 0.6 * Math.cbrt(CLUSTER_SIZE);
+
+		boolean occluder = layout.equals("occluder");
+		double[] p = new double[3];
+		for (int i = 0; i < count; i++) {
+			boolean sphere = i < spheres;
+			Surface surface;
+			if (occluder && i == 0 && sphere) {
+				// The large sphere in the middle of the cloud
+				Sphere s = new Sphere();
+				s.setRadius(0.25 * size);
+				surface = s;
+			} else if (occluder && i == spheres) {
+				// The floor under the cloud
+				Box b = new Box();
+				b.setMinPt(new Point3(-size, -half - 0.5, -size));
+				b.setMaxPt(new Point3(size, -half - 0.25, size));
+				surface = b;
+			} else {
+				if (layout.equals("clustered")) {
+					double[] center = clusters[random.nextInt(clusters.length)];
+					for (int k = 0; k < 3; k++)
+						p[k] = Math.max(-half, Math.min(half, center[k] + random.nextGaussian() * spread));
+				} else {
+					for (int k = 0; k < 3; k++)
+						p[k] = (random.nextDouble() - 0.5) * size;
+				}
+				double r = 0.2 + 0.4 * random.nextDouble();
+				if (sphere) {
+					Sphere s = new Sphere();
+					s.setCenter(new Point3(p[0], p[1], p[2]));
+					s.setRadius(r);
+					surface = s;
+				} else {
+					double rx = r * (0.5 + random.nextDouble());
+					double ry = r * (0.5 + random.nextDouble());
+					double rz = r * (0.5 + random.nextDouble());
+					Box b = new Box();
+					b.setMinPt(new Point3(p[0] - rx, p[1] - ry, p[2] - rz));
+					b.setMaxPt(new Point3(p[0] + rx, p[1] + ry, p[2] + rz));
+					surface = b;
+				}
+			}
+			surface.setShader(shaders[random.nextInt(shaders.length)]);
+			scene.addSurface(surface);
+		}
+
+		// Lights on a ring above the cube, sharing a total intensity of about 1.2
+		for (int i = 0; i < lights; i++) {
+			double angle = 2 * Math.PI * (i + random.nextDouble()) / lights;
+			Light light = new Light();
+			light.setPosition(new Point3(1.5 * size * Math.cos(angle), 1.5 * size, 1.5 * size * Math.sin(angle)));
+			double intensity = 1.2 / lights;
+			light.setIntensity(new Color(intensity, intensity, intensity));
+			scene.addLight(light);
+		}
+
+		return scene;
+	}
+
+	/**
+	 * Write a scene as XML that the parsers read back into the same scene.
+	 * Only the shader and surface types of this renderer can be written.
+	 * @param scene the scene to write
+	 * @param out receives the XML
+	 */
+	public static void writeXml(Scene scene, Writer out) throws IOException {
+
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<scene>\n");
+
+		Camera camera = scene.getCamera();
+		out.write("  <camera>\n");
+		writeTuple(out, "    ", "viewPoint", camera.viewPoint);
+		writeTuple(out, "    ", "viewDir", camera.viewDir);
+		writeTuple(out, "    ", "projNormal", camera.projNormal);
+		writeTuple(out, "    ", "viewUp", camera.viewUp);
+		out.write("    <projDistance>" + camera.projDistance + "</projDistance>\n");
+		out.write("    <viewWidth>" + camera.viewWidth + "</viewWidth>\n");
+		out.write("    <viewHeight>" + camera.viewHeight + "</viewHeight>\n");
+		out.write("  </camera>\n");
+		out.write("  <image>" + scene.getImage().getWidth() + " " + scene.getImage().getHeight() + "</image>\n");
+
+		ArrayList<Shader> shaders = scene.getShaders();
+		for (int i = 0; i < shaders.size(); i++) {
+			Shader shader = shaders.get(i);
+			if (shader.getClass() == Phong.class) {
+				Phong phong = (Phong) shader;
+				out.write("  <shader name=\"s" + i + "\" type=\"Phong\">\n");
+				writeColor(out, "    ", "diffuseColor", phong.diffuseColor);
+				writeColor(out, "    ", "specularColor", phong.specularColor);
+				out.write("    <exponent>" + phong.exponent + "</exponent>\n");
+			} else if (shader.getClass() == Lambertian.class) {
+				out.write("  <shader name=\"s" + i + "\" type=\"Lambertian\">\n");
+				writeColor(out, "    ", "diffuseColor", ((Lambertian) shader).diffuseColor);
+			} else {
+				throw new IllegalArgumentException("Shaders of type " + shader.getClass().getName()
+						+ " cannot be written");
+			}
+			out.write("  </shader>\n");
+		}
+
+		for (Surface surface : scene.getSurfaces()) {
+			String shader = "";
+			int index = shaders.indexOf(surface.getShader());
+			if (index >= 0)
+				shader = "<shader ref=\"s" + index + "\" />";
+			else if (surface.getShader() != Shader.DEFAULT_MATERIAL)
+				throw new IllegalArgumentException("Surface shaders must be declared in the scene");
+			if (surface.getClass() == Sphere.class) {
+				Sphere sphere = (Sphere) surface;
+				out.write("  <surface type=\"Sphere\">" + shader + "<center>" + tuple(sphere.center)
+						+ "</center><radius>" + sphere.radius + "</radius></surface>\n");
+			} else if (surface.getClass() == Box.class) {
+				Box box = (Box) surface;
+				out.write("  <surface type=\"Box\">" + shader + "<minPt>" + tuple(box.minPt) + "</minPt><maxPt>"
+						+ tuple(box.maxPt) + "</maxPt></surface>\n");
+			} else {
+				throw new IllegalArgumentException("Surfaces of type " + surface.getClass().getName()
+						+ " cannot be written");
+			}
+		}
+
+		for (Light light : scene.getLights()) {
+			out.write("  <light>\n");
+			writeTuple(out, "    ", "position", light.position);
+			writeColor(out, "    ", "intensity", light.intensity);
+			out.write("  </light>\n");
+		}
+
+		out.write("</scene>\n");
+	}
+
+	private static String tuple(Tuple3 t) {
+
+		return t.x + " " + t.y + " " + t.z;
+	}
+
+	private static void writeTuple(Writer out, String indent, String name, Tuple3 t) throws IOException {
+
+		out.write(indent + "<" + name + ">" + tuple(t) + "</" + name + ">\n");
+	}
+
+	private static void writeColor(Writer out, String indent, String name, Color c) throws IOException {
+
+		out.write(indent + "<" + name + ">" + c.r + " " + c.g + " " + c.b + "</" + name + ">\n");
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+
+		return layout + ", " + spheres + " spheres, " + boxes + " boxes, " + lights + " lights, "
+				+ width + "x" + height + ", seed " + seed;
+	}
+}
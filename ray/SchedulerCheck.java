@@ -0,0 +1,270 @@
+package ray;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ray.math.Color;
+
+/**
+ * Checks the FairScheduler, including the ways a job can end early.  Each
+ * check submits jobs and waits for the listener to report all of them, with
+ * a time limit, so a job that never ends is reported instead of hanging the
+ * check.
+ *
+ * - render: every scene file, at once and with different priorities, gives
+ *   the same image as a render through the TileRenderer alone.
+ * - failure: jobs whose tiles throw a RuntimeException or an Error (as when
+ *   the image cannot be allocated) end as failed, the job beside them
+ *   completes, and a job submitted afterwards still renders.
+ * - cancel: a job cancelled while it renders ends with tiles left over.
+ * - deadline: a job whose deadline has passed ends without being rendered,
+ *   and one whose deadline passes while it renders ends with tiles left over.
+ * - memory: with a budget for one framebuffer, a second job is only started
+ *   once the first has ended.
+ *
+ * Usage: java ray.SchedulerCheck [options] [scene files]
+ *   -threads N     render threads (default: number of processors)
+ *   -timeout S     seconds allowed for each check (default: 60)
+ *
+ * Without scene files every XML file in the scenes directory is used.  The
+ * exit status is 1 if any check fails.
+ */
+public class SchedulerCheck {
+
+	/** Edge length of the images of the render and failure checks. */
+	protected static final int SMALL = 96;
+
+	/** Edge length of the images of jobs stopped while they render. */
+	protected static final int LARGE = 1024;
+
+	protected final TileRenderer renderer;
+	protected final List<String> files;
+	protected final long timeoutMillis;
+	protected int failures;
+
+	/**
+	 * An image whose first pixel write throws, as a render that runs out of
+	 * memory does.
+	 */
+	protected static class FailingImage extends Image {
+
+		protected final boolean error;
+
+		protected FailingImage(int width, int height, boolean error) {
+
+			super(width, height);
+			this.error = error;
+		}
+
+		public void setPixelColor(Color inPixel, int inX, int inY) {
+
+			if (error)
+				throw new OutOfMemoryError("simulated by SchedulerCheck");
+			throw new IllegalStateException("simulated by SchedulerCheck");
+		}
+
+		public void setPixelRGB(double inR, double inG, double inB, int inX, int inY) {
+
+			setPixelColor(null, inX, inY);
+		}
+	}
+
+	/**
+	 * Collects the jobs that end.
+	 */
+	protected static class Ended implements FairScheduler.Listener {
+
+		protected final CountDownLatch latch;
+
+		protected Ended(int jobs) {
+
+			latch = new CountDownLatch(jobs);
+		}
+
+		public void finished(FairScheduler.Job job) {
+
+			latch.countDown();
+		}
+	}
+
+	protected SchedulerCheck(TileRenderer renderer, List<String> files, long timeoutMillis) {
+
+		this.renderer = renderer;
+		this.files = files;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		long timeout = 60;
+		ArrayList<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-timeout"))
+				timeout = Long.parseLong(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			File[] scenes = new File("scenes").listFiles();
+			if (scenes == null) {
+				System.out.println("No scene files given and no scenes directory found");
+				System.exit(1);
+			}
+			Arrays.sort(scenes);
+			for (File scene : scenes)
+				if (scene.getName().endsWith(".xml"))
+					files.add(scene.getPath());
+		}
+
+		TileRenderer renderer = new TileRenderer(TileRenderer.DEFAULT_TILE_SIZE, threads);
+		SchedulerCheck check = new SchedulerCheck(renderer, files, timeout * 1000);
+		try {
+			check.checkRender();
+			check.checkFailure();
+			check.checkCancel();
+			check.checkDeadline();
+			check.checkMemory();
+		} finally {
+			renderer.shutdown();
+		}
+		System.out.println(check.failures == 0 ? "All checks passed" : check.failures + " checks failed");
+		System.exit(check.failures == 0 ? 0 : 1);
+	}
+
+	protected void checkRender() throws InterruptedException {
+
+		Ended ended = new Ended(files.size());
+		FairScheduler scheduler = new FairScheduler(renderer, Long.MAX_VALUE, ended);
+		ArrayList<FairScheduler.Job> jobs = new ArrayList<FairScheduler.Job>();
+		for (int i = 0; i < files.size(); i++)
+			jobs.add(scheduler.submit(load(files.get(i), SMALL, null), files.get(i), 1 + i % 3, null));
+		boolean ok = await(ended);
+		for (int i = 0; ok && i < files.size(); i++) {
+			Scene expected = load(files.get(i), SMALL, null);
+			renderer.renderTiles(expected);
+			ok = jobs.get(i).isComplete() && sameImage(expected.getImage(), jobs.get(i).getScene().getImage());
+		}
+		report("render", ok, jobs.size() + " scenes");
+	}
+
+	protected void checkFailure() throws InterruptedException {
+
+		String file = files.get(0);
+		Ended ended = new Ended(4);
+		FairScheduler scheduler = new FairScheduler(renderer, Long.MAX_VALUE, ended);
+		FairScheduler.Job error = scheduler.submit(load(file, SMALL, new FailingImage(SMALL, SMALL, true)), "error",
+				1, null);
+		FairScheduler.Job exception = scheduler.submit(load(file, SMALL, new FailingImage(SMALL, SMALL, false)),
+				"exception", 1, null);
+		FairScheduler.Job good = scheduler.submit(load(file, SMALL, null), "good", 1, null);
+		boolean ok = await(error) && await(exception) && await(good);
+		ok = ok && error.getError() != null && exception.getError() != null && good.isComplete();
+
+		// The tile loops that hit the failures must have been handed back
+		FairScheduler.Job later = scheduler.submit(load(file, SMALL, null), "later", 1, null);
+		ok = ok && await(ended) && later.isComplete() && scheduler.getActive() == 0;
+		report("failure", ok, "error: " + error.getError() + ", exception: " + exception.getError());
+	}
+
+	protected void checkCancel() throws InterruptedException {
+
+		Ended ended = new Ended(1);
+		FairScheduler scheduler = new FairScheduler(renderer, Long.MAX_VALUE, ended);
+		FairScheduler.Job job = scheduler.submit(load(files.get(0), LARGE, null), "cancelled", 1, null);
+		long limit = System.currentTimeMillis() + timeoutMillis;
+		while (job.getControl().getTilesDone() == 0 && !job.isFinished() && System.currentTimeMillis() < limit)
+			Thread.sleep(1);
+		scheduler.cancel(job);
+		boolean ok = await(ended) && !job.isComplete() && job.getError() == null
+				&& job.getControl().getTilesDone() < job.getTiles();
+		report("cancel", ok, job.getControl().getTilesDone() + " of " + job.getTiles() + " tiles rendered");
+	}
+
+	protected void checkDeadline() throws InterruptedException {
+
+		Ended ended = new Ended(2);
+		FairScheduler scheduler = new FairScheduler(renderer, Long.MAX_VALUE, ended);
+		FairScheduler.Job passed = scheduler.submit(load(files.get(0), LARGE, null), "passed", 1,
+				new TileRenderer.Control(System.nanoTime()));
+		FairScheduler.Job running = scheduler.submit(load(files.get(0), LARGE, null), "running", 1,
+				new TileRenderer.Control(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200)));
+		boolean ok = await(ended) && passed.getControl().getTilesDone() == 0
+				&& running.getControl().isExpired() && !running.isComplete();
+		report("deadline", ok, passed.getControl().getTilesDone() + " and " + running.getControl().getTilesDone()
+				+ " of " + running.getTiles() + " tiles rendered");
+	}
+
+	protected void checkMemory() throws InterruptedException {
+
+		Ended ended = new Ended(2);
+		FairScheduler scheduler = new FairScheduler(renderer, FairScheduler.BYTES_PER_PIXEL * SMALL * SMALL, ended);
+		FairScheduler.Job first = scheduler.submit(load(files.get(0), SMALL, null), "first", 1, null);
+		FairScheduler.Job second = scheduler.submit(load(files.get(0), SMALL, null), "second", 1, null);
+		boolean ok = await(ended) && first.isComplete() && second.isComplete()
+				&& second.admitted - first.finished >= 0;
+		report("memory", ok, "second job waited " + second.getAdmissionWait() / 1000000 + " ms for memory");
+	}
+
+	/**
+	 * Parse a scene and give it an image of the given size.
+	 */
+	protected Scene load(String file, int size, Image image) {
+
+		Scene scene = (Scene) new Parser().parse(file, Scene.class);
+		scene.setImage(image != null ? image : new Image(size, size));
+		return scene;
+	}
+
+	/**
+	 * Wait for the listener to be told about every job.
+	 */
+	protected boolean await(Ended ended) throws InterruptedException {
+
+		if (ended.latch.await(timeoutMillis, TimeUnit.MILLISECONDS))
+			return true;
+		System.out.println("Jobs did not end within " + timeoutMillis / 1000 + " seconds");
+		return false;
+	}
+
+	/**
+	 * Wait for one job to end.
+	 */
+	protected boolean await(FairScheduler.Job job) throws InterruptedException {
+
+		if (job.done.await(timeoutMillis, TimeUnit.MILLISECONDS))
+			return true;
+		System.out.println("Job " + job.getName() + " did not end within " + timeoutMillis / 1000 + " seconds");
+		return false;
+	}
+
+	protected static boolean sameImage(Image a, Image b) {
+
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+			return false;
+		Color ca = new Color();
+		Color cb = new Color();
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				a.getPixelColor(ca, x, y);
+				b.getPixelColor(cb, x, y);
+				if (ca.toInt() != cb.toInt())
+					return false;
+			}
+		}
+		return true;
+	}
+
+	protected void report(String name, boolean ok, String detail) {
+
+		if (!ok)
+			failures++;
+		System.out.println(String.format("%-10s %-6s %s", name, ok ? "ok" : "FAILED", detail));
+	}
+}
@@ -0,0 +1,311 @@
+package ray;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Checks the RenderService over HTTP.  The service is started on a free port
+ * of the loopback interface with a single job worker, so that one long job
+ * keeps the others queued.  Every request has a time limit, so a job that
+ * never ends stops the check with an exception instead of hanging it.
+ *
+ * - render: every scene file posted to /render gives the same PNG as a
+ *   render through the TileRenderer alone, and posting it again reuses the
+ *   parsed scene.
+ * - priority: of two jobs queued behind a running one, the one with the
+ *   higher priority starts first.
+ * - cancel: a queued job that is cancelled never starts, and a running job
+ *   that is cancelled stops with tiles left over.
+ * - deadline: a job whose deadline passes while it is queued never starts,
+ *   and one whose deadline passes while it renders stops with tiles left over.
+ * - entities: a posted scene that takes a value from a local file through an
+ *   external entity is refused.
+ *
+ * Usage: java ray.ServiceCheck [options] [scene files]
+ *   -threads N     render threads (default: number of processors)
+ *   -large N       edge length of the long jobs (default: 2000)
+ *   -timeout S     seconds allowed for each request (default: 60)
+ *
+ * Without scene files every XML file in the scenes directory is used.  The
+ * exit status is 1 if any check fails.
+ */
+public class ServiceCheck {
+
+	/** Edge length of the images of the render and priority checks. */
+	protected static final int SMALL = 64;
+
+	protected final RenderService service;
+	protected final TileRenderer renderer;
+	protected final List<String> files;
+	protected final String large;
+	protected final int timeoutMillis;
+	protected int failures;
+
+	/**
+	 * The status code, body and job id of a reply.
+	 */
+	protected static class Reply {
+
+		protected int code;
+		protected byte[] body;
+		protected String job;
+
+		protected String text() { return new String(body, StandardCharsets.UTF_8); }
+	}
+
+	protected ServiceCheck(RenderService service, TileRenderer renderer, List<String> files, int large,
+			int timeoutMillis) {
+
+		this.service = service;
+		this.renderer = renderer;
+		this.files = files;
+		this.large = large + "x" + large;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		int large = 2000;
+		int timeout = 60;
+		ArrayList<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-large"))
+				large = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-timeout"))
+				timeout = Integer.parseInt(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			File[] scenes = new File("scenes").listFiles();
+			if (scenes == null) {
+				System.out.println("No scene files given and no scenes directory found");
+				System.exit(1);
+			}
+			Arrays.sort(scenes);
+			for (File scene : scenes)
+				if (scene.getName().endsWith(".xml"))
+					files.add(scene.getPath());
+		}
+
+		TileRenderer renderer = new TileRenderer(TileRenderer.DEFAULT_TILE_SIZE, threads);
+		RenderService service = new RenderService(renderer, 1, RenderService.DEFAULT_QUEUE,
+				RenderService.DEFAULT_SCENES, RenderService.DEFAULT_KEEP);
+		ServiceCheck check = new ServiceCheck(service, renderer, files, large, timeout * 1000);
+		service.start(0);
+		try {
+			check.checkRender();
+			check.checkPriority();
+			check.checkCancel();
+			check.checkDeadline();
+			check.checkEntities();
+		} finally {
+			service.shutdown();
+			renderer.shutdown();
+		}
+		System.out.println(check.failures == 0 ? "All checks passed" : check.failures + " checks failed");
+		System.exit(check.failures == 0 ? 0 : 1);
+	}
+
+	protected void checkRender() throws IOException {
+
+		int matched = 0;
+		for (String file : files) {
+			byte[] scene = Files.readAllBytes(new File(file).toPath());
+			Reply reply = request("POST", "/render?res=" + SMALL + "x" + SMALL, scene);
+			if (reply.code == 200 && samePixels(reply.body, render(file)))
+				matched++;
+		}
+		Reply again = request("POST", "/render?res=" + SMALL + "x" + SMALL,
+				Files.readAllBytes(new File(files.get(0)).toPath()));
+		boolean cached = again.code == 200 && field(request("GET", "/jobs/" + again.job, null), "cached").equals("true");
+		report("render", matched == files.size() && cached, matched + " of " + files.size()
+				+ " scenes match, repeated scene " + (cached ? "reused" : "parsed again"));
+	}
+
+	protected void checkPriority() throws IOException, InterruptedException {
+
+		byte[] scene = Files.readAllBytes(new File(files.get(0)).toPath());
+		String blocker = startBlocker(scene);
+		String low = field(request("POST", "/jobs?priority=1&res=" + SMALL + "x" + SMALL, scene), "id");
+		String high = field(request("POST", "/jobs?priority=5&res=" + SMALL + "x" + SMALL, scene), "id");
+		request("DELETE", "/jobs/" + blocker, null);
+		boolean ok = request("GET", "/jobs/" + low + "/image", null).code == 200
+				&& request("GET", "/jobs/" + high + "/image", null).code == 200;
+		double lowWait = Double.parseDouble(field(request("GET", "/jobs/" + low, null), "queue_ms"));
+		double highWait = Double.parseDouble(field(request("GET", "/jobs/" + high, null), "queue_ms"));
+		ok = ok && highWait < lowWait;
+		report("priority", ok, "queued " + highWait + " ms at priority 5, " + lowWait + " ms at priority 1");
+	}
+
+	protected void checkCancel() throws IOException, InterruptedException {
+
+		byte[] scene = Files.readAllBytes(new File(files.get(0)).toPath());
+		String running = startBlocker(scene);
+		String queued = field(request("POST", "/jobs?res=" + SMALL + "x" + SMALL, scene), "id");
+		Reply queuedStatus = request("DELETE", "/jobs/" + queued, null);
+		boolean ok = field(queuedStatus, "state").equals(RenderService.CANCELLED);
+
+		long start = System.nanoTime();
+		request("DELETE", "/jobs/" + running, null);
+		Reply image = request("GET", "/jobs/" + running + "/image", null);
+		long millis = (System.nanoTime() - start) / 1000000;
+		ok = ok && image.code == 409 && field(image, "state").equals(RenderService.CANCELLED) && leftOver(image);
+		report("cancel", ok, "running job stopped in " + millis + " ms after " + field(image, "tiles_done") + " of "
+				+ field(image, "tiles") + " tiles");
+	}
+
+	protected void checkDeadline() throws IOException, InterruptedException {
+
+		byte[] scene = Files.readAllBytes(new File(files.get(0)).toPath());
+		String blocker = startBlocker(scene);
+		String queued = field(request("POST", "/jobs?deadline=100&res=" + SMALL + "x" + SMALL, scene), "id");
+		Reply queuedImage = request("GET", "/jobs/" + queued + "/image", null);
+		boolean ok = queuedImage.code == 409 && field(queuedImage, "state").equals(RenderService.EXPIRED)
+				&& field(queuedImage, "tiles_done").equals("0");
+		request("DELETE", "/jobs/" + blocker, null);
+		request("GET", "/jobs/" + blocker + "/image", null);
+
+		Reply running = request("POST", "/render?deadline=300&res=" + large, scene);
+		ok = ok && running.code == 409 && field(running, "state").equals(RenderService.EXPIRED) && leftOver(running);
+		report("deadline", ok, "running job stopped after " + field(running, "tiles_done") + " of "
+				+ field(running, "tiles") + " tiles");
+	}
+
+	protected void checkEntities() throws IOException {
+
+		// The file holds a valid viewPoint, so the scene would render if it were read
+		File values = File.createTempFile("servicecheck", ".txt");
+		try {
+			Files.write(values.toPath(), "5 4.5 4".getBytes(StandardCharsets.UTF_8));
+			String scene = new String(Files.readAllBytes(new File(files.get(0)).toPath()), StandardCharsets.UTF_8);
+			scene = scene.replaceFirst("<\\?xml[^>]*\\?>", "").replaceFirst("<viewPoint>[^<]*</viewPoint>",
+					"<viewPoint>&values;</viewPoint>");
+			scene = "<?xml version=\"1.0\"?>\n<!DOCTYPE scene [<!ENTITY values SYSTEM \"" + values.toURI() + "\">]>\n"
+					+ scene;
+			Reply reply = request("POST", "/render?res=" + SMALL + "x" + SMALL,
+					scene.getBytes(StandardCharsets.UTF_8));
+			boolean ok = reply.code == 409 && field(reply, "state").equals(RenderService.FAILED);
+			report("entities", ok, "scene reading a local file " + (ok ? "refused" : "accepted"));
+		} finally {
+			values.delete();
+		}
+	}
+
+	/**
+	 * Post a long job and wait until it renders, so that the single worker is
+	 * busy.
+	 * @return the id of the job
+	 */
+	protected String startBlocker(byte[] scene) throws IOException, InterruptedException {
+
+		String id = field(request("POST", "/jobs?res=" + large, scene), "id");
+		long limit = System.currentTimeMillis() + timeoutMillis;
+		while (field(request("GET", "/jobs/" + id, null), "state").equals(RenderService.QUEUED)) {
+			if (System.currentTimeMillis() > limit)
+				throw new IOException("Job " + id + " did not start within " + timeoutMillis / 1000 + " seconds");
+			Thread.sleep(5);
+		}
+		return id;
+	}
+
+	protected static boolean leftOver(Reply status) {
+
+		return Integer.parseInt(field(status, "tiles_done")) < Integer.parseInt(field(status, "tiles"));
+	}
+
+	/**
+	 * Render a scene at the small size and compress it as Image.write does.
+	 */
+	protected byte[] render(String file) throws IOException {
+
+		Scene scene = (Scene) new Parser().parse(file, Scene.class);
+		scene.setImage(new Image(SMALL, SMALL));
+		renderer.renderTiles(scene);
+		File png = File.createTempFile("servicecheck", ".png");
+		try {
+			scene.getImage().write(png.getPath());
+			return Files.readAllBytes(png.toPath());
+		} finally {
+			png.delete();
+		}
+	}
+
+	protected static boolean samePixels(byte[] a, byte[] b) throws IOException {
+
+		BufferedImage imageA = ImageIO.read(new ByteArrayInputStream(a));
+		BufferedImage imageB = ImageIO.read(new ByteArrayInputStream(b));
+		if (imageA == null || imageB == null || imageA.getWidth() != imageB.getWidth()
+				|| imageA.getHeight() != imageB.getHeight())
+			return false;
+		for (int y = 0; y < imageA.getHeight(); y++)
+			for (int x = 0; x < imageA.getWidth(); x++)
+				if (imageA.getRGB(x, y) != imageB.getRGB(x, y))
+					return false;
+		return true;
+	}
+
+	protected Reply request(String method, String path, byte[] body) throws IOException {
+
+		URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), service.getPort(), path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		if (body != null) {
+			connection.setDoOutput(true);
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+		Reply reply = new Reply();
+		reply.code = connection.getResponseCode();
+		reply.job = connection.getHeaderField("X-Job");
+		InputStream in = reply.code < 400 ? connection.getInputStream() : connection.getErrorStream();
+		try {
+			reply.body = in != null ? in.readAllBytes() : new byte[0];
+		} finally {
+			if (in != null)
+				in.close();
+		}
+		return reply;
+	}
+
+	/**
+	 * @return a field of a JSON status reply, or "" if it has none
+	 */
+	protected static String field(Reply reply, String name) {
+
+		Matcher m = Pattern.compile("\"" + name + "\":\"?([^\",}]*)").matcher(reply.text());
+		return m.find() ? m.group(1) : "";
+	}
+
+	protected void report(String name, boolean ok, String detail) {
+
+		if (!ok)
+			failures++;
+		System.out.println(String.format("%-10s %-6s %s", name, ok ? "ok" : "FAILED", detail));
+	}
+}
@@ -0,0 +1,190 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming version of Parser for very large scene files.  It reads the file
+ * with an XMLStreamReader and creates every object as soon as its element has
+ * been read, handing it straight to its parent, so no document tree is ever
+ * built and memory use does not grow with the size of the file beyond the
+ * objects of the scene themselves.
+ *
+ * The scene format and its interpretation are exactly those of Parser: the
+ * same set/add methods, type attributes and name/ref references, resolved
+ * through the same cached bindings.  As with Parser, all state of a parse is
+ * local to the call.
+ */
+public class StreamParser {
+
+	/**
+	 * Parses a given file to generate an object of the given class.
+	 *
+	 * @param filename the name of the XML file to parse
+	 * @param c the class of the object to parse
+	 * @return a new object of the given class
+	 */
+	public Object parse(String filename, Class<?> c) {
+
+		try {
+			return parse(new BufferedInputStream(new FileInputStream(filename), 1 << 16), filename, c);
+		} catch (Exception e) {
+			System.out.println("Exception occurred while parsing: " + filename);
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a stream to generate an object of the given class.  The stream is
+	 * closed afterwards.
+	 *
+	 * @param in the XML document
+	 * @param name the name of the document, used in error messages
+	 * @param c the class of the object to parse
+	 * @return a new object of the given class
+	 */
+	public Object parse(InputStream in, String name, Class<?> c) {
+
+		Object result = null;
+		try {
+			try {
+				XMLStreamReader reader = newInputFactory().createXMLStreamReader(in);
+				while (reader.next() != XMLStreamConstants.START_ELEMENT)
+					;
+				result = parseElement(reader, c, new HashMap<String, Object>());
+				reader.close();
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			System.out.println("Exception occurred while parsing: " + name);
+			e.printStackTrace();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Create the StAX factory for one parse.  Scene files have no use for a
+	 * DTD, and documents posted to the render service must not be able to
+	 * read local files or expand entities without bound, so DTDs and external
+	 * entities are both turned off.
+	 */
+	protected static XMLInputFactory newInputFactory() {
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Parse the element at the reader's position into an instance of c.  On
+	 * return the reader is positioned at the end of the element.
+	 *
+	 * @param reader the reader, positioned at the start of the element
+	 * @param c Class type to read from the element
+	 * @param references map of the named objects parsed so far to their names
+	 * @return the object read
+	 */
+	private Object parseElement(XMLStreamReader reader, Class<?> c, HashMap<String, Object> references)
+			throws XMLStreamException {
+
+		Object resultingObject = null;
+		String typeAttribute = reader.getAttributeValue(null, "type");
+		String nameAttribute = reader.getAttributeValue(null, "name");
+		String refAttribute = reader.getAttributeValue(null, "ref");
+
+		// If the element specifies a type, check that it is assignable to the current
+		// output type for this element
+		if (typeAttribute != null)
+			c = Parser.findSubclass(c, typeAttribute);
+
+		// Check that our current type is valid
+		if (c.isArray() && !c.getComponentType().isPrimitive()) {
+			throw new Error("Cannot parse arrays of non-primitive types");
+		}
+
+		//If the object is a reference, just return the value referenced
+		if (refAttribute != null) {
+			resultingObject = references.get(refAttribute);
+			if (resultingObject == null) {
+				throw new Error("Unresolved reference: " + refAttribute);
+			}
+			skipElement(reader);
+		}
+
+		// Interpret the text of certain special classes as objects
+		else if (Parser.isTextType(c)) {
+			StringBuilder text = null;
+			while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+				switch (reader.getEventType()) {
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (text == null)
+						text = new StringBuilder();
+					text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					break;
+				case XMLStreamConstants.START_ELEMENT:
+					throw new Error(
+							"Found a non-text node while trying to parse a "
+									+ c.getName());
+				default:
+					break;
+				}
+			}
+			if (text != null)
+				resultingObject = Parser.parseObject(c, text.toString());
+		}
+
+		// Otherwise the element represents a general object
+		else {
+
+			// Create one!
+			resultingObject = Parser.newInstance(c);
+
+			// Each child element is parsed and added as soon as it ends
+			while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+
+				// Skip non-element nodes
+				if (reader.getEventType() != XMLStreamConstants.START_ELEMENT)
+					continue;
+
+				Parser.Binding binding = Parser.findBinding(c, reader.getLocalName());
+				Object childValue = parseElement(reader, binding.parameterType, references);
+				binding.invoke(resultingObject, childValue);
+			}
+		}
+
+		//Place the object in the reference list
+		if (nameAttribute != null) {
+			references.put(nameAttribute, resultingObject);
+		}
+
+		return resultingObject;
+	}
+
+	/**
+	 * Skip the contents of the element at the reader's position.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+}
@@ -0,0 +1,413 @@
+package ray;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel renderer.  The image plane is split into square tiles which are
+ * traced on a work-stealing pool.  Every tile writes its own set of pixels, so
+ * the shared image needs no locking and the result is identical to the one
+ * produced by RayTracer.renderImage.
+ */
+public class TileRenderer {
+
+	/** Tile edge length used when none is given. */
+	public static final int DEFAULT_TILE_SIZE = 32;
+
+	/** Edge length of a tile in pixels. */
+	protected final int tileSize;
+
+	/** Pool the tiles are traced on. */
+	protected final ForkJoinPool pool;
+
+	/**
+	 * Create a renderer with its own pool of worker threads.
+	 * @param tileSize edge length of a tile in pixels
+	 * @param threads number of worker threads
+	 */
+	public TileRenderer(int tileSize, int threads) {
+
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+		if (threads < 1)
+			throw new IllegalArgumentException("Thread count must be positive: " + threads);
+
+		this.tileSize = tileSize;
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * @return the number of worker threads
+	 */
+	public int getThreads() { return pool.getParallelism(); }
+
+	/**
+	 * @return the tile edge length in pixels
+	 */
+	public int getTileSize() { return tileSize; }
+
+	/**
+	 * Render the entire scene into its image, blocking until all tiles are done.
+	 * @param scene The scene to be rendered
+	 */
+	public void render(Scene scene) {
+
+		render(scene, (Checkpoint) null);
+	}
+
+	/**
+	 * Render the entire scene into its image, skipping the tiles already
+	 * finished according to the checkpoint, and blocking until all tiles are
+	 * done.
+	 * @param scene The scene to be rendered; its image must be the checkpoint's
+	 * @param checkpoint records the finished tiles, or null
+	 */
+	public void render(Scene scene, Checkpoint checkpoint) {
+
+		// Timing counters
+		long startTime = System.currentTimeMillis();
+
+		int tiles = renderTiles(scene, checkpoint);
+
+		// Output time
+		long totalTime = (System.currentTimeMillis() - startTime);
+		String resumed = "";
+		if (checkpoint != null && checkpoint.getResumedTiles() > 0)
+			resumed = ", " + checkpoint.getResumedTiles() + " resumed from checkpoint";
+		System.out.println("Done.  Total rendering time: " + (totalTime / 1000.0) + " seconds ("
+				+ tiles + " tiles of " + tileSize + "x" + tileSize + " on "
+				+ getThreads() + " threads" + resumed + ")");
+	}
+
+	/**
+	 * Render the entire scene into its image without printing anything.
+	 * @param scene The scene to be rendered
+	 * @return the number of tiles rendered
+	 */
+	public int renderTiles(Scene scene) {
+
+		return renderTiles(scene, (Checkpoint) null);
+	}
+
+	/**
+	 * Render the entire scene into its image without printing anything,
+	 * skipping the tiles already finished according to the checkpoint.
+	 * @param scene The scene to be rendered
+	 * @param checkpoint records the finished tiles, or null
+	 * @return the number of tiles of the image
+	 */
+	public int renderTiles(Scene scene, Checkpoint checkpoint) {
+
+		return renderTiles(scene, checkpoint, null);
+	}
+
+	/**
+	 * Render the entire scene into its image without printing anything,
+	 * skipping the tiles already finished according to the checkpoint, and
+	 * stopping early if the control says so.  Whether the render was stopped
+	 * is left to the caller to check on the control.
+	 * @param scene The scene to be rendered
+	 * @param checkpoint records the finished tiles, or null
+	 * @param control counts finished tiles and stops the render, or null
+	 * @return the number of tiles of the image
+	 */
+	public int renderTiles(Scene scene, Checkpoint checkpoint, Control control) {
+
+		int tiles = countTiles(scene);
+		scene.getAcceleration();
+
+		TileTask task = newTask(scene, scene.getImage(), 0, scene.getCamera().getRenderHeight(), checkpoint,
+				control, null);
+		if (task != null)
+			pool.invoke(task);
+		return tiles;
+	}
+
+	/**
+	 * Render the entire scene into its image through a G-buffer, blocking
+	 * until all tiles are done.  If the G-buffer has recorded the camera hits
+	 * of an earlier render, the pixels are only shaded again.
+	 * @param scene The scene to be rendered; its geometry, camera and image
+	 * size must be those the G-buffer was made for
+	 * @param gbuffer records or supplies the camera hits
+	 */
+	public void render(Scene scene, GBuffer gbuffer) {
+
+		long startTime = System.currentTimeMillis();
+		boolean relit = gbuffer.isRecorded();
+
+		int tiles = renderTiles(scene, gbuffer);
+
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: " + (totalTime / 1000.0) + " seconds ("
+				+ tiles + " tiles of " + tileSize + "x" + tileSize + " on "
+				+ getThreads() + " threads, " + (relit ? "relit from" : "recorded in") + " G-buffer)");
+	}
+
+	/**
+	 * Render the entire scene into its image through a G-buffer without
+	 * printing anything.
+	 * @param scene The scene to be rendered
+	 * @param gbuffer records or supplies the camera hits
+	 * @return the number of tiles of the image
+	 */
+	public int renderTiles(Scene scene, GBuffer gbuffer) {
+
+		int tiles = countTiles(scene);
+		scene.getAcceleration();
+		gbuffer.prepare(scene);
+
+		TileTask task = newTask(scene, scene.getImage(), 0, scene.getCamera().getRenderHeight(), null, null,
+				gbuffer);
+		if (task != null)
+			pool.invoke(task);
+		gbuffer.finish();
+		return tiles;
+	}
+
+	/**
+	 * Set up the camera for the scene's image and count the tiles it is split into.
+	 * @param scene The scene to be rendered
+	 * @return the number of tiles
+	 */
+	public int countTiles(Scene scene) {
+
+		Image image = scene.getImage();
+		Camera camera = scene.getCamera();
+		camera.initView(image.getWidth(), image.getHeight());
+		int tilesX = (camera.getRenderWidth() + tileSize - 1) / tileSize;
+		int tilesY = (camera.getRenderHeight() + tileSize - 1) / tileSize;
+		return tilesX * tilesY;
+	}
+
+	/**
+	 * Create the task rendering the pixel rows y0 <= y < y1 of the camera,
+	 * which must already have been set up with Camera.initView.
+	 * @return the task, or null if there is nothing to render
+	 */
+	protected TileTask newTask(Scene scene, Image image, int y0, int y1, Checkpoint checkpoint, Control control,
+			GBuffer gbuffer) {
+
+		int tilesX = (scene.getCamera().getRenderWidth() + tileSize - 1) / tileSize;
+		int tilesY = (y1 - y0 + tileSize - 1) / tileSize;
+		if (tilesX <= 0 || tilesY <= 0)
+			return null;
+		return new TileTask(scene, image, checkpoint, control, gbuffer, tilesX, y0, y1, 0, tilesX * tilesY);
+	}
+
+	/**
+	 * Render the entire scene straight to a PNG file, blocking until it is
+	 * written.
+	 * @param scene The scene to be rendered
+	 * @param fileName the output filename
+	 * @param bandRows number of rows per band
+	 */
+	public void renderToFile(Scene scene, String fileName, int bandRows) throws IOException {
+
+		// Timing counters
+		long startTime = System.currentTimeMillis();
+
+		int bands = renderToPng(scene, fileName, bandRows);
+
+		// Output time
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: " + (totalTime / 1000.0) + " seconds ("
+				+ bands + " bands of " + Math.min(bandRows, scene.getImage().getHeight())
+				+ " rows streamed on " + getThreads() + " threads)");
+	}
+
+	/**
+	 * Render the scene straight to a PNG file, a band of rows at a time.  Only
+	 * two bands are held in memory: one is encoded while the pool traces the
+	 * next, so the image itself is never allocated and may be far larger than
+	 * the heap.
+	 * @param scene The scene to be rendered
+	 * @param fileName the output filename
+	 * @param bandRows number of rows per band
+	 * @return the number of bands rendered
+	 */
+	public int renderToPng(Scene scene, String fileName, int bandRows) throws IOException {
+
+		if (bandRows < 1)
+			throw new IllegalArgumentException("Band height must be positive: " + bandRows);
+
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		bandRows = Math.min(bandRows, height);
+		Camera camera = scene.getCamera();
+		camera.initView(width, height);
+		scene.getAcceleration();
+
+		BandImage[] bands = { new BandImage(width, height, bandRows), new BandImage(width, height, bandRows) };
+		byte[] samples = new byte[bandRows * width * 3];
+		PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16),
+				width, height);
+		boolean done = false;
+		try {
+			ForkJoinTask<?> pending = null;
+			int bandCount = (height + bandRows - 1) / bandRows;
+			for (int band = 0; band <= bandCount; band++) {
+				// Start tracing this band before encoding the previous one
+				ForkJoinTask<?> task = null;
+				if (band < bandCount) {
+					BandImage target = bands[band & 1];
+					int first = band * bandRows;
+					target.moveTo(first);
+					int y0 = Math.max(height - first - bandRows, 0);
+					int y1 = Math.min(height - first, camera.getRenderHeight());
+					TileTask tiles = newTask(scene, target, y0, y1, null, null, null);
+					if (tiles != null)
+						task = pool.submit(tiles);
+				}
+
+				if (band > 0) {
+					if (pending != null)
+						pending.join();
+					int rows = Math.min(bandRows, height - (band - 1) * bandRows);
+					bands[(band - 1) & 1].packRows(samples, 0, 0, rows, false);
+					writer.writeRows(samples, 0, rows);
+				}
+				pending = task;
+			}
+			done = true;
+		} finally {
+			if (done)
+				writer.close();
+			else
+				writer.abort();
+		}
+		return (height + bandRows - 1) / bandRows;
+	}
+
+	/**
+	 * Stop the worker threads.  The renderer cannot be used afterwards.
+	 */
+	public void shutdown() {
+
+		pool.shutdown();
+	}
+
+	/**
+	 * Follows a render and stops it on request or once a deadline passes.
+	 * Tiles are checked before they start, so a stopped render ends within
+	 * about one tile per worker thread.
+	 */
+	public static class Control {
+
+		protected volatile boolean cancelled;
+		protected final boolean hasDeadline;
+		protected final long deadline;
+		protected final AtomicInteger tilesDone = new AtomicInteger();
+
+		/**
+		 * A control without a deadline.
+		 */
+		public Control() {
+
+			this.hasDeadline = false;
+			this.deadline = 0;
+		}
+
+		/**
+		 * @param deadline System.nanoTime value after which the render stops
+		 */
+		public Control(long deadline) {
+
+			this.hasDeadline = true;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stop the render.  Tiles being traced are finished.
+		 */
+		public void cancel() { cancelled = true; }
+
+		public boolean isCancelled() { return cancelled; }
+
+		public boolean isExpired() { return hasDeadline && System.nanoTime() - deadline > 0; }
+
+		/**
+		 * @return whether the remaining tiles are to be skipped
+		 */
+		public boolean isStopped() { return cancelled || isExpired(); }
+
+		/**
+		 * @return the number of tiles traced so far
+		 */
+		public int getTilesDone() { return tilesDone.get(); }
+	}
+
+	/**
+	 * Renders the tiles with indices in [first, last) of the pixel rows
+	 * y0 <= y < y1.  Ranges are halved until a single tile remains so that
+	 * idle workers can steal the other half.  Tiles finished according to the
+	 * checkpoint are skipped, and finished tiles are recorded in it.  Once the
+	 * control is stopped no further tile is started.
+	 */
+	protected class TileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final Scene scene;
+		protected final Image image;
+		protected final Checkpoint checkpoint;
+		protected final Control control;
+		protected final GBuffer gbuffer;
+		protected final int tilesX;
+		protected final int y0;
+		protected final int y1;
+		protected final int first;
+		protected final int last;
+
+		TileTask(Scene scene, Image image, Checkpoint checkpoint, Control control, GBuffer gbuffer, int tilesX,
+				int y0, int y1, int first, int last) {
+
+			this.scene = scene;
+			this.image = image;
+			this.checkpoint = checkpoint;
+			this.control = control;
+			this.gbuffer = gbuffer;
+			this.tilesX = tilesX;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.first = first;
+			this.last = last;
+		}
+
+		protected void compute() {
+
+			if (control != null && control.isStopped())
+				return;
+
+			if (last - first > 1) {
+				int mid = (first + last) >>> 1;
+				invokeAll(new TileTask(scene, image, checkpoint, control, gbuffer, tilesX, y0, y1, first, mid),
+						new TileTask(scene, image, checkpoint, control, gbuffer, tilesX, y0, y1, mid, last));
+				return;
+			}
+
+			if (checkpoint != null && checkpoint.isDone(first))
+				return;
+
+			Camera camera = scene.getCamera();
+			int tileX = (first % tilesX) * tileSize;
+			int tileY = y0 + (first / tilesX) * tileSize;
+			int tileX1 = Math.min(tileX + tileSize, camera.getRenderWidth());
+			int tileY1 = Math.min(tileY + tileSize, y1);
+			if (gbuffer != null)
+				gbuffer.renderTile(new RenderContext(scene), image, tileX, tileY, tileX1, tileY1);
+			else
+				RayTracer.renderTile(scene, image, tileX, tileY, tileX1, tileY1);
+			if (checkpoint != null)
+				checkpoint.tileDone(first);
+			if (control != null)
+				control.tilesDone.incrementAndGet();
+		}
+	}
+}
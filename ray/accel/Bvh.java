@@ -0,0 +1,565 @@
+package ray.accel;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.surface.Surface;
+
+/**
+ * Bounding volume hierarchy over a list of surfaces.  The tree is built once
+ * with the surface area heuristic (SAH) over binned bounding box centroids and
+ * is read-only afterwards, so any number of threads may traverse it.
+ *
+ * Nodes are stored in flat arrays in depth first order: the left child of an
+ * interior node directly follows it and the node stores the index of its right
+ * child.  The surfaces are reordered so that every leaf refers to a contiguous
+ * range of them.
+ */
+public class Bvh {
+
+	/**
+	 * Callback used by traverse to test the surfaces of a leaf against the ray.
+	 */
+	public interface LeafTester {
+
+		/**
+		 * Test the surfaces at leaf positions first <= i < end.
+		 * @param first position of the first surface of the leaf
+		 * @param end one past the position of the last surface of the leaf
+		 * @param tMax only intersections up to this ray parameter are of interest
+		 * @return the new upper bound on the ray parameter
+		 */
+		double testLeaf(int first, int end, double tMax);
+	}
+
+	/**
+	 * Callback used by traverseAny to look for any blocker among the surfaces
+	 * of a leaf.
+	 */
+	public interface OcclusionTester {
+
+		/**
+		 * Test the surfaces at leaf positions first <= i < end.
+		 * @param first position of the first surface of the leaf
+		 * @param end one past the position of the last surface of the leaf
+		 * @param tMax only intersections up to this ray parameter are of interest
+		 * @return true if one of the surfaces blocks the ray
+		 */
+		boolean testLeaf(int first, int end, double tMax);
+	}
+
+	/** Number of centroid bins per axis used by the SAH build. */
+	protected static final int BINS = 16;
+
+	/** Nodes with at most this many surfaces are never split, by default. */
+	public static final int MIN_LEAF_SIZE = 2;
+
+	/** Nodes with more than this many surfaces are always split, by default. */
+	public static final int MAX_LEAF_SIZE = 8;
+
+	/** Cost of visiting a node relative to testing one surface. */
+	protected static final double TRAVERSAL_COST = 1.0;
+
+	/** Maximum depth of the tree, which is also the traversal stack size. */
+	public static final int MAX_DEPTH = 64;
+
+	/** Relative amount by which node boxes are grown to absorb rounding. */
+	protected static final double BOUNDS_PADDING = 1e-9;
+
+	/* Leaf size limits of this tree. */
+	protected final int minLeafSize;
+	protected final int maxLeafSize;
+
+	/** The surfaces in leaf order. */
+	protected final Surface[] surfaces;
+
+	/** Index of each surface (in leaf order) in the list the tree was built from. */
+	protected final int[] surfaceIndex;
+
+	/** Node boxes, six entries per node: min x, y, z followed by max x, y, z. */
+	protected final double[] nodeBounds;
+
+	/** For leaves the position of the first surface, otherwise the right child. */
+	protected final int[] nodeOffset;
+
+	/** For leaves the number of surfaces, zero for interior nodes. */
+	protected final int[] nodeSize;
+
+	/** Split axis of interior nodes (0 = x, 1 = y, 2 = z). */
+	protected final byte[] nodeAxis;
+
+	/* Build statistics. */
+	protected int nodeCount;
+	protected int leafCount;
+	protected int depth;
+	protected long buildTime;
+
+	/** Whether the tree was loaded rather than built. */
+	protected final boolean loaded;
+
+	/* Per primitive data used only while building. */
+	private double[] primBounds;
+	private double[] centroids;
+
+	/**
+	 * Build a hierarchy over the given surfaces.
+	 * @param list the surfaces to organize
+	 */
+	public Bvh(List<? extends Surface> list) {
+
+		this(list, MIN_LEAF_SIZE, MAX_LEAF_SIZE);
+	}
+
+	/**
+	 * Build a hierarchy over the given surfaces with the given leaf sizes.
+	 * Larger leaves suit kernels that test several surfaces at once.
+	 * @param list the surfaces to organize
+	 * @param minLeafSize nodes with at most this many surfaces are never split
+	 * @param maxLeafSize nodes with more than this many surfaces are always split
+	 */
+	public Bvh(List<? extends Surface> list, int minLeafSize, int maxLeafSize) {
+
+		if (minLeafSize < 1 || maxLeafSize < minLeafSize)
+			throw new IllegalArgumentException("Invalid leaf sizes: " + minLeafSize + ", " + maxLeafSize);
+
+		long startTime = System.nanoTime();
+		this.minLeafSize = minLeafSize;
+		this.maxLeafSize = maxLeafSize;
+		this.loaded = false;
+
+		int n = list.size();
+		primBounds = new double[6 * n];
+		centroids = new double[3 * n];
+		surfaceIndex = new int[n];
+
+		Point3 min = new Point3();
+		Point3 max = new Point3();
+		for (int i = 0; i < n; i++) {
+			list.get(i).computeBoundingBox(min, max);
+			primBounds[6 * i + 0] = min.x;
+			primBounds[6 * i + 1] = min.y;
+			primBounds[6 * i + 2] = min.z;
+			primBounds[6 * i + 3] = max.x;
+			primBounds[6 * i + 4] = max.y;
+			primBounds[6 * i + 5] = max.z;
+			centroids[3 * i + 0] = 0.5 * (min.x + max.x);
+			centroids[3 * i + 1] = 0.5 * (min.y + max.y);
+			centroids[3 * i + 2] = 0.5 * (min.z + max.z);
+			surfaceIndex[i] = i;
+		}
+
+		// A binary tree whose leaves are not empty has at most 2n - 1 nodes
+		int maxNodes = Math.max(1, 2 * n - 1);
+		nodeBounds = new double[6 * maxNodes];
+		nodeOffset = new int[maxNodes];
+		nodeSize = new int[maxNodes];
+		nodeAxis = new byte[maxNodes];
+
+		build(0, n, 1);
+
+		surfaces = new Surface[n];
+		for (int i = 0; i < n; i++)
+			surfaces[i] = list.get(surfaceIndex[i]);
+
+		primBounds = null;
+		centroids = null;
+		buildTime = System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Load a hierarchy saved with save.  The list must hold the same surfaces
+	 * in the same order as the one the hierarchy was built from.
+	 * @param list the surfaces the hierarchy organizes
+	 * @param buffer little-endian buffer positioned at the saved hierarchy; its
+	 * position is left just past it
+	 */
+	public Bvh(List<? extends Surface> list, ByteBuffer buffer) {
+
+		long startTime = System.nanoTime();
+		this.loaded = true;
+
+		int n = buffer.getInt();
+		if (n != list.size())
+			throw new IllegalArgumentException("Saved hierarchy has " + n + " surfaces, not " + list.size());
+		minLeafSize = buffer.getInt();
+		maxLeafSize = buffer.getInt();
+		nodeCount = buffer.getInt();
+		leafCount = buffer.getInt();
+		depth = buffer.getInt();
+		if (nodeCount < 1 || nodeCount > Math.max(1, 2 * n - 1) || depth > MAX_DEPTH)
+			throw new IllegalArgumentException("Invalid saved hierarchy");
+
+		nodeBounds = new double[6 * nodeCount];
+		buffer.asDoubleBuffer().get(nodeBounds);
+		buffer.position(buffer.position() + 8 * nodeBounds.length);
+		surfaceIndex = new int[n];
+		nodeOffset = new int[nodeCount];
+		nodeSize = new int[nodeCount];
+		IntBuffer ints = buffer.asIntBuffer();
+		ints.get(surfaceIndex).get(nodeOffset).get(nodeSize);
+		buffer.position(buffer.position() + 4 * ints.position());
+		nodeAxis = new byte[nodeCount];
+		buffer.get(nodeAxis);
+		buffer.position((buffer.position() + 7) & ~7);
+
+		surfaces = new Surface[n];
+		for (int i = 0; i < n; i++)
+			surfaces[i] = list.get(surfaceIndex[i]);
+
+		buildTime = System.nanoTime() - startTime;
+	}
+
+	/**
+	 * @return the number of bytes written by save
+	 */
+	public long getSavedSize() {
+
+		return 24 + 48L * nodeCount + ((4L * surfaces.length + 9L * nodeCount + 7) & ~7L);
+	}
+
+	/**
+	 * Save the hierarchy so that it can be loaded without being rebuilt.
+	 * @param buffer little-endian buffer receiving getSavedSize() bytes at its
+	 * position, which should be a multiple of 8
+	 */
+	public void save(ByteBuffer buffer) {
+
+		buffer.putInt(surfaces.length).putInt(minLeafSize).putInt(maxLeafSize);
+		buffer.putInt(nodeCount).putInt(leafCount).putInt(depth);
+		buffer.asDoubleBuffer().put(nodeBounds, 0, 6 * nodeCount);
+		buffer.position(buffer.position() + 48 * nodeCount);
+		IntBuffer ints = buffer.asIntBuffer();
+		ints.put(surfaceIndex).put(nodeOffset, 0, nodeCount).put(nodeSize, 0, nodeCount);
+		buffer.position(buffer.position() + 4 * ints.position());
+		buffer.put(nodeAxis, 0, nodeCount);
+		while ((buffer.position() & 7) != 0)
+			buffer.put((byte) 0);
+	}
+
+	/**
+	 * Recursively build the subtree over the primitives at positions [start, end).
+	 * @return the index of the subtree's root node
+	 */
+	private int build(int start, int end, int level) {
+
+		int node = nodeCount++;
+		depth = Math.max(depth, level);
+		int count = end - start;
+
+		// Bounds of the primitives and of their centroids
+		double[] bounds = new double[6];
+		double[] cbounds = new double[6];
+		for (int k = 0; k < 3; k++) {
+			bounds[k] = cbounds[k] = Double.POSITIVE_INFINITY;
+			bounds[k + 3] = cbounds[k + 3] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < end; i++) {
+			int p = surfaceIndex[i];
+			for (int k = 0; k < 3; k++) {
+				bounds[k] = Math.min(bounds[k], primBounds[6 * p + k]);
+				bounds[k + 3] = Math.max(bounds[k + 3], primBounds[6 * p + k + 3]);
+				cbounds[k] = Math.min(cbounds[k], centroids[3 * p + k]);
+				cbounds[k + 3] = Math.max(cbounds[k + 3], centroids[3 * p + k]);
+			}
+		}
+		for (int k = 0; k < 3; k++) {
+			nodeBounds[6 * node + k] = bounds[k] - BOUNDS_PADDING * (1 + Math.abs(bounds[k]));
+			nodeBounds[6 * node + k + 3] = bounds[k + 3] + BOUNDS_PADDING * (1 + Math.abs(bounds[k + 3]));
+		}
+
+		if (count <= minLeafSize || level >= MAX_DEPTH)
+			return makeLeaf(node, start, count);
+
+		// Evaluate the SAH for every bin boundary on every axis
+		double parentArea = area(bounds);
+		int bestAxis = -1;
+		int bestBin = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		int[] binCount = new int[BINS];
+		double[] binBounds = new double[6 * BINS];
+		double[] rightArea = new double[BINS];
+		int[] rightCount = new int[BINS];
+		double[] box = new double[6];
+		for (int axis = 0; axis < 3; axis++) {
+			double cmin = cbounds[axis];
+			double extent = cbounds[axis + 3] - cmin;
+			if (!(extent > 0))
+				continue;
+
+			for (int b = 0; b < BINS; b++) {
+				binCount[b] = 0;
+				emptyBox(binBounds, 6 * b);
+			}
+			for (int i = start; i < end; i++) {
+				int p = surfaceIndex[i];
+				int b = bin(centroids[3 * p + axis], cmin, extent);
+				binCount[b]++;
+				growBox(binBounds, 6 * b, primBounds, 6 * p);
+			}
+
+			// Sweep from the right to get the area and count right of each boundary
+			emptyBox(box, 0);
+			int n = 0;
+			for (int b = BINS - 1; b > 0; b--) {
+				growBox(box, 0, binBounds, 6 * b);
+				n += binCount[b];
+				rightArea[b] = n > 0 ? area(box) : 0;
+				rightCount[b] = n;
+			}
+
+			// Sweep from the left and evaluate the cost of splitting after bin b
+			emptyBox(box, 0);
+			n = 0;
+			for (int b = 0; b < BINS - 1; b++) {
+				growBox(box, 0, binBounds, 6 * b);
+				n += binCount[b];
+				if (n == 0 || rightCount[b + 1] == 0)
+					continue;
+				double cost = area(box) * n + rightArea[b + 1] * rightCount[b + 1];
+				cost = TRAVERSAL_COST + (parentArea > 0 ? cost / parentArea : 0);
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide, so the SAH cannot separate them
+			if (count <= maxLeafSize)
+				return makeLeaf(node, start, count);
+			bestAxis = 0;
+			mid = (start + end) >>> 1;
+		} else {
+			if (bestCost >= count && count <= maxLeafSize)
+				return makeLeaf(node, start, count);
+
+			// Partition the primitives around the chosen boundary
+			double cmin = cbounds[bestAxis];
+			double extent = cbounds[bestAxis + 3] - cmin;
+			int i = start;
+			int j = end - 1;
+			while (i <= j) {
+				if (bin(centroids[3 * surfaceIndex[i] + bestAxis], cmin, extent) <= bestBin) {
+					i++;
+				} else {
+					int tmp = surfaceIndex[i];
+					surfaceIndex[i] = surfaceIndex[j];
+					surfaceIndex[j--] = tmp;
+				}
+			}
+			mid = i;
+		}
+
+		nodeAxis[node] = (byte) bestAxis;
+		build(start, mid, level + 1);
+		nodeOffset[node] = build(mid, end, level + 1);
+		nodeSize[node] = 0;
+		return node;
+	}
+
+	private int makeLeaf(int node, int start, int count) {
+
+		nodeOffset[node] = start;
+		nodeSize[node] = count;
+		leafCount++;
+		return node;
+	}
+
+	private static int bin(double c, double cmin, double extent) {
+
+		return Math.min(BINS - 1, (int) ((c - cmin) / extent * BINS));
+	}
+
+	private static void emptyBox(double[] box, int o) {
+
+		for (int k = 0; k < 3; k++) {
+			box[o + k] = Double.POSITIVE_INFINITY;
+			box[o + k + 3] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	private static void growBox(double[] box, int o, double[] other, int p) {
+
+		for (int k = 0; k < 3; k++) {
+			box[o + k] = Math.min(box[o + k], other[p + k]);
+			box[o + k + 3] = Math.max(box[o + k + 3], other[p + k + 3]);
+		}
+	}
+
+	private static double area(double[] box) {
+
+		double dx = box[3] - box[0];
+		double dy = box[4] - box[1];
+		double dz = box[5] - box[2];
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * @return the number of surfaces in the hierarchy
+	 */
+	public int size() { return surfaces.length; }
+
+	/**
+	 * @param position position of a surface in leaf order
+	 * @return the surface at the given position
+	 */
+	public Surface getSurface(int position) { return surfaces[position]; }
+
+	/**
+	 * @param position position of a surface in leaf order
+	 * @return the index of that surface in the list the hierarchy was built from
+	 */
+	public int getSurfaceIndex(int position) { return surfaceIndex[position]; }
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int getNodeCount() { return nodeCount; }
+
+	/**
+	 * @return the number of leaves in the tree
+	 */
+	public int getLeafCount() { return leafCount; }
+
+	/**
+	 * @return the number of levels of the tree
+	 */
+	public int getDepth() { return depth; }
+
+	/**
+	 * @return the time taken to build or load the tree in seconds
+	 */
+	public double getBuildTime() { return buildTime / 1e9; }
+
+	/**
+	 * @return whether the tree was loaded rather than built
+	 */
+	public boolean isLoaded() { return loaded; }
+
+	/**
+	 * Visit every leaf whose box is hit by the ray within [0, tMax], nearer
+	 * children first.  The tester may shrink tMax to cull farther nodes.
+	 * @param origin origin of the ray
+	 * @param direction direction of the ray
+	 * @param tMax initial upper bound on the ray parameter
+	 * @param tester called for each leaf that is hit
+	 * @param stack scratch array of at least MAX_DEPTH entries
+	 * @return the final upper bound returned by the tester
+	 */
+	public double traverse(Point3 origin, Vector3 direction, double tMax, LeafTester tester, int[] stack) {
+
+		if (surfaces.length == 0)
+			return tMax;
+
+		double ox = origin.x, oy = origin.y, oz = origin.z;
+		double idx = 1.0 / direction.x;
+		double idy = 1.0 / direction.y;
+		double idz = 1.0 / direction.z;
+
+		int top = 0;
+		int node = 0;
+		while (true) {
+			if (intersectsNode(node, ox, oy, oz, idx, idy, idz, tMax)) {
+				int size = nodeSize[node];
+				if (size > 0) {
+					int first = nodeOffset[node];
+					tMax = tester.testLeaf(first, first + size, tMax);
+				} else {
+					// Descend into the child on the near side of the split first
+					int axis = nodeAxis[node];
+					boolean negative = axis == 0 ? idx < 0 : axis == 1 ? idy < 0 : idz < 0;
+					if (negative) {
+						stack[top++] = node + 1;
+						node = nodeOffset[node];
+					} else {
+						stack[top++] = nodeOffset[node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if (top == 0)
+				return tMax;
+			node = stack[--top];
+		}
+	}
+
+	/**
+	 * Visit the leaves whose box is hit by the ray within [0, tMax] until the
+	 * tester reports a blocker.
+	 * @param origin origin of the ray
+	 * @param direction direction of the ray
+	 * @param tMax upper bound on the ray parameter
+	 * @param tester called for each leaf that is hit
+	 * @param stack scratch array of at least MAX_DEPTH entries
+	 * @return true if the tester found a blocker
+	 */
+	public boolean traverseAny(Point3 origin, Vector3 direction, double tMax, OcclusionTester tester,
+			int[] stack) {
+
+		if (surfaces.length == 0)
+			return false;
+
+		double ox = origin.x, oy = origin.y, oz = origin.z;
+		double idx = 1.0 / direction.x;
+		double idy = 1.0 / direction.y;
+		double idz = 1.0 / direction.z;
+
+		int top = 0;
+		int node = 0;
+		while (true) {
+			if (intersectsNode(node, ox, oy, oz, idx, idy, idz, tMax)) {
+				int size = nodeSize[node];
+				if (size > 0) {
+					int first = nodeOffset[node];
+					if (tester.testLeaf(first, first + size, tMax))
+						return true;
+				} else {
+					stack[top++] = nodeOffset[node];
+					node = node + 1;
+					continue;
+				}
+			}
+			if (top == 0)
+				return false;
+			node = stack[--top];
+		}
+	}
+
+	/**
+	 * Slab test of the ray against a node box.  Any NaN produced by rays parallel
+	 * to a slab makes the test pass, so a node is never culled wrongly.
+	 */
+	private boolean intersectsNode(int node, double ox, double oy, double oz,
+			double idx, double idy, double idz, double tMax) {
+
+		int b = 6 * node;
+		double tx1 = (nodeBounds[b + 0] - ox) * idx;
+		double tx2 = (nodeBounds[b + 3] - ox) * idx;
+		double ty1 = (nodeBounds[b + 1] - oy) * idy;
+		double ty2 = (nodeBounds[b + 4] - oy) * idy;
+		double tz1 = (nodeBounds[b + 2] - oz) * idz;
+		double tz2 = (nodeBounds[b + 5] - oz) * idz;
+
+		double tNear = Math.max(Math.max(Math.min(tx1, tx2), Math.min(ty1, ty2)), Math.min(tz1, tz2));
+		double tFar = Math.min(Math.min(Math.max(tx1, tx2), Math.max(ty1, ty2)), Math.max(tz1, tz2));
+
+		return !(tNear > tFar || tFar < 0 || tNear > tMax);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+
+		return "BVH: " + surfaces.length + " surfaces, " + nodeCount + " nodes (" + leafCount
+				+ " leaves, depth " + depth + "), " + (loaded ? "loaded" : "built") + " in " + getBuildTime()
+				+ " seconds";
+	}
+}
@@ -0,0 +1,449 @@
+package ray.accel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import ray.IntersectionRecord;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.shader.Shader;
+import ray.surface.Box;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * The scene geometry compiled into flat primitive arrays.  Spheres and boxes
+ * are stored column-wise (one array per coordinate) and each kind gets its own
+ * BVH whose leaf order is also the column order, so the surfaces of a leaf are
+ * tested by a tight loop over contiguous memory.  Surfaces of any other type
+ * are kept in a third BVH and intersected through Surface.intersect.
+ *
+ * The store is read-only once built.  Rays are traced through a Query, which
+ * holds the per-thread scratch state.
+ */
+public class GeometryStore {
+
+	/* Kinds of primitive a hit can refer to. */
+	protected static final int NONE = -1;
+	protected static final int SPHERE = 0;
+	protected static final int BOX = 1;
+	protected static final int SURFACE = 2;
+
+	/** Name of the class providing the vector kernels. */
+	protected static final String VECTOR_KERNELS = "ray.accel.VectorKernels";
+
+	/** Kernels used by stores built from now on. */
+	protected static volatile ScalarKernels defaultKernels = loadKernels(!"false".equals(System.getProperty("ray.simd")));
+
+	/** Kernels used to test the sphere and box columns. */
+	protected final ScalarKernels kernels;
+
+	/** Distinct shaders of the surfaces; the shader columns index into it. */
+	protected final Shader[] shaders;
+
+	/* Sphere columns, in sphereBvh leaf order. */
+	protected final Bvh sphereBvh;
+	protected final double[] sphereX, sphereY, sphereZ;
+	protected final double[] sphereRadius;
+	protected final double[] sphereRadius2;
+	protected final int[] sphereShader;
+	protected final int[] sphereIndex;
+
+	/* Box columns, in boxBvh leaf order. */
+	protected final Bvh boxBvh;
+	protected final double[] boxMinX, boxMinY, boxMinZ;
+	protected final double[] boxMaxX, boxMaxY, boxMaxZ;
+	protected final int[] boxShader;
+	protected final int[] boxIndex;
+
+	/* Surfaces of other types, in surfaceBvh leaf order. */
+	protected final Bvh surfaceBvh;
+	protected final int[] surfaceIndex;
+
+	/** Time taken to build the store in nanoseconds. */
+	protected final long buildTime;
+
+	/**
+	 * Compile the given surfaces.
+	 * @param surfaces the surfaces of the scene
+	 */
+	public GeometryStore(List<? extends Surface> surfaces) {
+
+		this(surfaces, null);
+	}
+
+	/**
+	 * Compile the given surfaces, loading the hierarchies saved with save
+	 * instead of building them if a buffer is given.  The surfaces must then be
+	 * the same, in the same order, as those of the saved store.
+	 * @param surfaces the surfaces of the scene
+	 * @param saved little-endian buffer positioned at the saved hierarchies, or
+	 * null; its position is left just past them
+	 */
+	public GeometryStore(List<? extends Surface> surfaces, ByteBuffer saved) {
+
+		long startTime = System.nanoTime();
+		kernels = defaultKernels;
+
+		// Sort the surfaces by kind, remembering their position in the scene
+		ArrayList<Surface> spheres = new ArrayList<Surface>();
+		ArrayList<Surface> boxes = new ArrayList<Surface>();
+		ArrayList<Surface> others = new ArrayList<Surface>();
+		ArrayList<Integer> sphereScene = new ArrayList<Integer>();
+		ArrayList<Integer> boxScene = new ArrayList<Integer>();
+		ArrayList<Integer> otherScene = new ArrayList<Integer>();
+		ArrayList<Shader> shaderList = new ArrayList<Shader>();
+		IdentityHashMap<Shader, Integer> shaderIndex = new IdentityHashMap<Shader, Integer>();
+		for (int i = 0; i < surfaces.size(); i++) {
+			Surface surface = surfaces.get(i);
+			if (!shaderIndex.containsKey(surface.getShader())) {
+				shaderIndex.put(surface.getShader(), shaderList.size());
+				shaderList.add(surface.getShader());
+			}
+			if (surface.getClass() == Sphere.class) {
+				spheres.add(surface);
+				sphereScene.add(i);
+			} else if (surface.getClass() == Box.class) {
+				boxes.add(surface);
+				boxScene.add(i);
+			} else {
+				others.add(surface);
+				otherScene.add(i);
+			}
+		}
+		shaders = shaderList.toArray(new Shader[shaderList.size()]);
+
+		// Leaves of at least one vector of primitives keep the kernel lanes busy
+		int minLeafSize = Math.max(Bvh.MIN_LEAF_SIZE, kernels.getWidth());
+		int maxLeafSize = Math.max(Bvh.MAX_LEAF_SIZE, 2 * kernels.getWidth());
+		sphereBvh = saved != null ? new Bvh(spheres, saved) : new Bvh(spheres, minLeafSize, maxLeafSize);
+		int n = spheres.size();
+		sphereX = new double[n];
+		sphereY = new double[n];
+		sphereZ = new double[n];
+		sphereRadius = new double[n];
+		sphereRadius2 = new double[n];
+		sphereShader = new int[n];
+		sphereIndex = new int[n];
+		for (int i = 0; i < n; i++) {
+			Sphere sphere = (Sphere) sphereBvh.getSurface(i);
+			sphereX[i] = sphere.center.x;
+			sphereY[i] = sphere.center.y;
+			sphereZ[i] = sphere.center.z;
+			sphereRadius[i] = sphere.radius;
+			sphereRadius2[i] = sphere.radius * sphere.radius;
+			sphereShader[i] = shaderIndex.get(sphere.getShader());
+			sphereIndex[i] = sphereScene.get(sphereBvh.getSurfaceIndex(i));
+		}
+
+		boxBvh = saved != null ? new Bvh(boxes, saved) : new Bvh(boxes, minLeafSize, maxLeafSize);
+		n = boxes.size();
+		boxMinX = new double[n];
+		boxMinY = new double[n];
+		boxMinZ = new double[n];
+		boxMaxX = new double[n];
+		boxMaxY = new double[n];
+		boxMaxZ = new double[n];
+		boxShader = new int[n];
+		boxIndex = new int[n];
+		for (int i = 0; i < n; i++) {
+			Box box = (Box) boxBvh.getSurface(i);
+			boxMinX[i] = box.minPt.x;
+			boxMinY[i] = box.minPt.y;
+			boxMinZ[i] = box.minPt.z;
+			boxMaxX[i] = box.maxPt.x;
+			boxMaxY[i] = box.maxPt.y;
+			boxMaxZ[i] = box.maxPt.z;
+			boxShader[i] = shaderIndex.get(box.getShader());
+			boxIndex[i] = boxScene.get(boxBvh.getSurfaceIndex(i));
+		}
+
+		surfaceBvh = saved != null ? new Bvh(others, saved) : new Bvh(others);
+		n = others.size();
+		surfaceIndex = new int[n];
+		for (int i = 0; i < n; i++)
+			surfaceIndex[i] = otherScene.get(surfaceBvh.getSurfaceIndex(i));
+
+		buildTime = System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Choose the kernels for stores built from now on.  The vector kernels
+	 * need the jdk.incubator.vector module (java --add-modules
+	 * jdk.incubator.vector) and VectorKernels compiled against it; when they
+	 * are not available the scalar kernels are used.  They are enabled by
+	 * default unless the system property ray.simd is false.
+	 * @param vector whether to use the vector kernels if available
+	 * @return the name of the kernels chosen
+	 */
+	public static synchronized String setVectorKernels(boolean vector) {
+
+		defaultKernels = loadKernels(vector);
+		return defaultKernels.getName();
+	}
+
+	/**
+	 * @return the kernels used by stores built from now on
+	 */
+	public static ScalarKernels getDefaultKernels() { return defaultKernels; }
+
+	protected static ScalarKernels loadKernels(boolean vector) {
+
+		if (vector) {
+			try {
+				return (ScalarKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				// Not compiled in
+			} catch (LinkageError e) {
+				// Compiled in, but the vector module is missing
+			}
+		}
+		return new ScalarKernels();
+	}
+
+	/**
+	 * @return the kernels used by this store
+	 */
+	public ScalarKernels getKernels() { return kernels; }
+
+	/**
+	 * @return the number of surfaces in the store
+	 */
+	public int size() { return sphereX.length + boxMinX.length + surfaceIndex.length; }
+
+	/**
+	 * @return the distinct shaders of the surfaces
+	 */
+	public Shader[] getShaders() { return shaders; }
+
+	/**
+	 * @return the time taken to build the store in seconds
+	 */
+	public double getBuildTime() { return buildTime / 1e9; }
+
+	/**
+	 * @return the number of BVH nodes over all kinds of surfaces
+	 */
+	public int getNodeCount() {
+
+		return sphereBvh.getNodeCount() + boxBvh.getNodeCount() + surfaceBvh.getNodeCount();
+	}
+
+	/**
+	 * @return the number of bytes written by save
+	 */
+	public long getSavedSize() {
+
+		return sphereBvh.getSavedSize() + boxBvh.getSavedSize() + surfaceBvh.getSavedSize();
+	}
+
+	/**
+	 * Save the hierarchies, which are all that is expensive to rebuild.  The
+	 * primitive columns are filled again from the surfaces when loading.
+	 * @param buffer little-endian buffer receiving getSavedSize() bytes at its
+	 * position, which should be a multiple of 8
+	 */
+	public void save(ByteBuffer buffer) {
+
+		sphereBvh.save(buffer);
+		boxBvh.save(buffer);
+		surfaceBvh.save(buffer);
+	}
+
+	/**
+	 * Create the scratch state needed to trace rays through this store.  A
+	 * query must only be used by one thread at a time.
+	 * @return a new query
+	 */
+	public Query newQuery() {
+
+		return new Query();
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+
+		String result = "Geometry: " + sphereX.length + " spheres, " + boxMinX.length + " boxes, "
+				+ surfaceIndex.length + " other surfaces, " + (sphereBvh.isLoaded() ? "loaded" : "built") + " in "
+				+ getBuildTime() + " seconds ("
+				+ kernels.getName() + " kernels)";
+		if (sphereX.length > 0)
+			result += "\n  spheres " + sphereBvh;
+		if (boxMinX.length > 0)
+			result += "\n  boxes " + boxBvh;
+		if (surfaceIndex.length > 0)
+			result += "\n  other " + surfaceBvh;
+		return result;
+	}
+
+	/**
+	 * Per-thread state for tracing rays through the store: the ray, the best
+	 * hit found so far, and the BVH traversal stack.
+	 */
+	public class Query {
+
+		/** Traversal stack for the BVHs. */
+		protected final int[] stack = new int[Bvh.MAX_DEPTH];
+
+		/* The current ray. */
+		protected Point3 origin;
+		protected Vector3 direction;
+		protected double ox, oy, oz;
+		protected double dx, dy, dz;
+		protected double tMin;
+
+		/* The best hit so far: its kind, leaf position and scene index. */
+		protected int bestKind;
+		protected int bestPosition;
+		protected int bestIndex;
+
+		/** The surface found by the last occlusion query. */
+		protected Surface occluder;
+
+		/** Scratch record for surfaces without a column kernel. */
+		protected final IntersectionRecord scratch = new IntersectionRecord();
+
+		protected final Bvh.LeafTester closestSpheres = new Bvh.LeafTester() {
+			public double testLeaf(int first, int end, double tMax) { return closestSphere(first, end, tMax); }
+		};
+		protected final Bvh.LeafTester closestBoxes = new Bvh.LeafTester() {
+			public double testLeaf(int first, int end, double tMax) { return closestBox(first, end, tMax); }
+		};
+		protected final Bvh.LeafTester closestSurfaces = new Bvh.LeafTester() {
+			public double testLeaf(int first, int end, double tMax) { return closestSurface(first, end, tMax); }
+		};
+		protected final Bvh.OcclusionTester anySpheres = new Bvh.OcclusionTester() {
+			public boolean testLeaf(int first, int end, double tMax) { return anySphere(first, end, tMax); }
+		};
+		protected final Bvh.OcclusionTester anyBoxes = new Bvh.OcclusionTester() {
+			public boolean testLeaf(int first, int end, double tMax) { return anyBox(first, end, tMax); }
+		};
+		protected final Bvh.OcclusionTester anySurfaces = new Bvh.OcclusionTester() {
+			public boolean testLeaf(int first, int end, double tMax) { return anySurface(first, end, tMax); }
+		};
+
+		protected Query() { }
+
+		protected void setRay(Point3 origin, Vector3 direction, double tMin) {
+
+			this.origin = origin;
+			this.direction = direction;
+			this.ox = origin.x;
+			this.oy = origin.y;
+			this.oz = origin.z;
+			this.dx = direction.x;
+			this.dy = direction.y;
+			this.dz = direction.z;
+			this.tMin = tMin;
+		}
+
+		/**
+		 * Find the nearest surface hit by the ray within (tMin, tMax).  Of
+		 * surfaces hit at exactly the same distance, the one that comes first in
+		 * the scene wins.
+		 * @param outRecord receives the intersection; untouched if there is none
+		 * @param origin origin of the ray
+		 * @param direction unit direction of the ray
+		 * @param tMin lower bound (exclusive) on the ray parameter
+		 * @param tMax upper bound (exclusive) on the ray parameter
+		 * @return true if a surface was hit
+		 */
+		public boolean closestHit(IntersectionRecord outRecord, Point3 origin, Vector3 direction,
+				double tMin, double tMax) {
+
+			setRay(origin, direction, tMin);
+			bestKind = NONE;
+			bestIndex = Integer.MIN_VALUE;
+
+			double t = sphereBvh.traverse(origin, direction, tMax, closestSpheres, stack);
+			t = boxBvh.traverse(origin, direction, t, closestBoxes, stack);
+			t = surfaceBvh.traverse(origin, direction, t, closestSurfaces, stack);
+
+			if (bestKind == NONE)
+				return false;
+
+			// Let the surface itself fill in the location and normal of the hit
+			Bvh bvh = bestKind == SPHERE ? sphereBvh : bestKind == BOX ? boxBvh : surfaceBvh;
+			return bvh.getSurface(bestPosition).intersect(outRecord, origin, direction, tMin, Math.nextUp(t));
+		}
+
+		/**
+		 * Check whether any surface is crossed by the ray within (tMin, tMax),
+		 * stopping at the first one found.
+		 * @param origin origin of the ray
+		 * @param direction unit direction of the ray
+		 * @param tMin lower bound (exclusive) on the ray parameter
+		 * @param tMax upper bound (exclusive) on the ray parameter
+		 * @return true if the ray is blocked; getOccluder then returns the blocker
+		 */
+		public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+
+			setRay(origin, direction, tMin);
+			occluder = null;
+
+			return sphereBvh.traverseAny(origin, direction, tMax, anySpheres, stack)
+					|| boxBvh.traverseAny(origin, direction, tMax, anyBoxes, stack)
+					|| surfaceBvh.traverseAny(origin, direction, tMax, anySurfaces, stack);
+		}
+
+		/**
+		 * @return the surface that blocked the last occluded ray
+		 */
+		public Surface getOccluder() { return occluder; }
+
+		protected void setBest(int kind, int position, int index) {
+
+			bestKind = kind;
+			bestPosition = position;
+			bestIndex = index;
+		}
+
+		protected double closestSphere(int first, int end, double best) {
+
+			return kernels.closestSphere(GeometryStore.this, this, first, end, best);
+		}
+
+		protected boolean anySphere(int first, int end, double tMax) {
+
+			return kernels.anySphere(GeometryStore.this, this, first, end, tMax);
+		}
+
+		protected double closestBox(int first, int end, double best) {
+
+			return kernels.closestBox(GeometryStore.this, this, first, end, best);
+		}
+
+		protected boolean anyBox(int first, int end, double tMax) {
+
+			return kernels.anyBox(GeometryStore.this, this, first, end, tMax);
+		}
+
+		protected double closestSurface(int first, int end, double best) {
+
+			for (int i = first; i < end; i++) {
+				if (!surfaceBvh.getSurface(i).intersect(scratch, origin, direction, tMin, Math.nextUp(best)))
+					continue;
+				if (scratch.t < best || surfaceIndex[i] < bestIndex) {
+					best = scratch.t;
+					setBest(SURFACE, i, surfaceIndex[i]);
+				}
+			}
+			return best;
+		}
+
+		protected boolean anySurface(int first, int end, double tMax) {
+
+			for (int i = first; i < end; i++) {
+				if (surfaceBvh.getSurface(i).intersect(scratch, origin, direction, tMin, tMax)) {
+					occluder = surfaceBvh.getSurface(i);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
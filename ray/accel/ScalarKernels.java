@@ -0,0 +1,140 @@
+package ray.accel;
+
+/**
+ * Intersection kernels over the sphere and box columns of a GeometryStore,
+ * testing one surface at a time.  They repeat the arithmetic of
+ * Sphere.intersect and Box.intersect exactly, so they find the same hits.
+ *
+ * Closest-hit kernels return the new upper bound on the ray parameter and
+ * record the hit in the query; of hits at the same distance the one whose
+ * surface comes first in the scene wins.  Any-hit kernels record the blocker
+ * in the query.
+ */
+public class ScalarKernels {
+
+	/**
+	 * @return a short name of the kernels for the log
+	 */
+	public String getName() { return "scalar"; }
+
+	/**
+	 * @return the number of surfaces the kernels test at once, used to size
+	 *   the BVH leaves
+	 */
+	public int getWidth() { return 1; }
+
+	/**
+	 * Find the nearest sphere at positions [first, end) hit before best.
+	 */
+	public double closestSphere(GeometryStore g, GeometryStore.Query q, int first, int end, double best) {
+
+		for (int i = first; i < end; i++) {
+			double ux = q.ox - g.sphereX[i];
+			double uy = q.oy - g.sphereY[i];
+			double uz = q.oz - g.sphereZ[i];
+
+			double b = ux * q.dx + uy * q.dy + uz * q.dz;
+			double d = Math.sqrt(b * b - (ux * ux + uy * uy + uz * uz) + g.sphereRadius2[i]);
+
+			double t = -b - d;
+			if (!(t > q.tMin))
+				t = -b + d;
+			if (t > q.tMin && (t < best || (t == best && g.sphereIndex[i] < q.bestIndex))) {
+				best = t;
+				q.setBest(GeometryStore.SPHERE, i, g.sphereIndex[i]);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Find any sphere at positions [first, end) crossed before tMax.
+	 */
+	public boolean anySphere(GeometryStore g, GeometryStore.Query q, int first, int end, double tMax) {
+
+		for (int i = first; i < end; i++) {
+			double ux = q.ox - g.sphereX[i];
+			double uy = q.oy - g.sphereY[i];
+			double uz = q.oz - g.sphereZ[i];
+
+			double b = ux * q.dx + uy * q.dy + uz * q.dz;
+			double d = Math.sqrt(b * b - (ux * ux + uy * uy + uz * uz) + g.sphereRadius2[i]);
+
+			double t1 = -b - d;
+			double t2 = -b + d;
+			if ((t1 > q.tMin && t1 < tMax) || (t2 > q.tMin && t2 < tMax)) {
+				q.occluder = g.sphereBvh.getSurface(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the nearest box at positions [first, end) hit before best.
+	 */
+	public double closestBox(GeometryStore g, GeometryStore.Query q, int first, int end, double best) {
+
+		for (int i = first; i < end; i++) {
+			double tx1 = (g.boxMinX[i] - q.ox) / q.dx;
+			double tx2 = (g.boxMaxX[i] - q.ox) / q.dx;
+			double ty1 = (g.boxMinY[i] - q.oy) / q.dy;
+			double ty2 = (g.boxMaxY[i] - q.oy) / q.dy;
+			double tz1 = (g.boxMinZ[i] - q.oz) / q.dz;
+			double tz2 = (g.boxMaxZ[i] - q.oz) / q.dz;
+
+			double tNear = Math.min(tx1, tx2);
+			double tFar = Math.max(tx1, tx2);
+			double t = Math.min(ty1, ty2);
+			if (t > tNear) tNear = t;
+			t = Math.max(ty1, ty2);
+			if (t < tFar) tFar = t;
+			t = Math.min(tz1, tz2);
+			if (t > tNear) tNear = t;
+			t = Math.max(tz1, tz2);
+			if (t < tFar) tFar = t;
+
+			if (!(tNear <= tFar))
+				continue;
+
+			t = tNear > q.tMin ? tNear : tFar;
+			if (t > q.tMin && (t < best || (t == best && g.boxIndex[i] < q.bestIndex))) {
+				best = t;
+				q.setBest(GeometryStore.BOX, i, g.boxIndex[i]);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Find any box at positions [first, end) crossed before tMax.
+	 */
+	public boolean anyBox(GeometryStore g, GeometryStore.Query q, int first, int end, double tMax) {
+
+		for (int i = first; i < end; i++) {
+			double tx1 = (g.boxMinX[i] - q.ox) / q.dx;
+			double tx2 = (g.boxMaxX[i] - q.ox) / q.dx;
+			double ty1 = (g.boxMinY[i] - q.oy) / q.dy;
+			double ty2 = (g.boxMaxY[i] - q.oy) / q.dy;
+			double tz1 = (g.boxMinZ[i] - q.oz) / q.dz;
+			double tz2 = (g.boxMaxZ[i] - q.oz) / q.dz;
+
+			double tNear = Math.min(tx1, tx2);
+			double tFar = Math.max(tx1, tx2);
+			double t = Math.min(ty1, ty2);
+			if (t > tNear) tNear = t;
+			t = Math.max(ty1, ty2);
+			if (t < tFar) tFar = t;
+			t = Math.min(tz1, tz2);
+			if (t > tNear) tNear = t;
+			t = Math.max(tz1, tz2);
+			if (t < tFar) tFar = t;
+
+			if (tNear <= tFar && ((tNear > q.tMin && tNear < tMax) || (tFar > q.tMin && tFar < tMax))) {
+				q.occluder = g.boxBvh.getSurface(i);
+				return true;
+			}
+		}
+		return false;
+	}
+}
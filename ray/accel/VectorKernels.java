@@ -0,0 +1,170 @@
+package ray.accel;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels that test one ray against a whole vector of spheres or boxes at a
+ * time, using the preferred vector width of the machine (4 doubles with AVX2,
+ * 8 with AVX-512).  Surfaces left over at the end of a range go through the
+ * scalar kernels.
+ *
+ * Every lane performs the same IEEE operations in the same order as the
+ * scalar kernels, so the ray parameters are bit for bit the same; lanes that
+ * hit are then resolved one at a time with the scalar tie-breaking rule.
+ *
+ * This class needs the jdk.incubator.vector module and is only loaded by
+ * name, so the rest of the renderer compiles and runs without it:
+ *   javac --add-modules jdk.incubator.vector ray/accel/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector ray.RayTracer scene.xml
+ */
+public class VectorKernels extends ScalarKernels {
+
+	protected static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	protected static final int LANES = SPECIES.length();
+
+	public String getName() { return "vector x" + LANES; }
+
+	public int getWidth() { return LANES; }
+
+	public double closestSphere(GeometryStore g, GeometryStore.Query q, int first, int end, double best) {
+
+		int i = first;
+		for (; i <= end - LANES; i += LANES) {
+			DoubleVector ux = DoubleVector.broadcast(SPECIES, q.ox).sub(DoubleVector.fromArray(SPECIES, g.sphereX, i));
+			DoubleVector uy = DoubleVector.broadcast(SPECIES, q.oy).sub(DoubleVector.fromArray(SPECIES, g.sphereY, i));
+			DoubleVector uz = DoubleVector.broadcast(SPECIES, q.oz).sub(DoubleVector.fromArray(SPECIES, g.sphereZ, i));
+
+			DoubleVector b = ux.mul(q.dx).add(uy.mul(q.dy)).add(uz.mul(q.dz));
+			DoubleVector c = ux.mul(ux).add(uy.mul(uy)).add(uz.mul(uz));
+			DoubleVector d = b.mul(b).sub(c).add(DoubleVector.fromArray(SPECIES, g.sphereRadius2, i)).sqrt();
+
+			DoubleVector t1 = b.neg().sub(d);
+			DoubleVector t = b.neg().add(d).blend(t1, t1.compare(VectorOperators.GT, q.tMin));
+			VectorMask<Double> hit = t.compare(VectorOperators.GT, q.tMin).and(t.compare(VectorOperators.LE, best));
+			if (hit.anyTrue())
+				best = resolve(g.sphereIndex, GeometryStore.SPHERE, q, i, t, hit, best);
+		}
+		return super.closestSphere(g, q, i, end, best);
+	}
+
+	public boolean anySphere(GeometryStore g, GeometryStore.Query q, int first, int end, double tMax) {
+
+		int i = first;
+		for (; i <= end - LANES; i += LANES) {
+			DoubleVector ux = DoubleVector.broadcast(SPECIES, q.ox).sub(DoubleVector.fromArray(SPECIES, g.sphereX, i));
+			DoubleVector uy = DoubleVector.broadcast(SPECIES, q.oy).sub(DoubleVector.fromArray(SPECIES, g.sphereY, i));
+			DoubleVector uz = DoubleVector.broadcast(SPECIES, q.oz).sub(DoubleVector.fromArray(SPECIES, g.sphereZ, i));
+
+			DoubleVector b = ux.mul(q.dx).add(uy.mul(q.dy)).add(uz.mul(q.dz));
+			DoubleVector c = ux.mul(ux).add(uy.mul(uy)).add(uz.mul(uz));
+			DoubleVector d = b.mul(b).sub(c).add(DoubleVector.fromArray(SPECIES, g.sphereRadius2, i)).sqrt();
+
+			DoubleVector t1 = b.neg().sub(d);
+			DoubleVector t2 = b.neg().add(d);
+			VectorMask<Double> hit = within(t1, q.tMin, tMax).or(within(t2, q.tMin, tMax));
+			if (hit.anyTrue()) {
+				q.occluder = g.sphereBvh.getSurface(i + hit.firstTrue());
+				return true;
+			}
+		}
+		return super.anySphere(g, q, i, end, tMax);
+	}
+
+	public double closestBox(GeometryStore g, GeometryStore.Query q, int first, int end, double best) {
+
+		int i = first;
+		for (; i <= end - LANES; i += LANES) {
+			DoubleVector tx1 = DoubleVector.fromArray(SPECIES, g.boxMinX, i).sub(q.ox).div(q.dx);
+			DoubleVector tx2 = DoubleVector.fromArray(SPECIES, g.boxMaxX, i).sub(q.ox).div(q.dx);
+			DoubleVector ty1 = DoubleVector.fromArray(SPECIES, g.boxMinY, i).sub(q.oy).div(q.dy);
+			DoubleVector ty2 = DoubleVector.fromArray(SPECIES, g.boxMaxY, i).sub(q.oy).div(q.dy);
+			DoubleVector tz1 = DoubleVector.fromArray(SPECIES, g.boxMinZ, i).sub(q.oz).div(q.dz);
+			DoubleVector tz2 = DoubleVector.fromArray(SPECIES, g.boxMaxZ, i).sub(q.oz).div(q.dz);
+
+			// Same comparisons as the scalar kernel, so NaNs behave alike
+			DoubleVector tNear = tx1.min(tx2);
+			DoubleVector tFar = tx1.max(tx2);
+			DoubleVector t = ty1.min(ty2);
+			tNear = tNear.blend(t, t.compare(VectorOperators.GT, tNear));
+			t = ty1.max(ty2);
+			tFar = tFar.blend(t, t.compare(VectorOperators.LT, tFar));
+			t = tz1.min(tz2);
+			tNear = tNear.blend(t, t.compare(VectorOperators.GT, tNear));
+			t = tz1.max(tz2);
+			tFar = tFar.blend(t, t.compare(VectorOperators.LT, tFar));
+
+			VectorMask<Double> valid = tNear.compare(VectorOperators.LE, tFar);
+			t = tFar.blend(tNear, tNear.compare(VectorOperators.GT, q.tMin));
+			VectorMask<Double> hit = valid.and(t.compare(VectorOperators.GT, q.tMin))
+					.and(t.compare(VectorOperators.LE, best));
+			if (hit.anyTrue())
+				best = resolve(g.boxIndex, GeometryStore.BOX, q, i, t, hit, best);
+		}
+		return super.closestBox(g, q, i, end, best);
+	}
+
+	public boolean anyBox(GeometryStore g, GeometryStore.Query q, int first, int end, double tMax) {
+
+		int i = first;
+		for (; i <= end - LANES; i += LANES) {
+			DoubleVector tx1 = DoubleVector.fromArray(SPECIES, g.boxMinX, i).sub(q.ox).div(q.dx);
+			DoubleVector tx2 = DoubleVector.fromArray(SPECIES, g.boxMaxX, i).sub(q.ox).div(q.dx);
+			DoubleVector ty1 = DoubleVector.fromArray(SPECIES, g.boxMinY, i).sub(q.oy).div(q.dy);
+			DoubleVector ty2 = DoubleVector.fromArray(SPECIES, g.boxMaxY, i).sub(q.oy).div(q.dy);
+			DoubleVector tz1 = DoubleVector.fromArray(SPECIES, g.boxMinZ, i).sub(q.oz).div(q.dz);
+			DoubleVector tz2 = DoubleVector.fromArray(SPECIES, g.boxMaxZ, i).sub(q.oz).div(q.dz);
+
+			// Same comparisons as the scalar kernel, so NaNs behave alike
+			DoubleVector tNear = tx1.min(tx2);
+			DoubleVector tFar = tx1.max(tx2);
+			DoubleVector t = ty1.min(ty2);
+			tNear = tNear.blend(t, t.compare(VectorOperators.GT, tNear));
+			t = ty1.max(ty2);
+			tFar = tFar.blend(t, t.compare(VectorOperators.LT, tFar));
+			t = tz1.min(tz2);
+			tNear = tNear.blend(t, t.compare(VectorOperators.GT, tNear));
+			t = tz1.max(tz2);
+			tFar = tFar.blend(t, t.compare(VectorOperators.LT, tFar));
+
+			VectorMask<Double> hit = tNear.compare(VectorOperators.LE, tFar)
+					.and(within(tNear, q.tMin, tMax).or(within(tFar, q.tMin, tMax)));
+			if (hit.anyTrue()) {
+				q.occluder = g.boxBvh.getSurface(i + hit.firstTrue());
+				return true;
+			}
+		}
+		return super.anyBox(g, q, i, end, tMax);
+	}
+
+	/**
+	 * @return the lanes of t within (tMin, tMax)
+	 */
+	protected static VectorMask<Double> within(DoubleVector t, double tMin, double tMax) {
+
+		return t.compare(VectorOperators.GT, tMin).and(t.compare(VectorOperators.LT, tMax));
+	}
+
+	/**
+	 * Apply the scalar closest-hit rule to the lanes that hit, in lane order.
+	 * @return the new upper bound on the ray parameter
+	 */
+	protected static double resolve(int[] sceneIndex, int kind, GeometryStore.Query q, int i, DoubleVector t,
+			VectorMask<Double> hit, double best) {
+
+		for (int lane = hit.firstTrue(); lane < LANES; lane++) {
+			if (!hit.laneIsSet(lane))
+				continue;
+			double tl = t.lane(lane);
+			int index = sceneIndex[i + lane];
+			if (tl < best || (tl == best && index < q.bestIndex)) {
+				best = tl;
+				q.setBest(kind, i + lane, index);
+			}
+		}
+		return best;
+	}
+}
@@ -1,6 +1,8 @@
 package ray.surface;
 
+import ray.IntersectionRecord;
 import ray.math.Point3;
+import ray.math.Vector3;
 
 public class Box extends Surface {
 	
@@ -13,6 +15,77 @@ public class Box extends Surface {
 	public void setMaxPt(Point3 maxPt) { this.maxPt.set(maxPt); }
 
 	public Box() { }
+	
+	/**
+	 * Slab test.  The face that is hit is known from the slab that bounds the
+	 * intersection interval, which gives the normal directly.
+	 * @see Surface#intersect(IntersectionRecord, Point3, Vector3, double, double)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Point3 origin, Vector3 direction,
+			double tMin, double tMax) {
+		
+		double tx1 = (minPt.x - origin.x) / direction.x;
+		double tx2 = (maxPt.x - origin.x) / direction.x;
+		double ty1 = (minPt.y - origin.y) / direction.y;
+		double ty2 = (maxPt.y - origin.y) / direction.y;
+		double tz1 = (minPt.z - origin.z) / direction.z;
+		double tz2 = (maxPt.z - origin.z) / direction.z;
+		
+		// Entry and exit parameter and axis of the ray through the box
+		double tNear = Math.min(tx1, tx2);
+		double tFar = Math.max(tx1, tx2);
+		int nearAxis = 0;
+		int farAxis = 0;
+		
+		double t = Math.min(ty1, ty2);
+		if (t > tNear) { tNear = t; nearAxis = 1; }
+		t = Math.max(ty1, ty2);
+		if (t < tFar) { tFar = t; farAxis = 1; }
+		
+		t = Math.min(tz1, tz2);
+		if (t > tNear) { tNear = t; nearAxis = 2; }
+		t = Math.max(tz1, tz2);
+		if (t < tFar) { tFar = t; farAxis = 2; }
+		
+		if (!(tNear <= tFar))
+			return false;
+		
+		// The ray enters through a face looking against it and leaves through
+		// one looking along it
+		int axis;
+		double sign;
+		if (tNear > tMin && tNear < tMax) {
+			t = tNear;
+			axis = nearAxis;
+			sign = -1;
+		} else if (tFar > tMin && tFar < tMax) {
+			t = tFar;
+			axis = farAxis;
+			sign = 1;
+		} else {
+			return false;
+		}
+		
+		double d = axis == 0 ? direction.x : axis == 1 ? direction.y : direction.z;
+		if (d < 0)
+			sign = -sign;
+		
+		outRecord.t = t;
+		outRecord.location.set(origin);
+		outRecord.location.scaleAdd(t, direction);
+		outRecord.normal.set(axis == 0 ? sign : 0, axis == 1 ? sign : 0, axis == 2 ? sign : 0);
+		outRecord.surface = this;
+		return true;
+	}
+	
+	/**
+	 * @see Surface#computeBoundingBox(Point3, Point3)
+	 */
+	public void computeBoundingBox(Point3 outMin, Point3 outMax) {
+		
+		outMin.set(Math.min(minPt.x, maxPt.x), Math.min(minPt.y, maxPt.y), Math.min(minPt.z, maxPt.z));
+		outMax.set(Math.max(minPt.x, maxPt.x), Math.max(minPt.y, maxPt.y), Math.max(minPt.z, maxPt.z));
+	}
 
 	/**
 	 * @see Object#toString()
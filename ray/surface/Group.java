@@ -0,0 +1,143 @@
+package ray.surface;
+
+import java.util.ArrayList;
+
+import ray.IntersectionRecord;
+import ray.accel.GeometryStore;
+import ray.math.Point3;
+import ray.math.Vector3;
+
+/**
+ * A named collection of surfaces that is not rendered itself but placed in the
+ * scene by Instances.  The surfaces are compiled once into a geometry store of
+ * their own which all instances share, so a group placed many times costs one
+ * transform per placement instead of a copy of its surfaces.
+ *
+ * Groups may contain instances of other groups, but not of themselves.
+ */
+public class Group {
+
+	/** The surfaces of the group, in their own coordinates. */
+	protected final ArrayList<Surface> surfaces = new ArrayList<Surface>();
+	public void addSurface(Surface toAdd) { surfaces.add(toAdd); geometry = null; }
+	public ArrayList<Surface> getSurfaces() { return surfaces; }
+
+	/** Compiled surfaces, built on first use. */
+	protected volatile GeometryStore geometry;
+
+	/** Bounding box of the surfaces: min x, y, z followed by max x, y, z. */
+	protected final double[] bounds = new double[6];
+
+	/** Per-thread scratch state for tracing rays through the group. */
+	protected final ThreadLocal<Tracer> tracers = new ThreadLocal<Tracer>() {
+		protected Tracer initialValue() { return new Tracer(); }
+	};
+
+	public Group() { }
+
+	/**
+	 * @return the compiled surfaces, building them first if necessary
+	 */
+	public GeometryStore getAcceleration() {
+
+		GeometryStore result = geometry;
+		if (result == null)
+			result = build();
+		return result;
+	}
+
+	private synchronized GeometryStore build() {
+
+		if (geometry != null)
+			return geometry;
+		if (contains(this, 0))
+			throw new IllegalStateException("A group must not contain an instance of itself");
+
+		Point3 min = new Point3();
+		Point3 max = new Point3();
+		for (int k = 0; k < 3; k++) {
+			bounds[k] = Double.POSITIVE_INFINITY;
+			bounds[k + 3] = Double.NEGATIVE_INFINITY;
+		}
+		for (Surface surface : surfaces) {
+			surface.computeBoundingBox(min, max);
+			bounds[0] = Math.min(bounds[0], min.x);
+			bounds[1] = Math.min(bounds[1], min.y);
+			bounds[2] = Math.min(bounds[2], min.z);
+			bounds[3] = Math.max(bounds[3], max.x);
+			bounds[4] = Math.max(bounds[4], max.y);
+			bounds[5] = Math.max(bounds[5], max.z);
+		}
+
+		geometry = new GeometryStore(surfaces);
+		return geometry;
+	}
+
+	/**
+	 * Check whether the group is reachable from this one through instances.
+	 */
+	private boolean contains(Group group, int depth) {
+
+		for (Surface surface : surfaces) {
+			if (!(surface instanceof Instance))
+				continue;
+			Group inner = ((Instance) surface).getGroup();
+			if (inner == group || (inner != null && depth < 64 && inner.contains(group, depth + 1)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the bounding box of the surfaces.  Empty groups have an empty
+	 * box, with each minimum above the corresponding maximum.
+	 * @param outMin receives the smallest x, y and z
+	 * @param outMax receives the largest x, y and z
+	 */
+	public void computeBoundingBox(Point3 outMin, Point3 outMax) {
+
+		getAcceleration();
+		outMin.set(bounds[0], bounds[1], bounds[2]);
+		outMax.set(bounds[3], bounds[4], bounds[5]);
+	}
+
+	/**
+	 * Intersect a ray given in the group's coordinates with its surfaces.
+	 * @param outRecord receives the hit, in the group's coordinates
+	 * @param ox origin of the ray
+	 * @param dx unit direction of the ray
+	 * @see Surface#intersect(IntersectionRecord, Point3, Vector3, double, double)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, double ox, double oy, double oz,
+			double dx, double dy, double dz, double tMin, double tMax) {
+
+		GeometryStore store = getAcceleration();
+		Tracer tracer = tracers.get();
+		if (tracer.query == null || tracer.store != store) {
+			tracer.store = store;
+			tracer.query = store.newQuery();
+		}
+		tracer.origin.set(ox, oy, oz);
+		tracer.direction.set(dx, dy, dz);
+		return tracer.query.closestHit(outRecord, tracer.origin, tracer.direction, tMin, tMax);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+
+		return "group " + surfaces.size() + " surfaces end";
+	}
+
+	/**
+	 * The ray and query of one thread.
+	 */
+	protected static class Tracer {
+
+		protected GeometryStore store;
+		protected GeometryStore.Query query;
+		protected final Point3 origin = new Point3();
+		protected final Vector3 direction = new Vector3();
+	}
+}
@@ -0,0 +1,196 @@
+package ray.surface;
+
+import ray.IntersectionRecord;
+import ray.math.Point3;
+import ray.math.Vector3;
+
+/**
+ * A placement of a group in the scene under an affine transform.  Rays are
+ * taken into the group's coordinates and traced through its shared geometry
+ * store, and the hit is brought back, so the shading of each part is that of
+ * the group's own surfaces.
+ *
+ * The transform starts as the identity, and every translate, rotate, scale or
+ * matrix given is applied after the ones before it, in the order they appear
+ * in the scene file.
+ */
+public class Instance extends Surface {
+
+	/** The group placed by this instance. */
+	protected Group group;
+	public void setGroup(Group group) { this.group = group; }
+	public Group getGroup() { return group; }
+
+	/** Rows of the transform from group to scene coordinates. */
+	protected final double[] matrix = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 };
+
+	/** Rows of the inverse transform. */
+	protected final double[] inverse = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 };
+
+	/**
+	 * @return a copy of the 12 entries of the transform from group to scene
+	 * coordinates
+	 */
+	public double[] getMatrix() { return matrix.clone(); }
+
+	public Instance() { }
+
+	/**
+	 * Move the instance.
+	 * @param offset the translation
+	 */
+	public void addTranslate(Vector3 offset) {
+
+		addMatrix(new double[] { 1, 0, 0, offset.x, 0, 1, 0, offset.y, 0, 0, 1, offset.z });
+	}
+
+	/**
+	 * Scale the instance about the origin.
+	 * @param factors the scale factor along each axis
+	 */
+	public void addScale(Vector3 factors) {
+
+		addMatrix(new double[] { factors.x, 0, 0, 0, 0, factors.y, 0, 0, 0, 0, factors.z, 0 });
+	}
+
+	/**
+	 * Rotate the instance about the x, then the y, then the z axis.
+	 * @param degrees the angle of each rotation in degrees
+	 */
+	public void addRotate(Vector3 degrees) {
+
+		double cx = Math.cos(Math.toRadians(degrees.x)), sx = Math.sin(Math.toRadians(degrees.x));
+		double cy = Math.cos(Math.toRadians(degrees.y)), sy = Math.sin(Math.toRadians(degrees.y));
+		double cz = Math.cos(Math.toRadians(degrees.z)), sz = Math.sin(Math.toRadians(degrees.z));
+		addMatrix(new double[] { 1, 0, 0, 0, 0, cx, -sx, 0, 0, sx, cx, 0 });
+		addMatrix(new double[] { cy, 0, sy, 0, 0, 1, 0, 0, -sy, 0, cy, 0 });
+		addMatrix(new double[] { cz, -sz, 0, 0, sz, cz, 0, 0, 0, 0, 1, 0 });
+	}
+
+	/**
+	 * Apply a general affine transform.
+	 * @param rows the 12 entries of the top three rows of the 4x4 matrix
+	 */
+	public void addMatrix(double[] rows) {
+
+		if (rows.length != 12)
+			throw new IllegalArgumentException("An affine matrix has 12 entries, not " + rows.length);
+
+		double[] product = new double[12];
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 4; j++) {
+				double sum = j == 3 ? rows[4 * i + 3] : 0;
+				for (int k = 0; k < 3; k++)
+					sum += rows[4 * i + k] * matrix[4 * k + j];
+				product[4 * i + j] = sum;
+			}
+		}
+
+		// Invert the linear part by cofactors, then the translation
+		double[] m = product;
+		double c0 = m[5] * m[10] - m[6] * m[9];
+		double c1 = m[6] * m[8] - m[4] * m[10];
+		double c2 = m[4] * m[9] - m[5] * m[8];
+		double det = m[0] * c0 + m[1] * c1 + m[2] * c2;
+		if (det == 0 || Double.isNaN(det) || Double.isInfinite(det))
+			throw new IllegalArgumentException("Instance transform is not invertible");
+
+		double[] inv = new double[12];
+		inv[0] = c0 / det;
+		inv[1] = (m[2] * m[9] - m[1] * m[10]) / det;
+		inv[2] = (m[1] * m[6] - m[2] * m[5]) / det;
+		inv[4] = c1 / det;
+		inv[5] = (m[0] * m[10] - m[2] * m[8]) / det;
+		inv[6] = (m[2] * m[4] - m[0] * m[6]) / det;
+		inv[8] = c2 / det;
+		inv[9] = (m[1] * m[8] - m[0] * m[9]) / det;
+		inv[10] = (m[0] * m[5] - m[1] * m[4]) / det;
+		for (int i = 0; i < 3; i++)
+			inv[4 * i + 3] = -(inv[4 * i] * m[3] + inv[4 * i + 1] * m[7] + inv[4 * i + 2] * m[11]);
+
+		System.arraycopy(product, 0, matrix, 0, 12);
+		System.arraycopy(inv, 0, inverse, 0, 12);
+	}
+
+	/**
+	 * The ray is taken into the group's coordinates and normalized there, which
+	 * scales its parameter by the length of the transformed direction.
+	 * @see Surface#intersect(IntersectionRecord, Point3, Vector3, double, double)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Point3 origin, Vector3 direction,
+			double tMin, double tMax) {
+
+		if (group == null)
+			return false;
+
+		double[] n = inverse;
+		double ox = n[0] * origin.x + n[1] * origin.y + n[2] * origin.z + n[3];
+		double oy = n[4] * origin.x + n[5] * origin.y + n[6] * origin.z + n[7];
+		double oz = n[8] * origin.x + n[9] * origin.y + n[10] * origin.z + n[11];
+		double dx = n[0] * direction.x + n[1] * direction.y + n[2] * direction.z;
+		double dy = n[4] * direction.x + n[5] * direction.y + n[6] * direction.z;
+		double dz = n[8] * direction.x + n[9] * direction.y + n[10] * direction.z;
+		double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+		// The upper bound is checked again in scene units, free of the rounding
+		// of the scaled bound
+		if (!group.intersect(outRecord, ox, oy, oz, dx / length, dy / length, dz / length,
+				tMin * length, Math.nextUp(tMax * length)))
+			return false;
+		double t = outRecord.t / length;
+		if (!(t < tMax))
+			return false;
+
+		// Normals transform by the transposed inverse
+		Vector3 normal = outRecord.normal;
+		double nx = n[0] * normal.x + n[4] * normal.y + n[8] * normal.z;
+		double ny = n[1] * normal.x + n[5] * normal.y + n[9] * normal.z;
+		double nz = n[2] * normal.x + n[6] * normal.y + n[10] * normal.z;
+		normal.set(nx, ny, nz);
+		normal.normalize();
+
+		outRecord.t = t;
+		outRecord.location.set(origin);
+		outRecord.location.scaleAdd(t, direction);
+		return true;
+	}
+
+	/**
+	 * The box around the transformed corners of the group's box.
+	 * @see Surface#computeBoundingBox(Point3, Point3)
+	 */
+	public void computeBoundingBox(Point3 outMin, Point3 outMax) {
+
+		Point3 min = new Point3();
+		Point3 max = new Point3();
+		if (group != null)
+			group.computeBoundingBox(min, max);
+		if (group == null || !(min.x <= max.x && min.y <= max.y && min.z <= max.z)) {
+			outMin.set(matrix[3], matrix[7], matrix[11]);
+			outMax.set(outMin);
+			return;
+		}
+
+		outMin.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		outMax.set(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		for (int corner = 0; corner < 8; corner++) {
+			double x = (corner & 1) == 0 ? min.x : max.x;
+			double y = (corner & 2) == 0 ? min.y : max.y;
+			double z = (corner & 4) == 0 ? min.z : max.z;
+			double wx = matrix[0] * x + matrix[1] * y + matrix[2] * z + matrix[3];
+			double wy = matrix[4] * x + matrix[5] * y + matrix[6] * z + matrix[7];
+			double wz = matrix[8] * x + matrix[9] * y + matrix[10] * z + matrix[11];
+			outMin.set(Math.min(outMin.x, wx), Math.min(outMin.y, wy), Math.min(outMin.z, wz));
+			outMax.set(Math.max(outMax.x, wx), Math.max(outMax.y, wy), Math.max(outMax.z, wz));
+		}
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+
+		return "instance of " + group + " end";
+	}
+
+}
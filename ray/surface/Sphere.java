@@ -1,5 +1,6 @@
 package ray.surface;
 
+import ray.IntersectionRecord;
 import ray.math.Point3;
 import ray.math.Vector3;
 
@@ -20,6 +21,45 @@ public class Sphere extends Surface {
 	
 	public Sphere() { }
 	
+	/**
+	 * @see Surface#intersect(IntersectionRecord, Point3, Vector3, double, double)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Point3 origin, Vector3 direction,
+			double tMin, double tMax) {
+		
+		double ux = origin.x - center.x;
+		double uy = origin.y - center.y;
+		double uz = origin.z - center.z;
+		
+		double b = ux * direction.x + uy * direction.y + uz * direction.z;
+		double d = Math.sqrt(b * b - (ux * ux + uy * uy + uz * uz) + radius * radius);
+		
+		double t = -b - d;
+		if (!(t > tMin && t < tMax)) {
+			t = -b + d;
+			if (!(t > tMin && t < tMax))
+				return false;
+		}
+		
+		outRecord.t = t;
+		outRecord.location.set(origin);
+		outRecord.location.scaleAdd(t, direction);
+		outRecord.normal.sub(outRecord.location, center);
+		outRecord.normal.normalize();
+		outRecord.surface = this;
+		return true;
+	}
+	
+	/**
+	 * @see Surface#computeBoundingBox(Point3, Point3)
+	 */
+	public void computeBoundingBox(Point3 outMin, Point3 outMax) {
+		
+		double r = Math.abs(radius);
+		outMin.set(center.x - r, center.y - r, center.z - r);
+		outMax.set(center.x + r, center.y + r, center.z + r);
+	}
+	
 	/**
 	 * @see Object#toString()
 	 */
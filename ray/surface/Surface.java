@@ -1,5 +1,8 @@
 package ray.surface;
 
+import ray.IntersectionRecord;
+import ray.math.Point3;
+import ray.math.Vector3;
 import ray.shader.Shader;
 
 /**
@@ -15,4 +18,25 @@ public abstract class Surface {
 	public void setShader(Shader material) { this.shader = material; }
 	public Shader getShader() { return shader; }
 	
+	/**
+	 * Intersect the ray origin + t * direction with this surface.  The nearest
+	 * intersection with tMin < t < tMax is stored in outRecord, which is left
+	 * untouched if there is none.  Implementations must not allocate.
+	 * @param outRecord the record receiving t, location, normal and surface
+	 * @param origin origin of the ray
+	 * @param direction unit direction of the ray
+	 * @param tMin lower bound (exclusive) on the ray parameter
+	 * @param tMax upper bound (exclusive) on the ray parameter
+	 * @return true if an intersection was found
+	 */
+	public abstract boolean intersect(IntersectionRecord outRecord, Point3 origin, Vector3 direction,
+			double tMin, double tMax);
+	
+	/**
+	 * Compute an axis aligned box enclosing this surface.
+	 * @param outMin the corner with the smallest x, y, and z components
+	 * @param outMax the corner with the largest x, y, and z components
+	 */
+	public abstract void computeBoundingBox(Point3 outMin, Point3 outMax);
+	
 }
\ No newline at end of file